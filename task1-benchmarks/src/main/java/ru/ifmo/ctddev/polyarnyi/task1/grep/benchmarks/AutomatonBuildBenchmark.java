@@ -0,0 +1,40 @@
+package ru.ifmo.ctddev.polyarnyi.task1.grep.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.ifmo.ctddev.polyarnyi.task1.grep.MultiEncodingSearch;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time of building of the automata for the given number of patterns in all encodings.
+ *
+ * @author Nickolay Polyarniy aka PolarNick
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AutomatonBuildBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int patternsCount;
+
+    @Param({"false", "true"})
+    public boolean ignoreCase;
+
+    private List<String> patterns;
+
+    @Setup
+    public void setUp() {
+        patterns = Texts.patterns(patternsCount, 239);
+    }
+
+    @Benchmark
+    public MultiEncodingSearch build() {
+        return new MultiEncodingSearch(patterns, Texts.ENCODINGS, ignoreCase);
+    }
+
+}
@@ -0,0 +1,29 @@
+package ru.ifmo.ctddev.polyarnyi.task1.grep.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs benchmarks with the usual JMH command line options, but results are written in JSON by default (to
+ * {@code jmh-result.json}, or to the file of option {@code -rff}), so that they can be tracked over time:
+ * {@code "java -jar task1-benchmarks/target/benchmarks.jar [JMH options] [benchmarks regexp]"}.
+ *
+ * @author Nickolay Polyarniy aka PolarNick
+ */
+public class Benchmarks {
+
+    public static void main(String[] args) throws CommandLineOptionException, RunnerException {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+        if (!commandLine.getResultFormat().hasValue()) {
+            options.resultFormat(ResultFormatType.JSON);
+        }
+        new Runner(options.build()).run();
+    }
+
+}
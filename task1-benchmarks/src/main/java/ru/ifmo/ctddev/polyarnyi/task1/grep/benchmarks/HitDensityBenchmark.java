@@ -0,0 +1,58 @@
+package ru.ifmo.ctddev.polyarnyi.task1.grep.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import ru.ifmo.ctddev.polyarnyi.task1.grep.MatchListener;
+import ru.ifmo.ctddev.polyarnyi.task1.grep.MultiEncodingSearch;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scan throughput in bytes per second, depending on the part of words of the text, that are patterns.
+ *
+ * @author Nickolay Polyarniy aka PolarNick
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HitDensityBenchmark {
+
+    static final int TEXT_SIZE = 1 << 22;
+
+    @Param({"0", "0.001", "0.01", "0.1", "0.5"})
+    public double hitDensity;
+
+    @Param({"NATURAL", "CYRILLIC"})
+    public TextKind kind;
+
+    @Param({"UTF-8"})
+    public String encoding;
+
+    private byte[] text;
+    private MultiEncodingSearch.Matcher matcher;
+
+    @Setup
+    public void setUp() {
+        List<String> patterns = Texts.patterns(100, 239);
+        text = Texts.text(kind, encoding, TEXT_SIZE, patterns, hitDensity, 566);
+        matcher = new MultiEncodingSearch(patterns, Texts.ENCODINGS).matcher();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TEXT_SIZE)
+    public void scan(final Blackhole blackhole) {
+        matcher.reset();
+        matcher.scan(text, 0, text.length, new MatchListener() {
+            @Override
+            public boolean onMatch(long offset, int patternId, String encoding) {
+                blackhole.consume(patternId);
+                return true;
+            }
+        });
+    }
+
+}
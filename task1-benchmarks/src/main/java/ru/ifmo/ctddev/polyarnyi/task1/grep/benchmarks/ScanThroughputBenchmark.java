@@ -0,0 +1,61 @@
+package ru.ifmo.ctddev.polyarnyi.task1.grep.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import ru.ifmo.ctddev.polyarnyi.task1.grep.MatchListener;
+import ru.ifmo.ctddev.polyarnyi.task1.grep.MultiEncodingSearch;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scan throughput in bytes per second (each operation is one byte) on texts of different kinds in each encoding.
+ *
+ * @author Nickolay Polyarniy aka PolarNick
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScanThroughputBenchmark {
+
+    static final int TEXT_SIZE = 1 << 22;
+
+    @Param({"RANDOM", "NATURAL", "CYRILLIC"})
+    public TextKind kind;
+
+    @Param({"CP866", "KOI8-R", "UTF-8", "CP1251"})
+    public String encoding;
+
+    @Param({"100"})
+    public int patternsCount;
+
+    @Param({"false", "true"})
+    public boolean ignoreCase;
+
+    private byte[] text;
+    private MultiEncodingSearch.Matcher matcher;
+
+    @Setup
+    public void setUp() {
+        List<String> patterns = Texts.patterns(patternsCount, 239);
+        text = Texts.text(kind, encoding, TEXT_SIZE, patterns, 0.0, 566);
+        matcher = new MultiEncodingSearch(patterns, Texts.ENCODINGS, ignoreCase).matcher();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TEXT_SIZE)
+    public void scan(final Blackhole blackhole) {
+        matcher.reset();
+        matcher.scan(text, 0, text.length, new MatchListener() {
+            @Override
+            public boolean onMatch(long offset, int patternId, String encoding) {
+                blackhole.consume(offset);
+                return true;
+            }
+        });
+    }
+
+}
@@ -0,0 +1,21 @@
+package ru.ifmo.ctddev.polyarnyi.task1.grep.benchmarks;
+
+/**
+ * Kind of the scanned text, see {@link Texts#text}.
+ *
+ * @author Nickolay Polyarniy aka PolarNick
+ */
+public enum TextKind {
+    /**
+     * Uniformly random bytes.
+     */
+    RANDOM,
+    /**
+     * Words of latin letters with frequencies of English, separated by spaces and line breaks.
+     */
+    NATURAL,
+    /**
+     * Words of Russian letters with their frequencies, separated by spaces and line breaks.
+     */
+    CYRILLIC
+}
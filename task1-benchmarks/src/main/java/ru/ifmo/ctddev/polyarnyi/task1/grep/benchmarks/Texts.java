@@ -0,0 +1,79 @@
+package ru.ifmo.ctddev.polyarnyi.task1.grep.benchmarks;
+
+import com.google.common.collect.Lists;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generated patterns and texts of the benchmarks. Everything is generated from fixed seeds, so results of different
+ * runs are comparable.
+ *
+ * @author Nickolay Polyarniy aka PolarNick
+ */
+class Texts {
+
+    static final List<String> ENCODINGS = Lists.newArrayList("CP866", "KOI8-R", "UTF-8", "CP1251");
+
+    private static final String LATIN = "etaoinshrdlcumwfgypbvkjxqz";
+    private static final String CYRILLIC = "оеаинтсрвлкмдпуяызьбгчйхжшюцщэфъё";
+    private static final int MAX_WORD_LENGTH = 10;
+
+    private Texts() {
+    }
+
+    /**
+     * @return distinct words: half of them of latin letters, half - of Russian ones
+     */
+    static List<String> patterns(int count, long seed) {
+        Random random = new Random(seed);
+        List<String> patterns = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String letters = i % 2 == 0 ? LATIN : CYRILLIC;
+            patterns.add(word(random, letters, 4 + random.nextInt(MAX_WORD_LENGTH - 3)) + i);
+        }
+        return patterns;
+    }
+
+    /**
+     * @param hitDensity probability, that the next word of the text is one of the patterns
+     */
+    static byte[] text(TextKind kind, String encoding, int size, List<String> patterns, double hitDensity, long seed) {
+        Random random = new Random(seed);
+        if (kind == TextKind.RANDOM) {
+            byte[] bytes = new byte[size];
+            random.nextBytes(bytes);
+            return bytes;
+        }
+        String letters = kind == TextKind.NATURAL ? LATIN : CYRILLIC;
+        StringBuilder text = new StringBuilder();
+        int wordsInLine = 0;
+        while (text.length() < size) {
+            if (random.nextDouble() < hitDensity) {
+                text.append(patterns.get(random.nextInt(patterns.size())));
+            } else {
+                text.append(word(random, letters, 1 + random.nextInt(MAX_WORD_LENGTH)));
+            }
+            text.append(++wordsInLine % 12 == 0 ? '\n' : ' ');
+        }
+        byte[] encoded = text.toString().getBytes(Charset.forName(encoding));
+        byte[] bytes = new byte[size];
+        System.arraycopy(encoded, 0, bytes, 0, size);
+        return bytes;
+    }
+
+    /**
+     * Letters, that go earlier in the alphabet of the word, are more frequent.
+     */
+    private static String word(Random random, String letters, int length) {
+        char[] word = new char[length];
+        for (int i = 0; i < length; i++) {
+            int index = (int) (letters.length() * Math.pow(random.nextDouble(), 2));
+            word[i] = letters.charAt(index);
+        }
+        return new String(word);
+    }
+
+}
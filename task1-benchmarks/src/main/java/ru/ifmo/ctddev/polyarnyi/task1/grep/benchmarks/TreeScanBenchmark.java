@@ -0,0 +1,124 @@
+package ru.ifmo.ctddev.polyarnyi.task1.grep.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.ifmo.ctddev.polyarnyi.task1.grep.Grep;
+import ru.ifmo.ctddev.polyarnyi.task1.grep.GrepOptions;
+import ru.ifmo.ctddev.polyarnyi.task1.grep.MultiEncodingSearch;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scan of the generated tree of files in all encodings by {@link Grep}, as it is done from the command line.
+ * Tree consists of many small files and several big ones, that are scanned by chunks in parallel.
+ *
+ * @author Nickolay Polyarniy aka PolarNick
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class TreeScanBenchmark {
+
+    private static final int SMALL_FILES = 2000;
+    private static final int SMALL_FILE_SIZE = 1 << 14;
+    private static final int BIG_FILES = 4;
+    private static final int BIG_FILE_SIZE = 1 << 27;
+    private static final int FILES_PER_DIRECTORY = 100;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    @Param({"", "-c"})
+    public String mode;
+
+    private Path root;
+    private GrepOptions options;
+    private MultiEncodingSearch searcher;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        List<String> patterns = Texts.patterns(100, 239);
+        root = Files.createTempDirectory("grep-benchmark");
+        for (int i = 0; i < SMALL_FILES + BIG_FILES; i++) {
+            String encoding = Texts.ENCODINGS.get(i % Texts.ENCODINGS.size());
+            TextKind kind = i % 2 == 0 ? TextKind.NATURAL : TextKind.CYRILLIC;
+            byte[] text = Texts.text(kind, encoding, i < SMALL_FILES ? SMALL_FILE_SIZE : BIG_FILE_SIZE,
+                    patterns, 0.001, i);
+            Path directory = root.resolve("d" + i / FILES_PER_DIRECTORY);
+            Files.createDirectories(directory);
+            Files.write(directory.resolve("f" + i + ".txt"), text);
+        }
+        List<String> args = new ArrayList<>();
+        args.add("-j");
+        args.add(String.valueOf(threads));
+        if (!mode.isEmpty()) {
+            args.add(mode);
+        }
+        args.addAll(patterns);
+        options = GrepOptions.parse(args.toArray(new String[args.size()]));
+        searcher = new MultiEncodingSearch(patterns, Texts.ENCODINGS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Benchmark
+    public long scanTree() throws IOException {
+        CountingWriter out = new CountingWriter();
+        Grep grep = new Grep(searcher, out, options, null);
+        try {
+            Files.walkFileTree(root, grep);
+        } finally {
+            grep.finish();
+        }
+        return out.written;
+    }
+
+    /**
+     * Output, that only counts written characters.
+     */
+    private static class CountingWriter extends Writer {
+
+        private long written = 0;
+
+        @Override
+        public synchronized void write(char[] chars, int offset, int length) {
+            written += length;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+}
@@ -2,137 +2,584 @@ package ru.ifmo.ctddev.polyarnyi.task1.grep;
 
 import com.google.common.base.Preconditions;
 
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
+ * Aho-Corasick automaton, packed into flat primitive arrays. Automaton is fully built in constructor and is immutable
+ * after it, text is processed by {@link Matcher}.
+ *
+ * Characters are replaced by their classes: each character of the patterns has its own class, and all other
+ * characters share class {@code 0}, so the effective alphabet is not bigger than the number of distinct characters
+ * of the patterns plus one. Characters, that are folded to the same character (for example, upper and lower case of
+ * the letter), have the same class, so folding costs nothing while scanning.
+ *
+ * States are numbered in breadth-first order from {@code 0} (the root), so children of each state have consecutive
+ * numbers {@code childStart[s]..childStart[s + 1])}, sorted by class of their edges. First {@code denseCount} states
+ * (the root and the states near it, while they fit into {@link #MAX_DENSE_CELLS}) have full transition rows:
+ * transition from dense state {@code s} by class {@code c} is {@code go[s * classesCount + c]}. Transition from
+ * other states is found by their children and suffix links, until the dense state is reached. So the memory is
+ * bounded by a constant for the dense rows plus few ints per state, i.e. per byte of the patterns.
+ *
+ * While matcher is at the root, it skips bytes, that can not start any pattern: if there are only few such leading
+ * bytes, text is checked by 8 bytes at once (each {@code long} word is compared with all leading bytes by SWAR
+ * zero-byte test), so the automaton runs only near the possible beginnings of the patterns.
+ *
  * Date: 16.02.14 at 2:51
  *
  * @author Nickolay Polyarniy aka PolarNick
  */
-public class AhoCorasick<Data> {
+public class AhoCorasick<Data> implements SearchEngine<Data> {
+
+    static final int MAX_DENSE_CELLS = 1 << 20;
+
+    private static final int ROOT = 0;
+    private static final int NO_STATE = -1;
+    private static final int NO_PATTERN = -1;
+    private static final int OTHER_CHARACTERS_CLASS = 0;
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int MAX_LINEARLY_SEARCHED_CHILDREN = 8;
+    private static final int BYTES_COUNT = 256;
+    private static final int MAX_SKIPPED_LEADING_BYTES = 8;
+    private static final long LOW_BITS = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+    private static final int WRITE_CHUNK_INTS = 1 << 14;
 
     private final int minCharacter;
     private final int alphabetSize;
-    private final Node root;
+    private final List<Data> data;
 
-    private Node current;
+    /**
+     * Class of each character of the alphabet.
+     */
+    private final int[] classOf;
+    private final int classesCount;
+    /**
+     * States with numbers less than it have full transition rows in {@link #go}.
+     */
+    private final int denseCount;
+    /**
+     * Full transition rows of the dense states: trie edges, and for the missing edges - transitions by suffix links.
+     */
+    private final int[] go;
+    /**
+     * Children of state {@code s} are states {@code childStart[s]..childStart[s + 1])}.
+     */
+    private final int[] childStart;
+    /**
+     * Class of the trie edge, that leads to the state.
+     */
+    private final int[] edgeClass;
+    private final int[] suffixLink;
+    /**
+     * Patterns, that end exactly at state {@code s}, are {@code outputs[outputStart[s]..outputStart[s + 1])}, the most
+     * recently added pattern goes first.
+     */
+    private final int[] outputStart;
+    private final int[] outputs;
+    /**
+     * Dictionary suffix link: nearest state among the proper suffixes of this state, at which some patterns end, or
+     * {@link #NO_STATE} if there is no such.
+     */
+    private final int[] up;
+    /**
+     * This state, if some patterns end at it, otherwise {@code up} of this state. So the matcher checks only it, while
+     * text does not match.
+     */
+    private final int[] output;
+    /**
+     * {@code isLeadingByte[b]} is true, if some pattern starts with byte {@code b}. Null, if matcher should not skip
+     * bytes at the root (alphabet is not a byte alphabet or root has outputs).
+     */
+    private final boolean[] isLeadingByte;
+    /**
+     * Each leading byte repeated in all 8 bytes of the word, or null, if there are too many leading bytes to compare
+     * words with all of them.
+     */
+    private final long[] leadingBytesWords;
 
     public AhoCorasick(List<int[]> patterns, List<Data> data, int minCharacter, int maxCharacter) {
+        this(patterns, data, minCharacter, maxCharacter, null, MAX_DENSE_CELLS);
+    }
+
+    /**
+     * @param characterFolding character of the patterns, that should be matched by each character of the text, or
+     *                         null, if characters are matched as is. Patterns should consist of such characters only
+     * @param maxDenseCells    limit of the size of the full transition rows (the root always has it)
+     */
+    AhoCorasick(List<int[]> patterns, List<Data> data, int minCharacter, int maxCharacter, int[] characterFolding,
+                int maxDenseCells) {
         Preconditions.checkArgument(patterns.size() == data.size(), "Data must be per pattern!");
         this.minCharacter = minCharacter;
         this.alphabetSize = maxCharacter - minCharacter + 1;
-        this.root = new Node(-1, null);
+        this.data = new ArrayList<>(data);
+
+        this.classOf = new int[alphabetSize];
+        for (int[] pattern : patterns) {
+            for (int c : pattern) {
+                classOf[c - minCharacter] = 1;
+            }
+        }
+        int classes = 1;
+        for (int c = 0; c < alphabetSize; c++) {
+            classOf[c] = classOf[c] == 0 ? OTHER_CHARACTERS_CLASS : classes++;
+        }
+        this.classesCount = classes;
+        if (characterFolding != null) {
+            int[] patternClassOf = classOf.clone();
+            for (int c = 0; c < alphabetSize; c++) {
+                classOf[c] = patternClassOf[characterFolding[c + minCharacter] - minCharacter];
+            }
+        }
 
+        Trie trie = new Trie(classesCount, patterns.size());
         for (int i = 0; i < patterns.size(); i++) {
-            addPattern(patterns.get(i), data.get(i));
+            trie.addPattern(patterns.get(i), i);
+        }
+        int statesCount = trie.statesCount;
+        this.denseCount = Math.max(1, Math.min(statesCount, maxDenseCells / classesCount));
+        this.go = new int[denseCount * classesCount];
+        this.childStart = new int[statesCount + 1];
+        this.edgeClass = new int[statesCount];
+        this.suffixLink = new int[statesCount];
+        this.outputStart = new int[statesCount + 1];
+        this.outputs = new int[patterns.size()];
+        this.up = new int[statesCount];
+        this.output = new int[statesCount];
+
+        int[] trieStates = numberStatesInBreadthFirstOrder(trie);
+        for (int state = 0, count = 0; state < statesCount; state++) {
+            outputStart[state] = count;
+            for (int pattern = trie.lastPattern[trieStates[state]]; pattern != NO_PATTERN; pattern = trie.previousPattern[pattern]) {
+                outputs[count++] = pattern;
+            }
+            outputStart[state + 1] = count;
         }
-        resetText();
+        buildSuffixLinks();
+        this.isLeadingByte = findLeadingBytes();
+        this.leadingBytesWords = toLeadingBytesWords(isLeadingByte);
+    }
+
+    private AhoCorasick(int minCharacter, int alphabetSize, List<Data> data, int[] classOf, int classesCount,
+                        int denseCount, int[] go, int[] childStart, int[] edgeClass, int[] suffixLink,
+                        int[] outputStart, int[] outputs, int[] up, int[] output) {
+        this.minCharacter = minCharacter;
+        this.alphabetSize = alphabetSize;
+        this.data = data;
+        this.classOf = classOf;
+        this.classesCount = classesCount;
+        this.denseCount = denseCount;
+        this.go = go;
+        this.childStart = childStart;
+        this.edgeClass = edgeClass;
+        this.suffixLink = suffixLink;
+        this.outputStart = outputStart;
+        this.outputs = outputs;
+        this.up = up;
+        this.output = output;
+        this.isLeadingByte = findLeadingBytes();
+        this.leadingBytesWords = toLeadingBytesWords(isLeadingByte);
+    }
+
+    @Override
+    public Matcher matcher() {
+        return new Matcher();
+    }
+
+    @Override
+    public Data getData(int patternIndex) {
+        return data.get(patternIndex);
     }
 
-    public void resetText() {
-        this.current = this.root;
+    public int getStatesCount() {
+        return edgeClass.length;
     }
 
-    public Data processText(int character) {
-        character -= minCharacter;
-        Node cur = current.getGo(character);
-        Data result = cur.dataAtThisPattern;
-        current = cur;
-        while (cur != root) {
-            cur = cur.getUp();
-            if (result == null) {
-                result = cur.dataAtThisPattern;
+    /**
+     * @return number of states with full transition rows
+     */
+    public int getDenseStatesCount() {
+        return denseCount;
+    }
+
+    /**
+     * @return size of the effective alphabet
+     */
+    public int getClassesCount() {
+        return classesCount;
+    }
+
+    /**
+     * @return size of the arrays of the automaton (without data of patterns)
+     */
+    @Override
+    public long getSizeInBytes() {
+        long ints = 0;
+        for (int[] array : new int[][]{classOf, go, childStart, edgeClass, suffixLink, outputStart, outputs, up, output}) {
+            ints += array.length;
+        }
+        return ints * 4;
+    }
+
+    /**
+     * Writes automaton without data of patterns in format, that is read by {@link #read}.
+     */
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(minCharacter);
+        out.writeInt(alphabetSize);
+        out.writeInt(classesCount);
+        out.writeInt(denseCount);
+        for (int[] array : new int[][]{classOf, go, childStart, edgeClass, suffixLink, outputStart, outputs, up, output}) {
+            writeInts(out, array);
+        }
+    }
+
+    /**
+     * Reads automaton, written by {@link #write}, from the current position of the buffer (for example, from the
+     * memory-mapped file), and moves position after it.
+     *
+     * @param data data of each pattern, that automaton was built from
+     */
+    static <Data> AhoCorasick<Data> read(ByteBuffer in, List<Data> data) {
+        int minCharacter = in.getInt();
+        int alphabetSize = in.getInt();
+        int classesCount = in.getInt();
+        int denseCount = in.getInt();
+        int[] classOf = readInts(in);
+        int[] go = readInts(in);
+        int[] childStart = readInts(in);
+        int[] edgeClass = readInts(in);
+        int[] suffixLink = readInts(in);
+        int[] outputStart = readInts(in);
+        int[] outputs = readInts(in);
+        Preconditions.checkArgument(outputs.length == data.size(), "Data must be per pattern!");
+        int[] up = readInts(in);
+        int[] output = readInts(in);
+        return new AhoCorasick<>(minCharacter, alphabetSize, data, classOf, classesCount, denseCount,
+                go, childStart, edgeClass, suffixLink, outputStart, outputs, up, output);
+    }
+
+    private static void writeInts(DataOutput out, int[] array) throws IOException {
+        out.writeInt(array.length);
+        ByteBuffer chunk = ByteBuffer.allocate(WRITE_CHUNK_INTS * 4);
+        for (int from = 0; from < array.length; from += WRITE_CHUNK_INTS) {
+            int count = Math.min(WRITE_CHUNK_INTS, array.length - from);
+            chunk.clear();
+            chunk.asIntBuffer().put(array, from, count);
+            out.write(chunk.array(), 0, count * 4);
+        }
+    }
+
+    private static int[] readInts(ByteBuffer in) {
+        int[] array = new int[in.getInt()];
+        IntBuffer ints = in.asIntBuffer();
+        ints.get(array);
+        in.position(in.position() + array.length * 4);
+        return array;
+    }
+
+    private boolean hasOwnOutputs(int state) {
+        return outputStart[state] != outputStart[state + 1];
+    }
+
+    /**
+     * Fills {@link #childStart} and {@link #edgeClass}.
+     *
+     * @return state of the trie for each state of the automaton
+     */
+    private int[] numberStatesInBreadthFirstOrder(Trie trie) {
+        int[] trieStates = new int[trie.statesCount];
+        long[] children = new long[classesCount];
+        trieStates[0] = ROOT;
+        int numbered = 1;
+        for (int state = 0; state < trie.statesCount; state++) {
+            childStart[state] = numbered;
+            int childrenCount = 0;
+            for (int child = trie.firstChild[trieStates[state]]; child != ROOT; child = trie.nextSibling[child]) {
+                children[childrenCount++] = ((long) trie.label[child] << 32) | child;
+            }
+            Arrays.sort(children, 0, childrenCount);
+            for (int i = 0; i < childrenCount; i++) {
+                trieStates[numbered] = (int) children[i];
+                edgeClass[numbered] = (int) (children[i] >>> 32);
+                numbered++;
             }
         }
+        childStart[trie.statesCount] = numbered;
+        return trieStates;
+    }
+
+    /**
+     * Traversal of the states in breadth-first order, that computes suffix links and full transition rows of dense
+     * states. Suffix link of each state and the parent of the state are less than the state, so they are already
+     * computed.
+     */
+    private void buildSuffixLinks() {
+        suffixLink[ROOT] = ROOT;
+        up[ROOT] = NO_STATE;
+        output[ROOT] = hasOwnOutputs(ROOT) ? ROOT : NO_STATE;
+        for (int state = 0; state < getStatesCount(); state++) {
+            if (state != ROOT) {
+                up[state] = output[suffixLink[state]];
+                output[state] = hasOwnOutputs(state) ? state : up[state];
+            }
+            if (state < denseCount) {
+                if (state != ROOT) {
+                    System.arraycopy(go, suffixLink[state] * classesCount, go, state * classesCount, classesCount);
+                }
+                for (int child = childStart[state]; child < childStart[state + 1]; child++) {
+                    go[state * classesCount + edgeClass[child]] = child;
+                }
+            }
+            for (int child = childStart[state]; child < childStart[state + 1]; child++) {
+                suffixLink[child] = state == ROOT ? ROOT : next(suffixLink[state], edgeClass[child]);
+            }
+        }
+    }
+
+    private int next(int state, int characterClass) {
+        while (state >= denseCount) {
+            int child = findChild(state, characterClass);
+            if (child != NO_STATE) {
+                return child;
+            }
+            state = suffixLink[state];
+        }
+        return go[state * classesCount + characterClass];
+    }
+
+    private int findChild(int state, int characterClass) {
+        int from = childStart[state];
+        int to = childStart[state + 1];
+        if (to - from <= MAX_LINEARLY_SEARCHED_CHILDREN) {
+            for (int child = from; child < to && edgeClass[child] <= characterClass; child++) {
+                if (edgeClass[child] == characterClass) {
+                    return child;
+                }
+            }
+            return NO_STATE;
+        }
+        int child = Arrays.binarySearch(edgeClass, from, to, characterClass);
+        return child >= 0 ? child : NO_STATE;
+    }
+
+    /**
+     * @return {@link #isLeadingByte} of the built automaton
+     */
+    private boolean[] findLeadingBytes() {
+        if (minCharacter != 0 || alphabetSize != BYTES_COUNT || output[ROOT] != NO_STATE) {
+            return null;
+        }
+        boolean[] result = new boolean[BYTES_COUNT];
+        for (int b = 0; b < BYTES_COUNT; b++) {
+            result[b] = go[classOf[b]] != ROOT;
+        }
         return result;
     }
 
-    private void addPattern(int[] pattern, Data dataForPattern) {
-        Node cur = root;
-        for (int c : pattern) {
-            c -= minCharacter;
-            if (cur.sons.get(c) == null) {
-                cur.sons.set(c, new Node(c, cur));
+    private static long[] toLeadingBytesWords(boolean[] isLeadingByte) {
+        if (isLeadingByte == null) {
+            return null;
+        }
+        long[] words = new long[BYTES_COUNT];
+        int count = 0;
+        for (int b = 0; b < BYTES_COUNT; b++) {
+            if (isLeadingByte[b]) {
+                words[count++] = LOW_BITS * b;
             }
-            cur = cur.sons.get(c);
         }
-        cur.isLeaf = true;
-        cur.dataAtThisPattern = dataForPattern;
+        return count <= MAX_SKIPPED_LEADING_BYTES ? Arrays.copyOf(words, count) : null;
     }
 
-    private class Node {
+    /**
+     * Position of the automaton in the processed text. Automaton itself is immutable, so it can be shared between
+     * threads, while each thread (or each processed text) should use its own matcher.
+     */
+    public class Matcher implements SearchEngine.Matcher<Data> {
+
+        private int current = ROOT;
+        private long position = 0;
+
+        private Matcher() {
+        }
+
+        @Override
+        public void reset() {
+            current = ROOT;
+            position = 0;
+        }
+
+        @Override
+        public Data processText(int character) {
+            int state = next(current, classOf[character - minCharacter]);
+            current = state;
+            position++;
+            int outputState = output[state];
+            return outputState == NO_STATE ? null : data.get(outputs[outputStart[outputState]]);
+        }
 
-        final List<Node> sons = new ArrayList<>(alphabetSize);
-        final List<Node> go = new ArrayList<>(alphabetSize);
-        Node suffixLink = null;
-        Node up = null;
-        Data dataAtThisPattern = null;
-        boolean isLeaf = false;
+        /**
+         * Processes bytes of the text (as unsigned characters) and reports all found patterns to listener, including
+         * overlapping ones and the ones, that end at the same offset.
+         *
+         * @return false, if scanning was stopped by listener
+         */
+        public boolean scan(byte[] text, int offset, int length, OutputListener listener) {
+            return scan(ByteBuffer.wrap(text), offset, length, listener);
+        }
 
-        Node parent;
-        int characterToParent;
+        /**
+         * Processes bytes of the text with absolute indices from {@code offset} to {@code offset + length}, as
+         * unsigned characters, and reports all found patterns to listener. Patterns, that end at the same offset, are
+         * reported from the longest one.
+         *
+         * @return false, if scanning was stopped by listener
+         */
+        @Override
+        public boolean scan(ByteBuffer text, int offset, int length, OutputListener listener) {
+            int state = current;
+            long textOffset = position - offset;
+            int end = offset + length;
+            for (int i = offset; i < end; i++) {
+                if (state == ROOT && isLeadingByte != null) {
+                    i = skipToLeadingByte(text, i, end);
+                    if (i == end) {
+                        break;
+                    }
+                }
+                int characterClass = classOf[(text.get(i) & 0xFF) - minCharacter];
+                state = state < denseCount ? go[state * classesCount + characterClass] : next(state, characterClass);
+                for (int outputState = output[state]; outputState != NO_STATE; outputState = up[outputState]) {
+                    for (int k = outputStart[outputState]; k < outputStart[outputState + 1]; k++) {
+                        if (!listener.onOutput(textOffset + i, outputs[k])) {
+                            current = state;
+                            position = textOffset + i + 1;
+                            return false;
+                        }
+                    }
+                }
+            }
+            current = state;
+            position = textOffset + end;
+            return true;
+        }
 
-        private Node(int characterToParent, Node parent) {
-            this.characterToParent = characterToParent;
-            this.parent = parent;
-            while (sons.size() < alphabetSize) sons.add(null);
-            while (go.size() < alphabetSize) go.add(null);
+        @Override
+        public boolean finish(OutputListener listener) {
+            return true;
         }
 
-        private Node getSuffixLink() {
-            if (suffixLink == null) {
-                if (this == root || parent == root) {
-                    suffixLink = root;
-                } else {
-                    suffixLink = parent.getSuffixLink().getGo(characterToParent);
+        /**
+         * @return index of the first leading byte, starting from {@code from}, or {@code end}, if there is no such
+         */
+        private int skipToLeadingByte(ByteBuffer text, int from, int end) {
+            int i = from;
+            if (leadingBytesWords != null) {
+                while (i + 8 <= end && !containsLeadingByte(text.getLong(i))) {
+                    i += 8;
                 }
             }
-            return suffixLink;
+            while (i < end && !isLeadingByte[text.get(i) & 0xFF]) {
+                i++;
+            }
+            return i;
         }
 
-        private Node getGo(int c) {
-            if (go.get(c) == null) {
-                if (sons.get(c) != null) {
-                    go.set(c, sons.get(c));
-                } else {
-                    go.set(c, (this == root) ? root : getSuffixLink().getGo(c));
+        /**
+         * Zero-byte test is exact for the whole word, though it may mark wrong bytes after the real zero byte, so
+         * the position of the leading byte is found bytewise.
+         */
+        private boolean containsLeadingByte(long word) {
+            for (long leadingBytes : leadingBytesWords) {
+                long difference = word ^ leadingBytes;
+                if (((difference - LOW_BITS) & ~difference & HIGH_BITS) != 0) {
+                    return true;
                 }
             }
-            return go.get(c);
+            return false;
         }
 
-        private Node getUp() {
-            if (up == null) {
-                if (getSuffixLink().isLeaf) {
-                    up = getSuffixLink();
-                } else if (getSuffixLink() == root) {
-                    up = root;
-                } else {
-                    up = getSuffixLink().getUp();
+    }
+
+    /**
+     * Trie of classes of characters of the patterns. Children of each state are linked in list: {@code firstChild},
+     * {@code nextSibling[firstChild]}, ..., except the children of the root, that are stored in dense table.
+     * Root is never a child, so {@link #ROOT} means, that there is no such state.
+     */
+    private class Trie {
+
+        int statesCount = 1;
+        int[] firstChild;
+        int[] nextSibling;
+        int[] label;
+        final int[] rootChildren;
+        /**
+         * Patterns, that end at the state, are linked in list: {@code lastPattern[state]},
+         * {@code previousPattern[lastPattern[state]]}, ...
+         */
+        int[] lastPattern;
+        final int[] previousPattern;
+
+        Trie(int classesCount, int patternsCount) {
+            this.firstChild = new int[INITIAL_CAPACITY];
+            this.nextSibling = new int[INITIAL_CAPACITY];
+            this.label = new int[INITIAL_CAPACITY];
+            this.lastPattern = new int[INITIAL_CAPACITY];
+            this.rootChildren = new int[classesCount];
+            this.previousPattern = new int[patternsCount];
+            lastPattern[ROOT] = NO_PATTERN;
+        }
+
+        void addPattern(int[] pattern, int patternIndex) {
+            int cur = ROOT;
+            for (int c : pattern) {
+                int characterClass = classOf[c - minCharacter];
+                int next = child(cur, characterClass);
+                if (next == ROOT) {
+                    next = newState(characterClass);
+                    if (cur == ROOT) {
+                        rootChildren[characterClass] = next;
+                    }
+                    nextSibling[next] = firstChild[cur];
+                    firstChild[cur] = next;
                 }
+                cur = next;
             }
-            return up;
+            previousPattern[patternIndex] = lastPattern[cur];
+            lastPattern[cur] = patternIndex;
         }
 
-        @Override
-        public String toString() {
-            if (getSuffixLink() == null) {
-                return toStringSuffix();
-            } else {
-                return toStringSuffix() + " ->" + getSuffixLink().toStringSuffix();
+        private int child(int state, int characterClass) {
+            if (state == ROOT) {
+                return rootChildren[characterClass];
             }
+            for (int child = firstChild[state]; child != ROOT; child = nextSibling[child]) {
+                if (label[child] == characterClass) {
+                    return child;
+                }
+            }
+            return ROOT;
         }
 
-        public String toStringSuffix() {
-            Node cur = this;
-            String result = "";
-            while (cur != root) {
-                result = (char) (minCharacter + cur.characterToParent) + result;
-                cur = cur.parent;
+        private int newState(int characterClass) {
+            if (statesCount == lastPattern.length) {
+                int capacity = lastPattern.length * 2;
+                firstChild = Arrays.copyOf(firstChild, capacity);
+                nextSibling = Arrays.copyOf(nextSibling, capacity);
+                label = Arrays.copyOf(label, capacity);
+                lastPattern = Arrays.copyOf(lastPattern, capacity);
             }
-            return result;
+            label[statesCount] = characterClass;
+            lastPattern[statesCount] = NO_PATTERN;
+            return statesCount++;
         }
+
     }
 
-}
\ No newline at end of file
+}
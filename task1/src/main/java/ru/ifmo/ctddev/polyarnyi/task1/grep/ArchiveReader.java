@@ -0,0 +1,228 @@
+package ru.ifmo.ctddev.polyarnyi.task1.grep;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Reads entries of gzip or zip archive, that are decompressed by the background thread. Decompressed bytes are passed
+ * through the bounded pool of {@link #BLOCKS_COUNT} blocks, so decompression of the next block and scanning of the
+ * previous one go in parallel.
+ *
+ * Each entry is read as a separate stream: {@link #nextEntry()} moves to the next entry, and {@link #read} returns
+ * {@code -1} at the end of the current entry.
+ *
+ * @author Nickolay Polyarniy aka PolarNick
+ */
+class ArchiveReader extends InputStream {
+
+    private static final int BLOCK_SIZE = 1 << 16;
+    private static final int BLOCKS_COUNT = 4;
+    private static final String GZIP_SUFFIX = ".gz";
+
+    private static final ExecutorService DECOMPRESSORS = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("grep-decompressor-%d").build());
+
+    enum Format {
+        GZIP, ZIP
+    }
+
+    private final BlockingQueue<Block> freeBlocks = new ArrayBlockingQueue<>(BLOCKS_COUNT);
+    private final BlockingQueue<Block> filledBlocks = new LinkedBlockingQueue<>();
+    private final Future<?> decompression;
+
+    private Block current = null;
+    private int currentPosition = 0;
+    /**
+     * Block, that marks the start of the next entry or the end of the archive, and was already taken from the queue.
+     */
+    private Block nextEntryMarker = null;
+
+    ArchiveReader(final Path file, final Format format) {
+        for (int i = 0; i < BLOCKS_COUNT; i++) {
+            freeBlocks.add(new Block(new byte[BLOCK_SIZE], null, null));
+        }
+        decompression = DECOMPRESSORS.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    decompress(file, format);
+                    filledBlocks.add(new Block(null, null, null));
+                } catch (IOException e) {
+                    filledBlocks.add(new Block(null, null, e));
+                } catch (InterruptedException e) {
+                    // reading was closed
+                } catch (RuntimeException | Error e) {
+                    // for example, name of zip entry is not in UTF-8, the archive is skipped as unreadable file
+                    FileSystemException error = new FileSystemException(file.toString(), null,
+                            "Archive can not be read: " + e);
+                    error.initCause(e);
+                    filledBlocks.add(new Block(null, null, error));
+                }
+            }
+        });
+    }
+
+    /**
+     * @return format of the archive, or null, if file is not an archive
+     */
+    static Format detect(FileChannel channel) throws IOException {
+        ByteBuffer magic = ByteBuffer.allocate(4);
+        while (magic.hasRemaining() && channel.read(magic, magic.position()) > 0) {
+        }
+        magic.flip();
+        return detect(magic);
+    }
+
+    /**
+     * @param content first bytes of the file from absolute index {@code 0} to the limit
+     * @return format of the archive, or null, if file is not an archive
+     */
+    static Format detect(ByteBuffer content) {
+        int length = content.limit();
+        if (length >= 2 && (content.get(0) & 0xFF) == 0x1F && (content.get(1) & 0xFF) == 0x8B) {
+            return Format.GZIP;
+        }
+        if (length >= 4 && content.get(0) == 'P' && content.get(1) == 'K' && content.get(2) == 3 && content.get(3) == 4) {
+            return Format.ZIP;
+        }
+        return null;
+    }
+
+    /**
+     * Skips the rest of the current entry.
+     *
+     * @return name of the next entry, or null, if there are no more entries
+     */
+    String nextEntry() throws IOException {
+        while (nextEntryMarker == null) {
+            takeBlock();
+        }
+        Block marker = nextEntryMarker;
+        if (marker.error != null) {
+            throw marker.error;
+        }
+        if (marker.entryName != null) {
+            nextEntryMarker = null;
+        }
+        return marker.entryName;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        while (nextEntryMarker == null && (current == null || currentPosition == current.length)) {
+            takeBlock();
+        }
+        if (nextEntryMarker != null) {
+            return -1;
+        }
+        int count = Math.min(length, current.length - currentPosition);
+        System.arraycopy(current.bytes, currentPosition, bytes, offset, count);
+        currentPosition += count;
+        return count;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] oneByte = new byte[1];
+        return read(oneByte, 0, 1) == -1 ? -1 : oneByte[0] & 0xFF;
+    }
+
+    @Override
+    public void close() {
+        decompression.cancel(true);
+    }
+
+    private void takeBlock() throws IOException {
+        if (current != null) {
+            freeBlocks.add(current);
+            current = null;
+        }
+        Block block;
+        try {
+            block = filledBlocks.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        if (block.bytes == null) {
+            nextEntryMarker = block;
+        } else {
+            current = block;
+            currentPosition = 0;
+        }
+    }
+
+    private void decompress(Path file, Format format) throws IOException, InterruptedException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file), BLOCK_SIZE)) {
+            if (format == Format.GZIP) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(GZIP_SUFFIX)) {
+                    name = name.substring(0, name.length() - GZIP_SUFFIX.length());
+                }
+                filledBlocks.add(new Block(null, name, null));
+                pump(new GZIPInputStream(in, BLOCK_SIZE));
+            } else {
+                ZipInputStream zip = new ZipInputStream(in);
+                ZipEntry entry;
+                while ((entry = zip.getNextEntry()) != null) {
+                    if (!entry.isDirectory()) {
+                        filledBlocks.add(new Block(null, entry.getName(), null));
+                        pump(zip);
+                    }
+                }
+            }
+        }
+    }
+
+    private void pump(InputStream in) throws IOException, InterruptedException {
+        while (true) {
+            Block block = freeBlocks.take();
+            block.length = 0;
+            int read = 0;
+            while (block.length < block.bytes.length && (read = in.read(block.bytes, block.length, block.bytes.length - block.length)) != -1) {
+                block.length += read;
+            }
+            if (block.length > 0) {
+                filledBlocks.add(block);
+            } else {
+                freeBlocks.add(block);
+            }
+            if (read == -1) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Block of decompressed bytes, or marker of the start of the entry (if {@code entryName} is not null), or marker
+     * of the end of the archive.
+     */
+    private static class Block {
+
+        private final byte[] bytes;
+        private final String entryName;
+        private final IOException error;
+        private int length;
+
+        private Block(byte[] bytes, String entryName, IOException error) {
+            this.bytes = bytes;
+            this.entryName = entryName;
+            this.error = error;
+        }
+
+    }
+
+}
@@ -0,0 +1,309 @@
+package ru.ifmo.ctddev.polyarnyi.task1.grep;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writer, that encodes and writes characters to the stream by its own thread, so writing threads never wait for the
+ * terminal or pipe, while there is free space in the queue.
+ *
+ * Characters are collected to batches of {@link #BATCH_SIZE}, full batches are put to the queue, and the writing thread
+ * writes all queued batches at once and flushes the stream. Thread takes the space in the queue before it fills the
+ * batch, and waits for it without the lock, so other threads are not blocked by the slow stream, while they fill
+ * their batches, and the queue holds at most {@link #MAX_QUEUED_BATCHES} batches and the batch, that is filled.
+ * Strings of at most {@link #BATCH_SIZE} characters are added at once, longer strings are split to such parts, so
+ * they are not copied ahead of the stream, but parts of other threads can be written between them.
+ * {@link #flush()} does not wait for the stream: the last batch is taken by the writing thread, if it is not full
+ * for the flush latency, so flushed characters are written not later than in two flush latencies.
+ * {@link #close()} writes everything and closes the stream.
+ *
+ * @author Nickolay Polyarniy aka PolarNick
+ */
+class AsyncWriter extends Writer {
+
+    static final int BATCH_SIZE = 1 << 16;
+    static final int MAX_QUEUED_BATCHES = 64;
+
+    private final Writer out;
+    private final long flushLatencyMillis;
+    private final BlockingQueue<Batch> batches = new LinkedBlockingQueue<>();
+    /**
+     * Free space in the queue, that is taken by threads, which filled batches, and is returned, when batches are
+     * written.
+     */
+    private final Semaphore freeSpace = new Semaphore(MAX_QUEUED_BATCHES);
+    private final Thread writing;
+
+    private Batch batch = new Batch(BATCH_SIZE);
+    private boolean closed = false;
+    private volatile IOException failure;
+
+    /**
+     * @param flushLatencyMillis positive time, after which not full batch is written
+     */
+    AsyncWriter(OutputStream out, Charset charset, long flushLatencyMillis) {
+        this.out = new OutputStreamWriter(new BufferedOutputStream(out, BATCH_SIZE), charset);
+        this.flushLatencyMillis = flushLatencyMillis;
+        this.writing = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeBatches();
+            }
+        }, "AsyncWriter");
+        writing.setDaemon(true);
+        writing.start();
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length) throws IOException {
+        boolean reserved = false;
+        try {
+            while (length > 0) {
+                int part = Math.min(length, BATCH_SIZE);
+                synchronized (lock) {
+                    if (canAdd(part, reserved)) {
+                        int copied = Math.min(part, BATCH_SIZE - batch.length);
+                        System.arraycopy(chars, offset, batch.chars, batch.length, copied);
+                        if (added(copied)) {
+                            reserved = false;
+                            System.arraycopy(chars, offset + copied, batch.chars, 0, part - copied);
+                            added(part - copied);
+                        }
+                        offset += part;
+                        length -= part;
+                        continue;
+                    }
+                }
+                awaitFreeSpace();
+                reserved = true;
+            }
+        } finally {
+            if (reserved) {
+                freeSpace.release();
+            }
+        }
+    }
+
+    @Override
+    public void write(String string, int offset, int length) throws IOException {
+        boolean reserved = false;
+        try {
+            while (length > 0) {
+                int part = Math.min(length, BATCH_SIZE);
+                synchronized (lock) {
+                    if (canAdd(part, reserved)) {
+                        int copied = Math.min(part, BATCH_SIZE - batch.length);
+                        string.getChars(offset, offset + copied, batch.chars, batch.length);
+                        if (added(copied)) {
+                            reserved = false;
+                            string.getChars(offset + copied, offset + part, batch.chars, 0);
+                            added(part - copied);
+                        }
+                        offset += part;
+                        length -= part;
+                        continue;
+                    }
+                }
+                awaitFreeSpace();
+                reserved = true;
+            }
+        } finally {
+            if (reserved) {
+                freeSpace.release();
+            }
+        }
+    }
+
+    /**
+     * Must be called under the lock. If the part fills the batch, the space in the queue is needed for it: it is
+     * either reserved by this thread or taken now.
+     *
+     * @param part     characters, that are added at once, not more than {@link #BATCH_SIZE}
+     * @param reserved true, if this thread took the space in the queue
+     * @return false, if the part fills the batch, and there is no space for it in the queue
+     */
+    private boolean canAdd(int part, boolean reserved) throws IOException {
+        checkOpen();
+        return batch.length + part < BATCH_SIZE || reserved || freeSpace.tryAcquire();
+    }
+
+    /**
+     * @return true, if the batch was filled and put to the queue
+     */
+    private boolean added(int length) {
+        if (batch.length == 0) {
+            batch.started = System.currentTimeMillis();
+        }
+        batch.length += length;
+        if (batch.length < BATCH_SIZE) {
+            return false;
+        }
+        batches.add(batch);
+        batch = new Batch(BATCH_SIZE);
+        return true;
+    }
+
+    /**
+     * Characters are written by the writing thread within the flush latency.
+     */
+    @Override
+    public void flush() throws IOException {
+        synchronized (lock) {
+            checkOpen();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (batch.length > 0) {
+                batches.add(batch);
+            }
+            batch = null;
+            batches.add(Batch.END);
+        }
+        try {
+            writing.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Writer is closed!");
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Takes the space in the queue for one batch, must be called without lock.
+     */
+    private void awaitFreeSpace() throws IOException {
+        try {
+            while (!freeSpace.tryAcquire(flushLatencyMillis, TimeUnit.MILLISECONDS)) {
+                if (failure != null) {
+                    throw failure;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Batches are put to the queue under the lock, so batches, that were queued before the late batch, are taken
+     * together with it.
+     *
+     * @param queued list, where batches from the queue are added
+     * @return not empty batch, that was not full for the flush latency, or null
+     */
+    private Batch takeLateBatch(List<Batch> queued) {
+        synchronized (lock) {
+            if (batch == null || batch.length == 0) {
+                return null;
+            }
+            if (System.currentTimeMillis() - batch.started < flushLatencyMillis) {
+                return null;
+            }
+            batches.drainTo(queued);
+            Batch late = batch;
+            batch = new Batch(BATCH_SIZE);
+            return late;
+        }
+    }
+
+    private void writeBatches() {
+        List<Batch> taken = new ArrayList<>();
+        boolean ends = false;
+        try {
+            while (!ends) {
+                Batch late = null;
+                Batch first = batches.poll(flushLatencyMillis, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    taken.add(first);
+                    batches.drainTo(taken);
+                } else {
+                    late = takeLateBatch(taken);
+                    if (late == null) {
+                        continue;
+                    }
+                }
+                int queued = 0;
+                for (Batch batch : taken) {
+                    if (batch == Batch.END) {
+                        ends = true;
+                    } else {
+                        out.write(batch.chars, 0, batch.length);
+                        queued++;
+                    }
+                }
+                if (late != null) {
+                    out.write(late.chars, 0, late.length);
+                }
+                freeSpace.release(queued);
+                taken.clear();
+                out.flush();
+            }
+            out.close();
+        } catch (IOException e) {
+            failure = e;
+            if (!ends && !taken.contains(Batch.END)) {
+                // batches are still taken, so that writers are not blocked forever
+                drainAfterFailure();
+            }
+        } catch (InterruptedException e) {
+            failure = new InterruptedIOException();
+        }
+    }
+
+    private void drainAfterFailure() {
+        try {
+            while (batches.take() != Batch.END) {
+                freeSpace.release();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class Batch {
+
+        private static final Batch END = new Batch(0);
+
+        private final char[] chars;
+        /**
+         * Time of the first write to the batch.
+         */
+        private long started;
+        private int length = 0;
+
+        private Batch(int size) {
+            this.chars = new char[size];
+        }
+
+    }
+
+}
@@ -0,0 +1,518 @@
+package ru.ifmo.ctddev.polyarnyi.task1.grep;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Nondeterministic automaton over bytes, compiled from {@link Regex regular expressions} in several encodings by
+ * Thompson's construction, for {@link LazyDfa}. Each state either consumes one of its bytes, or splits to two states,
+ * or checks start or end of the line, or is the match of the pattern.
+ *
+ * Class of characters is compiled to bytes of each its character in the encoding: in single-byte encodings it is
+ * one set of bytes, and in UTF-8 it is split to ranges of code points, that have the same length and differ only in
+ * the last bytes, so each of them is a sequence of ranges of bytes. Line feed is not consumed by any state.
+ *
+ * @author Nickolay Polyarniy aka PolarNick
+ */
+class ByteNfa {
+
+    static final int NO_STATE = -1;
+
+    static final byte BYTES = 0;
+    static final byte SPLIT = 1;
+    static final byte LINE_START = 2;
+    static final byte LINE_END = 3;
+    static final byte MATCH = 4;
+
+    private static final int MAX_STATES = 1 << 20;
+    private static final int BYTES_COUNT = 256;
+    private static final int[] NO_BYTES = new int[0];
+    private static final int[] MAX_CODE_POINT_OF_UTF_8_LENGTH = {0x7F, 0x7FF, 0xFFFF, Character.MAX_CODE_POINT};
+
+    private final byte[] types;
+    /**
+     * Next state, or index of the pattern, if state is the match.
+     */
+    private final int[] out;
+    /**
+     * Second next state of the split.
+     */
+    private final int[] out2;
+    /**
+     * Sorted ranges of consumed bytes: {@code [from0, to0, from1, to1, ...]}.
+     */
+    private final int[][] ranges;
+    /**
+     * Bit sets of consumed bytes, four longs per state.
+     */
+    private final long[] consumed;
+    private final int start;
+    private final int patternsCount;
+
+    private ByteNfa(byte[] types, int[] out, int[] out2, int[][] ranges, int start, int patternsCount) {
+        this.types = types;
+        this.out = out;
+        this.out2 = out2;
+        this.ranges = ranges;
+        this.start = start;
+        this.patternsCount = patternsCount;
+        this.consumed = new long[4 * types.length];
+        for (int s = 0; s < types.length; s++) {
+            if (types[s] == BYTES) {
+                for (int i = 0; i < ranges[s].length; i += 2) {
+                    for (int b = ranges[s][i]; b <= ranges[s][i + 1]; b++) {
+                        consumed[4 * s + (b >>> 6)] |= 1L << b;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Compiles each pattern in each encoding: pattern {@code i} in encoding {@code e} is matched as pattern with
+     * index {@code i * encodings.size() + e}.
+     *
+     * @throws IllegalArgumentException if encoding is not single-byte or UTF-8, or automaton is too big
+     */
+    static ByteNfa compile(List<Regex> patterns, List<String> encodings) {
+        Builder builder = new Builder();
+        List<Integer> firstStates = new ArrayList<>();
+        for (int i = 0; i < patterns.size(); i++) {
+            for (int e = 0; e < encodings.size(); e++) {
+                builder.setEncoding(encodings.get(e));
+                firstStates.add(patterns.get(i).compile(builder, builder.addMatch(i * encodings.size() + e)));
+            }
+        }
+        Preconditions.checkArgument(!firstStates.isEmpty(), "There must be patterns!");
+        int start = firstStates.get(firstStates.size() - 1);
+        for (int k = firstStates.size() - 2; k >= 0; k--) {
+            start = builder.addSplit(firstStates.get(k), start);
+        }
+        return builder.build(start, firstStates.size());
+    }
+
+    int getStatesCount() {
+        return types.length;
+    }
+
+    int getPatternsCount() {
+        return patternsCount;
+    }
+
+    int getStart() {
+        return start;
+    }
+
+    byte getType(int state) {
+        return types[state];
+    }
+
+    /**
+     * @return next state, or index of the pattern, if state is the match
+     */
+    int getOut(int state) {
+        return out[state];
+    }
+
+    /**
+     * @return true, if state consumes unsigned byte {@code b}
+     */
+    boolean consumes(int state, int b) {
+        return (consumed[4 * state + (b >>> 6)] & (1L << b)) != 0;
+    }
+
+    long getSizeInBytes() {
+        long bytes = types.length + (out.length + out2.length) * 4L + consumed.length * 8L;
+        for (int[] range : ranges) {
+            bytes += range == null ? 0 : range.length * 4L;
+        }
+        return bytes;
+    }
+
+    /**
+     * Finds literal prefixes of the matches: each match of each pattern starts with one of them. Prefixes are
+     * extended by one byte at once, while there are at most {@code maxCount} of them, and each prefix is extended,
+     * until some pattern can end or line can end after it.
+     *
+     * @return unsigned bytes of the prefixes (empty prefix, if patterns can start with too many bytes)
+     */
+    List<int[]> findPrefixes(int maxCount, int maxLength) {
+        Closure closure = new Closure(this);
+        closure.clear();
+        closure.add(start, true, false);
+        List<int[]> prefixes = new ArrayList<>();
+        List<int[]> current = new ArrayList<>();
+        List<int[]> currentStates = new ArrayList<>();
+        current.add(NO_BYTES);
+        currentStates.add(closure.toSortedArray());
+        for (int length = 0; length < maxLength && !current.isEmpty(); length++) {
+            List<int[]> extended = new ArrayList<>();
+            List<int[]> extendedStates = new ArrayList<>();
+            List<int[]> ended = new ArrayList<>();
+            for (int k = 0; k < current.size() && prefixes.size() + ended.size() + extended.size() <= maxCount; k++) {
+                int[] states = currentStates.get(k);
+                if (canEnd(states)) {
+                    ended.add(current.get(k));
+                    continue;
+                }
+                for (int b = 0; b < BYTES_COUNT; b++) {
+                    closure.clear();
+                    for (int s : states) {
+                        if (types[s] == BYTES && consumes(s, b)) {
+                            closure.add(out[s], true, false);
+                        }
+                    }
+                    if (closure.size() > 0) {
+                        int[] prefix = Arrays.copyOf(current.get(k), length + 1);
+                        prefix[length] = b;
+                        extended.add(prefix);
+                        extendedStates.add(closure.toSortedArray());
+                    }
+                }
+            }
+            if (prefixes.size() + ended.size() + extended.size() > maxCount) {
+                break;
+            }
+            prefixes.addAll(ended);
+            current = extended;
+            currentStates = extendedStates;
+        }
+        prefixes.addAll(current);
+        return prefixes;
+    }
+
+    /**
+     * @return true, if some of the states is the match or the end of the line
+     */
+    private boolean canEnd(int[] states) {
+        for (int s : states) {
+            if (types[s] == MATCH || types[s] == LINE_END) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes automaton in format, that is read by {@link #read}.
+     */
+    void write(DataOutput output) throws IOException {
+        output.writeInt(types.length);
+        output.writeInt(start);
+        output.writeInt(patternsCount);
+        for (int s = 0; s < types.length; s++) {
+            output.writeByte(types[s]);
+            output.writeInt(out[s]);
+            output.writeInt(out2[s]);
+            if (types[s] == BYTES) {
+                output.writeShort(ranges[s].length);
+                for (int b : ranges[s]) {
+                    output.writeByte(b);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads automaton, written by {@link #write}, from the current position of the buffer, and moves position after
+     * it.
+     */
+    static ByteNfa read(ByteBuffer input) {
+        int count = input.getInt();
+        Preconditions.checkArgument(count >= 0 && count <= MAX_STATES, "Wrong count of states: %s!", count);
+        int start = input.getInt();
+        int patternsCount = input.getInt();
+        byte[] types = new byte[count];
+        int[] out = new int[count];
+        int[] out2 = new int[count];
+        int[][] ranges = new int[count][];
+        for (int s = 0; s < count; s++) {
+            types[s] = input.get();
+            out[s] = input.getInt();
+            out2[s] = input.getInt();
+            if (types[s] == BYTES) {
+                ranges[s] = new int[input.getShort()];
+                for (int i = 0; i < ranges[s].length; i++) {
+                    ranges[s][i] = input.get() & 0xFF;
+                }
+            }
+        }
+        return new ByteNfa(types, out, out2, ranges, start, patternsCount);
+    }
+
+    /**
+     * Set of states, that are reachable from the added ones without consuming bytes. Contains only states, that
+     * consume bytes, matches, and checks of the line, that were not passed.
+     */
+    static class Closure {
+
+        private final ByteNfa nfa;
+        private final int[] marks;
+        private int mark = 0;
+        private final int[] stack;
+        private final int[] states;
+        private int size = 0;
+
+        Closure(ByteNfa nfa) {
+            this.nfa = nfa;
+            this.marks = new int[nfa.types.length];
+            this.stack = new int[nfa.types.length];
+            this.states = new int[nfa.types.length];
+        }
+
+        void clear() {
+            if (++mark == Integer.MAX_VALUE) {
+                Arrays.fill(marks, 0);
+                mark = 1;
+            }
+            size = 0;
+        }
+
+        /**
+         * @param lineStart true, if start of the line is passed (state is at the start of the line)
+         * @param lineEnd   true, if end of the line is passed (next byte ends the line)
+         */
+        void add(int state, boolean lineStart, boolean lineEnd) {
+            int top = push(state, 0);
+            while (top > 0) {
+                int s = stack[--top];
+                switch (nfa.types[s]) {
+                    case SPLIT:
+                        top = push(nfa.out[s], top);
+                        top = push(nfa.out2[s], top);
+                        break;
+                    case LINE_START:
+                        if (lineStart) {
+                            top = push(nfa.out[s], top);
+                        }
+                        break;
+                    case LINE_END:
+                        if (lineEnd) {
+                            top = push(nfa.out[s], top);
+                        } else {
+                            states[size++] = s;
+                        }
+                        break;
+                    default:
+                        states[size++] = s;
+                }
+            }
+        }
+
+        /**
+         * @return new size of the stack
+         */
+        private int push(int state, int top) {
+            if (marks[state] != mark) {
+                marks[state] = mark;
+                stack[top++] = state;
+            }
+            return top;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int get(int index) {
+            return states[index];
+        }
+
+        int[] toSortedArray() {
+            int[] result = Arrays.copyOf(states, size);
+            Arrays.sort(result);
+            return result;
+        }
+
+    }
+
+    /**
+     * Adds states of the automaton, each state is added after its next states.
+     */
+    static class Builder {
+
+        private static final int INITIAL_CAPACITY = 64;
+
+        private byte[] types = new byte[INITIAL_CAPACITY];
+        private int[] out = new int[INITIAL_CAPACITY];
+        private int[] out2 = new int[INITIAL_CAPACITY];
+        private int[][] ranges = new int[INITIAL_CAPACITY][];
+        private int count = 0;
+        private boolean utf8;
+        /**
+         * Code point of each byte of the single-byte encoding, or {@code -1}, if byte is not a character.
+         */
+        private final int[] decoded = new int[BYTES_COUNT];
+
+        /**
+         * Sets encoding of the added characters.
+         */
+        void setEncoding(String encoding) {
+            Charset charset = Charset.forName(encoding);
+            utf8 = charset.equals(Charsets.UTF_8);
+            if (utf8) {
+                return;
+            }
+            if (charset.newEncoder().maxBytesPerChar() != 1) {
+                throw new IllegalArgumentException("Regular expressions are not supported in encoding "
+                        + encoding + "!");
+            }
+            CharsetDecoder decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT);
+            for (int b = 0; b < BYTES_COUNT; b++) {
+                try {
+                    String character = decoder.decode(ByteBuffer.wrap(new byte[]{(byte) b})).toString();
+                    decoded[b] = character.length() == 1 ? character.charAt(0) : -1;
+                } catch (CharacterCodingException e) {
+                    decoded[b] = -1;
+                }
+            }
+        }
+
+        /**
+         * Adds states, that consume any of the characters in the current encoding.
+         *
+         * @param characters sorted ranges of code points
+         * @return first state
+         */
+        int addCharacters(int[] characters, int next) {
+            if (!utf8) {
+                List<int[]> bytes = new ArrayList<>();
+                for (int b = 0; b < BYTES_COUNT; b++) {
+                    if (b != Regex.LINE_FEED && decoded[b] >= 0 && contains(characters, decoded[b])) {
+                        bytes.add(new int[]{b, b});
+                    }
+                }
+                return addBytes(Regex.union(bytes), next);
+            }
+            List<int[][]> sequences = new ArrayList<>();
+            for (int i = 0; i < characters.length; i += 2) {
+                // surrogates and line feed are not encoded
+                splitUtf8(characters[i], Math.min(characters[i + 1], Character.MIN_SURROGATE - 1), sequences);
+                splitUtf8(Math.max(characters[i], Character.MAX_SURROGATE + 1), characters[i + 1], sequences);
+            }
+            if (sequences.isEmpty()) {
+                return addBytes(NO_BYTES, next);
+            }
+            int first = NO_STATE;
+            for (int k = sequences.size() - 1; k >= 0; k--) {
+                int[][] sequence = sequences.get(k);
+                int state = next;
+                for (int i = sequence.length - 1; i >= 0; i--) {
+                    state = addBytes(sequence[i], state);
+                }
+                first = first == NO_STATE ? state : addSplit(state, first);
+            }
+            return first;
+        }
+
+        private static boolean contains(int[] characters, int c) {
+            int index = Arrays.binarySearch(characters, c);
+            // c is inside the range, if insertion point is after its start
+            return index >= 0 || (-index - 1) % 2 == 1;
+        }
+
+        /**
+         * Splits code points from {@code from} to {@code to} to sequences of ranges of UTF-8 bytes.
+         */
+        private static void splitUtf8(int from, int to, List<int[][]> sequences) {
+            if (from <= Regex.LINE_FEED && Regex.LINE_FEED <= to) {
+                splitUtf8(from, Regex.LINE_FEED - 1, sequences);
+                splitUtf8(Regex.LINE_FEED + 1, to, sequences);
+                return;
+            }
+            if (from > to) {
+                return;
+            }
+            for (int max : MAX_CODE_POINT_OF_UTF_8_LENGTH) {
+                if (from <= max && max < to) {
+                    splitUtf8(from, max, sequences);
+                    splitUtf8(max + 1, to, sequences);
+                    return;
+                }
+            }
+            byte[] first = new String(Character.toChars(from)).getBytes(Charsets.UTF_8);
+            byte[] last = new String(Character.toChars(to)).getBytes(Charsets.UTF_8);
+            for (int i = 1; i < first.length; i++) {
+                int mask = (1 << (6 * i)) - 1;
+                if ((from & ~mask) != (to & ~mask)) {
+                    if ((from & mask) != 0) {
+                        splitUtf8(from, from | mask, sequences);
+                        splitUtf8((from | mask) + 1, to, sequences);
+                        return;
+                    }
+                    if ((to & mask) != mask) {
+                        splitUtf8(from, (to & ~mask) - 1, sequences);
+                        splitUtf8(to & ~mask, to, sequences);
+                        return;
+                    }
+                }
+            }
+            int[][] sequence = new int[first.length][];
+            for (int i = 0; i < first.length; i++) {
+                sequence[i] = new int[]{first[i] & 0xFF, last[i] & 0xFF};
+            }
+            sequences.add(sequence);
+        }
+
+        int addBytes(int[] bytes, int next) {
+            return add(BYTES, next, NO_STATE, bytes);
+        }
+
+        int addSplit(int first, int second) {
+            return add(SPLIT, first, second, null);
+        }
+
+        int addLineStart(int next) {
+            return add(LINE_START, next, NO_STATE, null);
+        }
+
+        int addLineEnd(int next) {
+            return add(LINE_END, next, NO_STATE, null);
+        }
+
+        int addMatch(int patternIndex) {
+            return add(MATCH, patternIndex, NO_STATE, null);
+        }
+
+        void setOut(int state, int next) {
+            out[state] = next;
+        }
+
+        private int add(byte type, int next, int next2, int[] bytes) {
+            if (count == types.length) {
+                if (count == MAX_STATES) {
+                    throw new IllegalArgumentException("Regular expressions are too big!");
+                }
+                int capacity = Math.min(MAX_STATES, 2 * count);
+                types = Arrays.copyOf(types, capacity);
+                out = Arrays.copyOf(out, capacity);
+                out2 = Arrays.copyOf(out2, capacity);
+                ranges = Arrays.copyOf(ranges, capacity);
+            }
+            types[count] = type;
+            out[count] = next;
+            out2[count] = next2;
+            ranges[count] = bytes;
+            return count++;
+        }
+
+        private ByteNfa build(int start, int patternsCount) {
+            return new ByteNfa(Arrays.copyOf(types, count), Arrays.copyOf(out, count), Arrays.copyOf(out2, count),
+                    Arrays.copyOf(ranges, count), start, patternsCount);
+        }
+
+    }
+
+}
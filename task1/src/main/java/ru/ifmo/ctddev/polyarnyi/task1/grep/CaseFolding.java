@@ -0,0 +1,306 @@
+package ru.ifmo.ctddev.polyarnyi.task1.grep;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Case folding of the encoded text, that keeps its length: bytes of upper and lower case of the same letter are
+ * replaced by the same bytes, so folded patterns can be found in the folded text by case-sensitive automaton.
+ *
+ * In single-byte encodings each byte is folded to the byte of the lower case of its character, so folding is just
+ * a map of bytes. In UTF-8 upper and lower case of two-byte characters can have different leading bytes (for example,
+ * {@code "Р"} is {@code D0 A0} and {@code "р"} is {@code D1 80}), so leading bytes, that are linked by case, are
+ * replaced by the same byte, and the continuation byte is folded depending on the previous (leading) byte: it becomes
+ * the continuation byte of the lower case, moved by {@link #SECOND_LEADING_BYTE_SHIFT} if the lower case starts with
+ * the second byte of the linked pair. Moved bytes are not continuation bytes, so they do not clash with others.
+ *
+ * Foldings of several encodings can be joined for the given patterns by {@link #linkCases}: bytes, that can be at
+ * the same position of the text, that is folded as the pattern in some encoding, are linked to the same class, so
+ * one automaton over classes finds candidates in all encodings, which are checked by {@link #matches}.
+ *
+ * @author Nickolay Polyarniy aka PolarNick
+ */
+class CaseFolding {
+
+    private static final int BYTES_COUNT = 256;
+    private static final int CONTINUATION_BITS = 6;
+    private static final int CONTINUATION_BYTES = 1 << CONTINUATION_BITS;
+    private static final int MIN_CONTINUATION_BYTE = 0x80;
+    private static final int MIN_TWO_BYTES_LEADING_BYTE = 0xC0;
+    private static final int MAX_TWO_BYTES_LEADING_BYTE = 0xDF;
+    private static final int MIN_TWO_BYTES_CODE_POINT = 0x80;
+    private static final int MAX_TWO_BYTES_CODE_POINT = 0x7FF;
+    private static final int SECOND_LEADING_BYTE_SHIFT = 0x40;
+    private static final String UTF_8 = "UTF-8";
+
+    /**
+     * Folded byte for each byte, or for UTF-8 - for each byte, except the continuation bytes of the two-byte
+     * characters.
+     */
+    private final int[] byteFolding;
+    /**
+     * Folded continuation byte {@code c} after leading byte {@code l} is
+     * {@code continuationFolding[(l - MIN_TWO_BYTES_LEADING_BYTE) * CONTINUATION_BYTES + c - MIN_CONTINUATION_BYTE]},
+     * or null, if folding does not depend on the previous byte.
+     */
+    private final int[] continuationFolding;
+    /**
+     * Bytes, that are folded to each byte regardless of the previous byte.
+     */
+    private final int[][] byteUnfolding;
+    /**
+     * Continuation bytes, that are folded to each byte after some leading byte, as {@code leading << 8 | continuation},
+     * or null, if folding does not depend on the previous byte.
+     */
+    private final int[][] continuationUnfolding;
+
+    private CaseFolding(int[] byteFolding, int[] continuationFolding) {
+        this.byteFolding = byteFolding;
+        this.continuationFolding = continuationFolding;
+        List<List<Integer>> byteUnfolding = newLists();
+        for (int b = 0; b < BYTES_COUNT; b++) {
+            byteUnfolding.get(byteFolding[b]).add(b);
+        }
+        this.byteUnfolding = toArrays(byteUnfolding);
+        if (continuationFolding == null) {
+            this.continuationUnfolding = null;
+        } else {
+            List<List<Integer>> continuationUnfolding = newLists();
+            for (int i = 0; i < continuationFolding.length; i++) {
+                int leading = MIN_TWO_BYTES_LEADING_BYTE + i / CONTINUATION_BYTES;
+                int continuation = MIN_CONTINUATION_BYTE + i % CONTINUATION_BYTES;
+                continuationUnfolding.get(continuationFolding[i]).add(leading << 8 | continuation);
+            }
+            this.continuationUnfolding = toArrays(continuationUnfolding);
+        }
+    }
+
+    private static List<List<Integer>> newLists() {
+        List<List<Integer>> lists = new ArrayList<>(BYTES_COUNT);
+        for (int b = 0; b < BYTES_COUNT; b++) {
+            lists.add(new ArrayList<Integer>());
+        }
+        return lists;
+    }
+
+    private static int[][] toArrays(List<List<Integer>> lists) {
+        int[][] arrays = new int[lists.size()][];
+        for (int i = 0; i < arrays.length; i++) {
+            arrays[i] = new int[lists.get(i).size()];
+            for (int k = 0; k < arrays[i].length; k++) {
+                arrays[i][k] = lists.get(i).get(k);
+            }
+        }
+        return arrays;
+    }
+
+    /**
+     * @return folding of the single-byte encoding or UTF-8
+     */
+    static CaseFolding forEncoding(String encoding) {
+        Charset charset = Charset.forName(encoding);
+        if (charset.equals(Charset.forName(UTF_8))) {
+            return forUtf8();
+        }
+        if (charset.newEncoder().maxBytesPerChar() != 1) {
+            throw new IllegalArgumentException("Case folding is not supported for encoding " + encoding + "!");
+        }
+        int[] byteFolding = new int[BYTES_COUNT];
+        for (int b = 0; b < BYTES_COUNT; b++) {
+            byteFolding[b] = b;
+            String character = new String(new byte[]{(byte) b}, charset);
+            if (character.length() == 1) {
+                char lowerCase = Character.toLowerCase(character.charAt(0));
+                if (charset.newEncoder().canEncode(lowerCase)) {
+                    byteFolding[b] = String.valueOf(lowerCase).getBytes(charset)[0] & 0xFF;
+                }
+            }
+        }
+        return new CaseFolding(byteFolding, null);
+    }
+
+    private static CaseFolding forUtf8() {
+        int[] byteFolding = new int[BYTES_COUNT];
+        for (int b = 0; b < BYTES_COUNT; b++) {
+            byteFolding[b] = b < MIN_CONTINUATION_BYTE ? Character.toLowerCase(b) : b;
+        }
+        // leading bytes are linked in pairs, if lower case of some character starts with another leading byte
+        int[] linked = new int[BYTES_COUNT];
+        Arrays.fill(linked, -1);
+        for (int codePoint = MIN_TWO_BYTES_CODE_POINT; codePoint <= MAX_TWO_BYTES_CODE_POINT; codePoint++) {
+            int lowerCase = Character.toLowerCase(codePoint);
+            int leading = leadingByte(codePoint);
+            int lowerCaseLeading = leadingByte(lowerCase);
+            if (isTwoBytes(lowerCase) && leading != lowerCaseLeading && linked[leading] == -1
+                    && linked[lowerCaseLeading] == -1) {
+                linked[leading] = lowerCaseLeading;
+                linked[lowerCaseLeading] = leading;
+            }
+        }
+        for (int leading = MIN_TWO_BYTES_LEADING_BYTE; leading <= MAX_TWO_BYTES_LEADING_BYTE; leading++) {
+            byteFolding[leading] = linked[leading] == -1 ? leading : Math.min(leading, linked[leading]);
+        }
+        int[] continuationFolding = new int[(MAX_TWO_BYTES_LEADING_BYTE - MIN_TWO_BYTES_LEADING_BYTE + 1) * CONTINUATION_BYTES];
+        for (int i = 0; i < continuationFolding.length; i++) {
+            // overlong encodings are not folded
+            continuationFolding[i] = MIN_CONTINUATION_BYTE + i % CONTINUATION_BYTES;
+        }
+        for (int codePoint = MIN_TWO_BYTES_CODE_POINT; codePoint <= MAX_TWO_BYTES_CODE_POINT; codePoint++) {
+            int leading = leadingByte(codePoint);
+            int folded = Character.toLowerCase(codePoint);
+            if (!isTwoBytes(folded) || leadingByte(folded) != leading && leadingByte(folded) != linked[leading]) {
+                folded = codePoint;
+            }
+            int continuation = continuationByte(folded);
+            if (leadingByte(folded) != byteFolding[leading]) {
+                continuation += SECOND_LEADING_BYTE_SHIFT;
+            }
+            continuationFolding[(leading - MIN_TWO_BYTES_LEADING_BYTE) * CONTINUATION_BYTES
+                    + continuationByte(codePoint) - MIN_CONTINUATION_BYTE] = continuation;
+        }
+        return new CaseFolding(byteFolding, continuationFolding);
+    }
+
+    private static boolean isTwoBytes(int codePoint) {
+        return MIN_TWO_BYTES_CODE_POINT <= codePoint && codePoint <= MAX_TWO_BYTES_CODE_POINT;
+    }
+
+    private static int leadingByte(int twoBytesCodePoint) {
+        return MIN_TWO_BYTES_LEADING_BYTE | (twoBytesCodePoint >>> CONTINUATION_BITS);
+    }
+
+    private static int continuationByte(int twoBytesCodePoint) {
+        return MIN_CONTINUATION_BYTE | (twoBytesCodePoint & (CONTINUATION_BYTES - 1));
+    }
+
+    /**
+     * @return true, if folding of each byte does not depend on the previous byte, so it is just a map of bytes
+     */
+    boolean isContextFree() {
+        return continuationFolding == null;
+    }
+
+    /**
+     * @return folded byte for each byte, if folding {@link #isContextFree() is context free}
+     */
+    int[] getByteFolding() {
+        return byteFolding;
+    }
+
+    int fold(int previousByte, int b) {
+        if (continuationFolding != null && MIN_TWO_BYTES_LEADING_BYTE <= previousByte
+                && previousByte <= MAX_TWO_BYTES_LEADING_BYTE && (b & 0xC0) == MIN_CONTINUATION_BYTE) {
+            return continuationFolding[(previousByte - MIN_TWO_BYTES_LEADING_BYTE) * CONTINUATION_BYTES
+                    + b - MIN_CONTINUATION_BYTE];
+        }
+        return byteFolding[b];
+    }
+
+    int[] fold(byte[] bytes) {
+        int[] folded = new int[bytes.length];
+        int previousByte = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            folded[i] = fold(previousByte, bytes[i] & 0xFF);
+            previousByte = bytes[i] & 0xFF;
+        }
+        return folded;
+    }
+
+    /**
+     * Folds {@code length} bytes of the text, starting from {@code offset}, to the beginning of the target.
+     *
+     * @param previousByte byte before the folded bytes, or {@code 0} at the beginning of the text
+     */
+    void fold(ByteBuffer text, int offset, int length, int previousByte, byte[] target) {
+        for (int i = 0; i < length; i++) {
+            int b = text.get(offset + i) & 0xFF;
+            target[i] = (byte) fold(previousByte, b);
+            previousByte = b;
+        }
+    }
+
+    /**
+     * @param previousByte byte before the bytes of the text, or {@code 0} at the beginning of the text
+     * @return true, if bytes of the text, starting from {@code offset}, are folded to the folded pattern
+     */
+    boolean matches(int[] foldedPattern, byte[] text, int offset, int previousByte) {
+        for (int i = 0; i < foldedPattern.length; i++) {
+            int b = text[offset + i] & 0xFF;
+            if (fold(previousByte, b) != foldedPattern[i]) {
+                return false;
+            }
+            previousByte = b;
+        }
+        return true;
+    }
+
+    /**
+     * @return classes of bytes, where each byte is alone, for {@link #linkCases}
+     */
+    static int[] newClasses() {
+        int[] classes = new int[BYTES_COUNT];
+        for (int b = 0; b < BYTES_COUNT; b++) {
+            classes[b] = b;
+        }
+        return classes;
+    }
+
+    /**
+     * Links in the classes each byte of the pattern with all bytes, that can be at the same position of the text,
+     * that is folded to the same bytes, as the pattern. Only bytes of the patterns are linked, so classes of
+     * several encodings stay small, even though each of them folds different bytes.
+     *
+     * @param classes disjoint sets of bytes, where each byte refers to another byte of its class or to itself
+     */
+    void linkCases(byte[] pattern, int[] classes) {
+        int[] folded = fold(pattern);
+        boolean[] previous = null;
+        for (int i = 0; i < folded.length; i++) {
+            boolean[] current = new boolean[BYTES_COUNT];
+            int b = pattern[i] & 0xFF;
+            for (int other : byteUnfolding[folded[i]]) {
+                current[other] = true;
+                link(classes, b, other);
+            }
+            if (continuationUnfolding != null) {
+                for (int pair : continuationUnfolding[folded[i]]) {
+                    // the first byte of the pattern can follow any byte of the text
+                    if (previous == null || previous[pair >>> 8]) {
+                        current[pair & 0xFF] = true;
+                        link(classes, b, pair & 0xFF);
+                    }
+                }
+            }
+            previous = current;
+        }
+    }
+
+    /**
+     * @return folding of each byte to the least byte of its class
+     */
+    static int[] toFolding(int[] classes) {
+        int[] folding = new int[BYTES_COUNT];
+        for (int b = 0; b < BYTES_COUNT; b++) {
+            folding[b] = classOf(classes, b);
+        }
+        return folding;
+    }
+
+    private static int classOf(int[] classes, int b) {
+        while (classes[b] != b) {
+            classes[b] = classes[classes[b]];
+            b = classes[b];
+        }
+        return b;
+    }
+
+    private static void link(int[] classes, int a, int b) {
+        a = classOf(classes, a);
+        b = classOf(classes, b);
+        classes[Math.max(a, b)] = Math.min(a, b);
+    }
+
+}
@@ -0,0 +1,162 @@
+package ru.ifmo.ctddev.polyarnyi.task1.grep;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes found lines of one file together with lines before and after them in format {@code "path(lineNumber)- line"},
+ * where line is cut to first {@link FileScanner#MAX_SIZE_OF_MESSAGE} bytes. Groups of lines, that are not adjacent,
+ * are separated by {@link #GROUPS_SEPARATOR}.
+ *
+ * Scan does not track lines for the context: they are read from the file by the offsets of found lines, when found
+ * lines are written, so only bytes near the found lines are read again. Lines after the found line are written only
+ * when the next found line or the end of the file is reached, because they can be found lines themselves.
+ *
+ * @author Nickolay Polyarniy aka PolarNick
+ */
+class ContextLines {
+
+    static final String GROUPS_SEPARATOR = "--";
+    private static final int BLOCK_SIZE = 1 << 12;
+
+    private final FileChannel channel;
+    private final long size;
+    private final String fileName;
+    private final int before;
+    private final int after;
+
+    private final ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+    private long blockOffset = -1;
+
+    /**
+     * Number of the last written line, or {@code 0}, if nothing was written.
+     */
+    private long lastWrittenLine = 0;
+    /**
+     * Offset of the line after the last written line.
+     */
+    private long nextLineOffset = 0;
+    /**
+     * Number of the last line of the context after the last found line.
+     */
+    private long afterUntilLine = 0;
+    private String encoding;
+
+    /**
+     * @param before number of lines to write before each found line
+     * @param after  number of lines to write after each found line
+     */
+    ContextLines(FileChannel channel, String fileName, int before, int after) throws IOException {
+        this.channel = channel;
+        this.size = channel.size();
+        this.fileName = fileName;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * Writes the context before the found line, the line itself and the context after the previous found line, that
+     * goes before it.
+     *
+     * @param firstLineNumber number of the first line of the scanned part of the file
+     */
+    void write(FoundLine line, Writer out, long firstLineNumber) throws IOException {
+        long lineNumber = line.getLineNumber(firstLineNumber);
+        if (lineNumber == lastWrittenLine) {
+            // another pattern in the same line
+            line.write(out, fileName, firstLineNumber);
+            return;
+        }
+        writeAfter(Math.min(afterUntilLine, lineNumber - 1), out);
+
+        long lineStart = lineStart(line.getEndOffset());
+        long first = Math.max(lastWrittenLine + 1, lineNumber - before);
+        long[] starts = new long[(int) (lineNumber - first)];
+        long start = lineStart;
+        for (int i = starts.length - 1; i >= 0; i--) {
+            start = lineStart(start - 1);
+            starts[i] = start;
+        }
+        if (lastWrittenLine > 0 && first > lastWrittenLine + 1) {
+            out.write(GROUPS_SEPARATOR + System.lineSeparator());
+        }
+        encoding = line.getEncoding();
+        for (int i = 0; i < starts.length; i++) {
+            writeLine(out, first + i, starts[i]);
+        }
+        line.write(out, fileName, firstLineNumber);
+        lastWrittenLine = lineNumber;
+        afterUntilLine = lineNumber + after;
+        nextLineOffset = after > 0 ? lineEnd(line.getEndOffset()) + 1 : -1;
+    }
+
+    /**
+     * Writes the context after the last found line.
+     */
+    void finish(Writer out) throws IOException {
+        writeAfter(afterUntilLine, out);
+        out.flush();
+    }
+
+    private void writeAfter(long untilLine, Writer out) throws IOException {
+        while (lastWrittenLine < untilLine && nextLineOffset < size) {
+            nextLineOffset = writeLine(out, lastWrittenLine + 1, nextLineOffset) + 1;
+            lastWrittenLine++;
+        }
+    }
+
+    /**
+     * @return offset of the end of the written line
+     */
+    private long writeLine(Writer out, long lineNumber, long start) throws IOException {
+        long end = lineEnd(start);
+        long contentEnd = end > start && byteAt(end - 1) == '\r' ? end - 1 : end;
+        int length = (int) Math.min(contentEnd - start, FileScanner.MAX_SIZE_OF_MESSAGE);
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = byteAt(start + i);
+        }
+        out.write(fileName);
+        out.write('(');
+        out.write(Long.toString(lineNumber));
+        out.write(")- ");
+        out.write(new String(bytes, encoding));
+        out.write(contentEnd - start > length ? "..." + System.lineSeparator() : System.lineSeparator());
+        return end;
+    }
+
+    /**
+     * @return offset of the first byte of the line, that contains byte at given offset
+     */
+    private long lineStart(long offset) throws IOException {
+        while (offset > 0 && byteAt(offset - 1) != '\n') {
+            offset--;
+        }
+        return Math.max(0, offset);
+    }
+
+    /**
+     * @return offset of the line break, that ends the line, that contains byte at given offset, or size of the file
+     */
+    private long lineEnd(long offset) throws IOException {
+        while (offset < size && byteAt(offset) != '\n') {
+            offset++;
+        }
+        return offset;
+    }
+
+    private byte byteAt(long offset) throws IOException {
+        if (blockOffset == -1 || offset < blockOffset || offset >= blockOffset + block.limit()) {
+            blockOffset = offset - offset % BLOCK_SIZE;
+            block.clear();
+            while (block.hasRemaining() && channel.read(block, blockOffset + block.position()) > 0) {
+            }
+            block.flip();
+        }
+        // file could be truncated since it was scanned
+        return offset - blockOffset < block.limit() ? block.get((int) (offset - blockOffset)) : (byte) '\n';
+    }
+
+}
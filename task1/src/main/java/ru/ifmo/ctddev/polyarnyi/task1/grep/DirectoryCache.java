@@ -0,0 +1,98 @@
+package ru.ifmo.ctddev.polyarnyi.task1.grep;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.FileVisitor;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Listings of the directories, that are reused while modification time of the directory is not changed, so the walk
+ * of the same tree reads only attributes of its entries.
+ *
+ * Directory can be changed again within the resolution of its modification time, so listings of the directories,
+ * that were modified less than {@link #RACY_INTERVAL_MILLIS} ago, are not cached.
+ *
+ * @author Nickolay Polyarniy aka PolarNick
+ */
+class DirectoryCache {
+
+    private static final long RACY_INTERVAL_MILLIS = 2000;
+
+    private final Map<Path, Listing> listings = new HashMap<>();
+
+    /**
+     * Walks the tree as {@link java.nio.file.Files#walkFileTree(Path, FileVisitor)} does without following links, but
+     * only {@link FileVisitor#visitFile} is called. Entries of each directory are walked in order of their names, and
+     * entries, that were removed or can not be read, are skipped.
+     */
+    void walk(Path root, FileVisitor<Path> visitor) throws IOException {
+        walk(root, Files.readAttributes(root, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS), visitor);
+    }
+
+    private FileVisitResult walk(Path path, BasicFileAttributes attr, FileVisitor<Path> visitor) throws IOException {
+        if (!attr.isDirectory()) {
+            return visitor.visitFile(path, attr);
+        }
+        List<Path> children;
+        try {
+            children = list(path, attr.lastModifiedTime());
+        } catch (IOException e) {
+            return FileVisitResult.CONTINUE;
+        }
+        for (Path child : children) {
+            BasicFileAttributes childAttr;
+            try {
+                childAttr = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (IOException e) {
+                continue;
+            }
+            if (walk(child, childAttr, visitor) == FileVisitResult.TERMINATE) {
+                return FileVisitResult.TERMINATE;
+            }
+        }
+        return FileVisitResult.CONTINUE;
+    }
+
+    private List<Path> list(Path directory, FileTime modified) throws IOException {
+        Listing cached = listings.get(directory);
+        if (cached != null && cached.modified.equals(modified)) {
+            return cached.children;
+        }
+        List<Path> children = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path child : stream) {
+                children.add(child);
+            }
+        }
+        Collections.sort(children);
+        if (System.currentTimeMillis() - modified.toMillis() > RACY_INTERVAL_MILLIS) {
+            listings.put(directory, new Listing(modified, children));
+        } else {
+            listings.remove(directory);
+        }
+        return children;
+    }
+
+    private static class Listing {
+
+        private final FileTime modified;
+        private final List<Path> children;
+
+        private Listing(FileTime modified, List<Path> children) {
+            this.modified = modified;
+            this.children = children;
+        }
+
+    }
+
+}
@@ -0,0 +1,143 @@
+package ru.ifmo.ctddev.polyarnyi.task1.grep;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.nio.ByteBuffer;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Results of the scanned contents, that are replayed for the files with the same content instead of their scan.
+ * Content is identified by the file (device and inode of hard links, if file system has them) with its size and
+ * modification time, so the same file is not even read again, and, if the file is small, by the size and 128-bit
+ * hash of the whole content, so the copies are read, but are not scanned. Copies of big files are scanned, because
+ * their hash would take the same reading.
+ *
+ * Result is found lines with offsets of found patterns (they do not depend on the path of the file) and the number
+ * of found patterns. Results are kept, until they take about {@link #MAX_CACHED_BYTES}, then only already cached
+ * contents are replayed. Cache can be shared between scanning threads.
+ *
+ * @author Nickolay Polyarniy aka PolarNick
+ */
+class DuplicateContents {
+
+    static final int MAX_LINES_PER_RESULT = 1 << 14;
+    private static final long MAX_CACHED_BYTES = 64L << 20;
+    private static final long RACY_INTERVAL_MILLIS = 2000;
+    private static final int RESULT_OVERHEAD_BYTES = 64;
+    private static final int LINE_OVERHEAD_BYTES = 64;
+    private static final int HASHED_BLOCK_SIZE = 1 << 16;
+
+    private static final ThreadLocal<byte[]> BLOCKS = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[HASHED_BLOCK_SIZE];
+        }
+    };
+
+    private final ConcurrentMap<List<Object>, Result> results = new ConcurrentHashMap<>();
+    private final AtomicLong cachedBytes = new AtomicLong();
+
+    /**
+     * File can be changed again within the resolution of its modification time, so files, that were modified
+     * recently, are identified only by their content.
+     *
+     * @return key of the file, that does not change while the file is not changed, or null, if files can not be
+     * identified by the file system or the file was modified recently
+     */
+    static List<Object> fileKey(BasicFileAttributes attr) {
+        Object fileKey = attr.fileKey();
+        long lastModified = attr.lastModifiedTime().toMillis();
+        if (fileKey == null || System.currentTimeMillis() - lastModified < RACY_INTERVAL_MILLIS) {
+            return null;
+        }
+        return Arrays.<Object>asList(fileKey, attr.size(), lastModified);
+    }
+
+    /**
+     * @param content whole content of the file from absolute index {@code 0} to the limit
+     * @return key of the content
+     */
+    static List<Object> contentKey(ByteBuffer content) {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        byte[] block = BLOCKS.get();
+        for (int from = 0; from < content.limit(); from += block.length) {
+            int length = Math.min(block.length, content.limit() - from);
+            for (int i = 0; i < length; i++) {
+                block[i] = content.get(from + i);
+            }
+            hasher.putBytes(block, 0, length);
+        }
+        return Arrays.<Object>asList((long) content.limit(), hasher.hash());
+    }
+
+    /**
+     * @param key key of the file or of the content, or null
+     * @return result of the same content, or null, if it was not scanned yet
+     */
+    Result get(List<Object> key) {
+        return key == null ? null : results.get(key);
+    }
+
+    /**
+     * Remembers the result of the content for the key of the file (if it is not null) and for the key of the
+     * content, if it has at most {@link #MAX_LINES_PER_RESULT} found lines and fits to the cache.
+     */
+    void put(Result result, List<Object> fileKey, List<Object> contentKey) {
+        if (result.foundLines.size() > MAX_LINES_PER_RESULT) {
+            return;
+        }
+        long size = RESULT_OVERHEAD_BYTES
+                + (long) result.foundLines.size() * (LINE_OVERHEAD_BYTES + FileScanner.MAX_SIZE_OF_MESSAGE);
+        for (List<Object> key : Arrays.asList(fileKey, contentKey)) {
+            if (key == null) {
+                continue;
+            }
+            // size is reserved before the result is added, so concurrent puts do not overfill the cache
+            if (cachedBytes.addAndGet(size) > MAX_CACHED_BYTES || results.putIfAbsent(key, result) != null) {
+                cachedBytes.addAndGet(-size);
+            }
+        }
+    }
+
+    /**
+     * Result of the scan of one content.
+     */
+    static class Result {
+
+        private final long foundCount;
+        private final List<FoundLine> foundLines;
+        private final Map<String, Long> matchesByEncoding;
+
+        /**
+         * @param foundLines        found lines in order of their offsets
+         * @param matchesByEncoding number of found patterns in each encoding, if scan was measured
+         */
+        Result(long foundCount, List<FoundLine> foundLines, Map<String, Long> matchesByEncoding) {
+            this.foundCount = foundCount;
+            this.foundLines = Collections.unmodifiableList(foundLines);
+            this.matchesByEncoding = Collections.unmodifiableMap(matchesByEncoding);
+        }
+
+        long getFoundCount() {
+            return foundCount;
+        }
+
+        List<FoundLine> getFoundLines() {
+            return foundLines;
+        }
+
+        Map<String, Long> getMatchesByEncoding() {
+            return matchesByEncoding;
+        }
+
+    }
+
+}
@@ -0,0 +1,153 @@
+package ru.ifmo.ctddev.polyarnyi.task1.grep;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Cheap detector of the encoding of the file by the sample of its first bytes.
+ *
+ * Sample in UTF-8 is a valid UTF-8 sequence with at least one multibyte character. Otherwise single-byte encodings
+ * are scored by their decoding of the bytes above ASCII: Russian text mostly consists of lower case letters, so
+ * lower case letters (and the most frequent of them - even more) increase the score, and bytes, that are not letters,
+ * decrease it. Encoding is detected, only if its score is at least {@code 3/2} of the score of any other encoding.
+ *
+ * Sample without bytes above ASCII is the same in all supported encodings, so if it is the whole file, any of them
+ * can be used.
+ *
+ * @author Nickolay Polyarniy aka PolarNick
+ */
+class EncodingDetector {
+
+    static final int SAMPLE_SIZE = 1 << 16;
+    private static final int MIN_SINGLE_BYTE_SAMPLE = 16;
+    private static final int ASCII_SIZE = 128;
+    private static final int BYTES_COUNT = 256;
+    private static final String UTF_8 = "UTF-8";
+    private static final String FREQUENT_LETTERS = "оеаинтсрвл";
+
+    private static final int FREQUENT_LETTER_SCORE = 3;
+    private static final int LOWER_CASE_SCORE = 2;
+    private static final int UPPER_CASE_SCORE = 1;
+    private static final int NOT_A_LETTER_SCORE = -1;
+
+    private final List<String> encodings;
+    /**
+     * UTF-8 among encodings, or null.
+     */
+    private final String utf8;
+    private final List<String> singleByteEncodings = new ArrayList<>();
+    /**
+     * Score of each byte above ASCII for each of single-byte encodings.
+     */
+    private final List<int[]> scores = new ArrayList<>();
+    private final boolean asciiCompatible;
+
+    EncodingDetector(List<String> encodings) {
+        this.encodings = encodings;
+        String utf8 = null;
+        boolean asciiCompatible = true;
+        byte[] ascii = new byte[ASCII_SIZE];
+        for (int b = 0; b < ASCII_SIZE; b++) {
+            ascii[b] = (byte) b;
+        }
+        for (String encoding : encodings) {
+            Charset charset = Charset.forName(encoding);
+            asciiCompatible &= Arrays.equals(ascii, new String(ascii, charset).getBytes(charset));
+            if (charset.equals(Charset.forName(UTF_8))) {
+                utf8 = encoding;
+            } else if (charset.newEncoder().maxBytesPerChar() == 1) {
+                singleByteEncodings.add(encoding);
+                scores.add(letterScores(charset));
+            }
+        }
+        this.utf8 = utf8;
+        this.asciiCompatible = asciiCompatible;
+    }
+
+    private static int[] letterScores(Charset charset) {
+        int[] score = new int[BYTES_COUNT];
+        for (int b = ASCII_SIZE; b < BYTES_COUNT; b++) {
+            String decoded = new String(new byte[]{(byte) b}, charset);
+            char c = decoded.length() == 1 ? decoded.charAt(0) : 0;
+            if (Character.UnicodeBlock.of(c) != Character.UnicodeBlock.CYRILLIC) {
+                score[b] = NOT_A_LETTER_SCORE;
+            } else if (FREQUENT_LETTERS.indexOf(c) != -1) {
+                score[b] = FREQUENT_LETTER_SCORE;
+            } else if (Character.isLowerCase(c)) {
+                score[b] = LOWER_CASE_SCORE;
+            } else {
+                score[b] = Character.isUpperCase(c) ? UPPER_CASE_SCORE : NOT_A_LETTER_SCORE;
+            }
+        }
+        return score;
+    }
+
+    /**
+     * @param wholeText true, if sample is the whole text, so it can not end in the middle of the character
+     * @return encoding of the sample with absolute indices from {@code offset} to {@code offset + length}, or null,
+     * if it is ambiguous
+     */
+    String detect(ByteBuffer sample, int offset, int length, boolean wholeText) {
+        int[] singleByteScores = new int[singleByteEncodings.size()];
+        int highBytes = 0;
+        boolean validUtf8 = true;
+        int multibyteCharacters = 0;
+        int expectedContinuations = 0;
+        for (int i = offset; i < offset + length; i++) {
+            int b = sample.get(i) & 0xFF;
+            if (b < ASCII_SIZE) {
+                validUtf8 &= expectedContinuations == 0;
+                continue;
+            }
+            highBytes++;
+            for (int e = 0; e < singleByteScores.length; e++) {
+                singleByteScores[e] += scores.get(e)[b];
+            }
+            if (!validUtf8) {
+                continue;
+            }
+            if (expectedContinuations > 0) {
+                validUtf8 = (b & 0xC0) == 0x80;
+                if (--expectedContinuations == 0) {
+                    multibyteCharacters++;
+                }
+            } else if (0xC2 <= b && b <= 0xDF) {
+                expectedContinuations = 1;
+            } else if (0xE0 <= b && b <= 0xEF) {
+                expectedContinuations = 2;
+            } else if (0xF0 <= b && b <= 0xF4) {
+                expectedContinuations = 3;
+            } else {
+                validUtf8 = false;
+            }
+        }
+        if (highBytes == 0) {
+            return wholeText && asciiCompatible ? encodings.get(0) : null;
+        }
+        if (utf8 != null && validUtf8 && multibyteCharacters > 0 && (expectedContinuations == 0 || !wholeText)) {
+            return utf8;
+        }
+        if (highBytes < MIN_SINGLE_BYTE_SAMPLE) {
+            return null;
+        }
+        int best = -1;
+        for (int e = 0; e < singleByteScores.length; e++) {
+            if (best == -1 || singleByteScores[e] > singleByteScores[best]) {
+                best = e;
+            }
+        }
+        if (best == -1 || singleByteScores[best] <= 0) {
+            return null;
+        }
+        for (int e = 0; e < singleByteScores.length; e++) {
+            if (e != best && 2 * singleByteScores[best] < 3 * singleByteScores[e]) {
+                return null;
+            }
+        }
+        return singleByteEncodings.get(best);
+    }
+
+}
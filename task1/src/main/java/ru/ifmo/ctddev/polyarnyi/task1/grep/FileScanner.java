@@ -0,0 +1,769 @@
+package ru.ifmo.ctddev.polyarnyi.task1.grep;
+
+import com.google.common.base.Throwables;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Scans files with {@link MultiEncodingSearch} and writes lines with found patterns in format
+ * {@code "path(lineNumber): line"}, where line is cut to last {@link #MAX_SIZE_OF_MESSAGE} bytes before the end
+ * of the found pattern.
+ *
+ * Small files are read at once to the reusable direct buffer of the scanning thread (or are scanned in the buffer of
+ * {@link ReadAhead}, if they were read ahead), big files are memory-mapped by
+ * windows of {@link #MAP_WINDOW} bytes. Each window is preceded by {@link #MAX_SIZE_OF_MESSAGE} bytes of the previous
+ * one (to cut the line of the found pattern) and followed by one byte of the next one (to know, if the line continues).
+ * Windows are scanned by slices of {@link #SLICE_SIZE} bytes, and found lines are written after the slice, when at
+ * least {@link #MAX_KEPT_FOUND_LINES} of them are kept, so output of the big file is written while it is scanned.
+ *
+ * If scanner has a pool, files bigger than {@link #CHUNK_SIZE} are split to chunks, that are scanned in parallel.
+ * Each chunk is scanned by its own matcher, that starts {@code maxPatternLength - 1} bytes before the chunk, and line
+ * numbers are shifted by the number of lines in the previous chunks after the scan. Chunks are started only a pool's
+ * parallelism ahead of the chunk, which found lines are written, and the chunk, that waits to be written, stops after
+ * the slice with {@link #MAX_KEPT_FOUND_LINES} found lines, and is scanned further, when its lines are written.
+ * Regular expressions can match lines of any length, so files are scanned by one matcher, if patterns are regular
+ * expressions.
+ *
+ * In other {@link GrepOptions.OutputMode output modes} lines are neither counted nor cut, and in modes, that
+ * write only paths of files, file is not scanned after the first found pattern.
+ *
+ * Entries of gzip and zip archives are scanned in the decompressed form, see {@link ArchiveReader}.
+ *
+ * If searcher {@link MultiEncodingSearch#detectEncoding detects encodings}, encoding of the file is detected by its
+ * first {@link EncodingDetector#SAMPLE_SIZE} bytes (of the entry - by its first window), and the file is scanned only
+ * by the automaton of this encoding.
+ *
+ * In {@link GrepOptions.OutputMode#LINES} mode found lines can be written with lines around them, see
+ * {@link ContextLines}. Entries of archives are read only once, so they are written without context.
+ *
+ * If scanner has {@link ScanStatistics}, each scanned file is measured and added to them.
+ *
+ * Bytes of the file, that are read by the scan, are added to its trigrams, if {@link TrigramIndex} is updated, so
+ * changed files are not read again to be indexed.
+ *
+ * If scanner has {@link DuplicateContents}, files, that are not archives, are scanned once per content (big files -
+ * once per hard link, if they are not split to chunks), and found lines of the same content are replayed for other
+ * files with it. Files with context lines are always scanned, because context is read from the file itself.
+ *
+ * @author Nickolay Polyarniy aka PolarNick
+ */
+public class FileScanner {
+
+    static final int MAX_SIZE_OF_MESSAGE = 256;
+    private static final int MAX_BYTES_PER_CHAR_IN_UTF_8 = 6;
+    private static final String UTF_8 = "UTF-8";
+
+    static final int BUFFER_SIZE = 1 << 20;
+    private static final int MAP_WINDOW = 1 << 28;
+    private static final int CHUNK_SIZE = 1 << 26;
+    private static final int SLICE_SIZE = 1 << 20;
+    private static final int MAX_KEPT_FOUND_LINES = 1 << 12;
+    private static final int STREAM_WINDOW = 1 << 16;
+    private static final String ARCHIVE_ENTRY_SEPARATOR = "!/";
+
+    private static final ThreadLocal<ByteBuffer> BUFFERS = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+    };
+
+    private static final MatchListener IGNORING_LISTENER = new MatchListener() {
+        @Override
+        public boolean onMatch(long offset, int patternId, String encoding) {
+            return true;
+        }
+    };
+
+    private final MultiEncodingSearch searcher;
+    private final ForkJoinPool pool;
+    private final GrepOptions.OutputMode mode;
+    private final int contextBefore;
+    private final int contextAfter;
+    private final ScanStatistics statistics;
+    private final DuplicateContents duplicates;
+    private final int mapWindow;
+    private final int chunkSize;
+
+    public FileScanner(MultiEncodingSearch searcher) {
+        this(searcher, null, GrepOptions.OutputMode.LINES);
+    }
+
+    public FileScanner(MultiEncodingSearch searcher, ForkJoinPool pool, GrepOptions.OutputMode mode) {
+        this(searcher, pool, mode, null);
+    }
+
+    /**
+     * @param pool       pool to scan chunks of big files in parallel, or null, if each file should be scanned by one
+     *                   thread
+     * @param statistics statistics of the scan, or null, if scan should not be measured
+     */
+    public FileScanner(MultiEncodingSearch searcher, ForkJoinPool pool, GrepOptions.OutputMode mode,
+                       ScanStatistics statistics) {
+        this(searcher, pool, mode, 0, 0, statistics);
+    }
+
+    /**
+     * @param contextBefore number of lines to write before each found line in {@link GrepOptions.OutputMode#LINES}
+     *                      mode
+     * @param contextAfter  number of lines to write after each found line in {@link GrepOptions.OutputMode#LINES}
+     *                      mode
+     */
+    public FileScanner(MultiEncodingSearch searcher, ForkJoinPool pool, GrepOptions.OutputMode mode,
+                       int contextBefore, int contextAfter, ScanStatistics statistics) {
+        this(searcher, pool, mode, contextBefore, contextAfter, statistics, null);
+    }
+
+    /**
+     * @param duplicates results of the scanned contents to replay them for the same contents, or null, if each file
+     *                   should be scanned
+     */
+    public FileScanner(MultiEncodingSearch searcher, ForkJoinPool pool, GrepOptions.OutputMode mode,
+                       int contextBefore, int contextAfter, ScanStatistics statistics, DuplicateContents duplicates) {
+        this(searcher, pool, mode, contextBefore, contextAfter, statistics, duplicates, MAP_WINDOW, CHUNK_SIZE);
+    }
+
+    /**
+     * @param mapWindow size of the memory-mapped windows of big files
+     * @param chunkSize size of the chunks of big files, that are scanned in parallel
+     */
+    FileScanner(MultiEncodingSearch searcher, ForkJoinPool pool, GrepOptions.OutputMode mode, int contextBefore,
+                int contextAfter, ScanStatistics statistics, DuplicateContents duplicates, int mapWindow,
+                int chunkSize) {
+        this.searcher = searcher;
+        this.pool = pool;
+        this.mode = mode;
+        this.contextBefore = contextBefore;
+        this.contextAfter = contextAfter;
+        this.statistics = statistics;
+        this.duplicates = duplicates;
+        this.mapWindow = mapWindow;
+        this.chunkSize = chunkSize;
+    }
+
+    public void scan(Path file, Writer out) throws IOException {
+        scan(file, null, out);
+    }
+
+    /**
+     * @param content whole content of the file from absolute index {@code 0} to the limit, that was read ahead, or
+     *                null, if file should be read by scanner
+     */
+    public void scan(Path file, ByteBuffer content, Writer out) throws IOException {
+        scan(file, content, out, null);
+    }
+
+    /**
+     * @param trigrams trigrams of the file, to which the bytes, that are read by the scan, are added, or null. They
+     *                 are complete, if the file was read to the end: then big file is scanned by one thread, and its
+     *                 windows are mapped even after the first found line in the modes, that stop at it
+     */
+    void scan(Path file, ByteBuffer content, Writer out, TrigramIndex.Trigrams trigrams) throws IOException {
+        String fileName = file.toString();
+        List<Scan> scans = new ArrayList<>();
+        long readNanos = 0;
+        boolean withContext = mode == GrepOptions.OutputMode.LINES && contextBefore + contextAfter > 0;
+        List<Object> fileKey = null;
+        if (duplicates != null && !withContext) {
+            long readStarted = now();
+            BasicFileAttributes attr = Files.readAttributes(file, BasicFileAttributes.class);
+            fileKey = DuplicateContents.fileKey(attr);
+            DuplicateContents.Result result = duplicates.get(fileKey);
+            if (result != null) {
+                replay(fileName, now() - readStarted, result, out);
+                return;
+            }
+            if (attr.size() <= BUFFER_SIZE && scanDeduplicated(file, fileKey, content, out, trigrams)) {
+                return;
+            }
+        }
+        if (content != null && !withContext && ArchiveReader.detect(content) == null) {
+            addTrigrams(trigrams, content);
+            Scan scan = scanBuffer(content);
+            scan.writeFoundLines(out, fileName, 1, null);
+            scans.add(scan);
+            finish(fileName, readNanos, scans, out);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ArchiveReader.Format archiveFormat = ArchiveReader.detect(channel);
+            if (archiveFormat != null) {
+                if (trigrams != null) {
+                    trigrams.setArchive();
+                }
+                scanArchive(file, archiveFormat, out);
+                return;
+            }
+            long size = channel.size();
+            ContextLines context = null;
+            if (withContext) {
+                context = new ContextLines(channel, fileName, contextBefore, contextAfter);
+            }
+            if (size <= BUFFER_SIZE) {
+                ByteBuffer buffer = content;
+                if (content == null || content.limit() != size) {
+                    long readStarted = now();
+                    buffer = readSmallFile(channel);
+                    readNanos = now() - readStarted;
+                }
+                addTrigrams(trigrams, buffer);
+                Scan scan = scanBuffer(buffer);
+                scan.writeFoundLines(out, fileName, 1, context);
+                scans.add(scan);
+            } else if (pool != null && trigrams == null && size > chunkSize && !stopsAtFirstFound(mode)
+                    && searcher.getMaxPatternLength() <= chunkSize) {
+                scans.addAll(scanByChunks(channel, size, detectEncoding(channel), out, fileName, context));
+            } else {
+                Scan scan = new Scan(searcher.matcher(detectEncoding(channel)), 0, mode, statistics != null);
+                if (fileKey != null) {
+                    scan.kept = new ArrayList<>();
+                }
+                for (long position = 0; position < size && (!scan.stopped || trigrams != null);
+                     position += mapWindow) {
+                    long begin = Math.max(0, position - MAX_SIZE_OF_MESSAGE);
+                    long end = Math.min(size, position + mapWindow);
+                    ByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, begin,
+                            Math.min(size, end + 1) - begin);
+                    if (trigrams != null) {
+                        trigrams.add(window, (int) (position - begin), (int) (end - begin));
+                    }
+                    for (int from = (int) (position - begin); from < end - begin && !scan.stopped; from += SLICE_SIZE) {
+                        scan.scanWindow(window, begin, from, (int) Math.min(end - begin, (long) from + SLICE_SIZE));
+                        if (scan.foundLines.size() >= MAX_KEPT_FOUND_LINES) {
+                            scan.writeFoundLines(out, fileName, 1, context);
+                        }
+                    }
+                    if (end == size) {
+                        scan.finishText();
+                    }
+                    scan.writeFoundLines(out, fileName, 1, context);
+                }
+                if (trigrams != null) {
+                    trigrams.setComplete();
+                }
+                if (scan.kept != null) {
+                    duplicates.put(new DuplicateContents.Result(scan.foundCount, scan.kept, scan.matchesByEncoding),
+                            fileKey, null);
+                }
+                scans.add(scan);
+            }
+            if (context != null) {
+                context.finish(out);
+            }
+        }
+        finish(fileName, readNanos, scans, out);
+    }
+
+    /**
+     * Adds the whole content of the file to its trigrams, if they are collected.
+     */
+    private static void addTrigrams(TrigramIndex.Trigrams trigrams, ByteBuffer content) {
+        if (trigrams != null) {
+            trigrams.add(content, 0, content.limit());
+            trigrams.setComplete();
+        }
+    }
+
+    /**
+     * @return the whole small file in the reusable buffer of the thread
+     */
+    private static ByteBuffer readSmallFile(FileChannel channel) throws IOException {
+        ByteBuffer buffer = BUFFERS.get();
+        buffer.clear();
+        while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Scans the whole file in the buffer, found lines are not written yet.
+     */
+    private Scan scanBuffer(ByteBuffer buffer) {
+        int sampleLength = Math.min(buffer.limit(), EncodingDetector.SAMPLE_SIZE);
+        String encoding = searcher.detectEncoding(buffer, 0, sampleLength, sampleLength == buffer.limit());
+        Scan scan = new Scan(searcher.matcher(encoding), 0, mode, statistics != null);
+        scan.scanWindow(buffer, 0, 0, buffer.limit());
+        scan.finishText();
+        return scan;
+    }
+
+    /**
+     * Replays the result of the same content, if it was already scanned, otherwise scans the small file and
+     * remembers its result.
+     *
+     * @param fileKey key of the file, that was not scanned yet, or null
+     * @param content whole content of the file, that was read ahead, or null
+     * @param trigrams trigrams of the file, to which its content is added, or null
+     * @return false, if file should be scanned as usual, because it is an archive
+     */
+    private boolean scanDeduplicated(Path file, List<Object> fileKey, ByteBuffer content, Writer out,
+                                     TrigramIndex.Trigrams trigrams) throws IOException {
+        String fileName = file.toString();
+        long readNanos = 0;
+        if (content == null) {
+            long readStarted = now();
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                content = readSmallFile(channel);
+            }
+            readNanos = now() - readStarted;
+        }
+        if (ArchiveReader.detect(content) != null) {
+            return false;
+        }
+        addTrigrams(trigrams, content);
+        List<Object> contentKey = DuplicateContents.contentKey(content);
+        DuplicateContents.Result result = duplicates.get(contentKey);
+        if (result != null) {
+            duplicates.put(result, fileKey, null);
+            replay(fileName, readNanos, result, out);
+            return true;
+        }
+        Scan scan = scanBuffer(content);
+        if (scan.foundLines.size() <= DuplicateContents.MAX_LINES_PER_RESULT) {
+            duplicates.put(new DuplicateContents.Result(scan.foundCount, new ArrayList<>(scan.foundLines),
+                    scan.matchesByEncoding), fileKey, contentKey);
+        }
+        scan.writeFoundLines(out, fileName, 1, null);
+        finish(fileName, readNanos, Collections.singletonList(scan), out);
+        return true;
+    }
+
+    /**
+     * Writes found lines and the result of the same content, that was scanned before, for the file.
+     */
+    private void replay(String fileName, long readNanos, DuplicateContents.Result result, Writer out)
+            throws IOException {
+        long emitStarted = now();
+        for (FoundLine line : result.getFoundLines()) {
+            line.write(out, fileName, 1);
+        }
+        if (!result.getFoundLines().isEmpty()) {
+            out.flush();
+        }
+        writeResult(fileName, result.getFoundCount(), out);
+        if (statistics != null) {
+            statistics.fileScanned(fileName, 0, readNanos, 0, now() - emitStarted, result.getMatchesByEncoding());
+        }
+    }
+
+    /**
+     * Writes the result of the scanned file and adds it to statistics.
+     */
+    private void finish(String fileName, long readNanos, List<Scan> scans, Writer out) throws IOException {
+        long emitStarted = now();
+        long foundCount = 0;
+        for (Scan scan : scans) {
+            foundCount += scan.foundCount;
+        }
+        writeResult(fileName, foundCount, out);
+        if (statistics != null) {
+            report(fileName, readNanos, now() - emitStarted, scans);
+        }
+    }
+
+    /**
+     * @return current time, if scan is measured, otherwise {@code 0}
+     */
+    private long now() {
+        return statistics == null ? 0 : System.nanoTime();
+    }
+
+    private void report(String fileName, long readNanos, long emitNanos, List<Scan> scans) {
+        long bytes = 0;
+        long matchNanos = 0;
+        Map<String, Long> matchesByEncoding = new HashMap<>();
+        for (Scan scan : scans) {
+            bytes += scan.scannedBytes;
+            matchNanos += scan.matchNanos;
+            emitNanos += scan.emitNanos;
+            for (Map.Entry<String, Long> entry : scan.matchesByEncoding.entrySet()) {
+                Long count = matchesByEncoding.get(entry.getKey());
+                matchesByEncoding.put(entry.getKey(), (count == null ? 0 : count) + entry.getValue());
+            }
+        }
+        statistics.fileScanned(fileName, bytes, readNanos, matchNanos, emitNanos, matchesByEncoding);
+    }
+
+    /**
+     * @return encoding of the big file, detected by its first bytes, or null
+     */
+    private String detectEncoding(FileChannel channel) throws IOException {
+        if (!searcher.isDetectingEncoding()) {
+            return null;
+        }
+        ByteBuffer sample = BUFFERS.get();
+        sample.clear();
+        sample.limit(EncodingDetector.SAMPLE_SIZE);
+        while (sample.hasRemaining() && channel.read(sample, sample.position()) != -1) {
+        }
+        return searcher.detectEncoding(sample, 0, sample.position(), false);
+    }
+
+    /**
+     * @return true, if something is written for the file without found patterns
+     */
+    public boolean writesNotFound() {
+        return mode == GrepOptions.OutputMode.COUNT || mode == GrepOptions.OutputMode.FILES_WITHOUT_MATCHES;
+    }
+
+    /**
+     * Writes the result for the file, that is known to contain no patterns, without scanning it.
+     */
+    public void writeNotFound(Path file, Writer out) throws IOException {
+        writeResult(file.toString(), 0, out);
+    }
+
+    private void writeResult(String fileName, long foundCount, Writer out) throws IOException {
+        if (mode == GrepOptions.OutputMode.COUNT) {
+            out.write(fileName + ':' + foundCount + System.lineSeparator());
+        } else if (mode == GrepOptions.OutputMode.FILES_WITH_MATCHES && foundCount > 0
+                || mode == GrepOptions.OutputMode.FILES_WITHOUT_MATCHES && foundCount == 0) {
+            out.write(fileName + System.lineSeparator());
+        }
+    }
+
+    /**
+     * Scans each entry of the archive as a separate file with name {@code "archive!/entry"}. Entry is scanned by
+     * windows of the stream, that is decompressed by the background thread.
+     */
+    private void scanArchive(Path file, ArchiveReader.Format format, Writer out) throws IOException {
+        try (ArchiveReader archive = new ArchiveReader(file, format)) {
+            byte[] buffer = new byte[MAX_SIZE_OF_MESSAGE + 1 + STREAM_WINDOW];
+            String entry;
+            while ((entry = archive.nextEntry()) != null) {
+                String entryName = file.toString() + ARCHIVE_ENTRY_SEPARATOR + entry;
+                Scan scan = null;
+                long readNanos = 0;
+                long bufferOffset = 0;
+                int length = 0;
+                int scanned = 0;
+                while (scan == null || !scan.stopped) {
+                    int keptFrom = Math.max(0, scanned - MAX_SIZE_OF_MESSAGE);
+                    System.arraycopy(buffer, keptFrom, buffer, 0, length - keptFrom);
+                    bufferOffset += keptFrom;
+                    length -= keptFrom;
+                    scanned -= keptFrom;
+                    long readStarted = now();
+                    int read = archive.read(buffer, length, buffer.length - length);
+                    readNanos += now() - readStarted;
+                    if (scan == null) {
+                        int sampleLength = Math.max(0, Math.min(read, EncodingDetector.SAMPLE_SIZE));
+                        String encoding = searcher.detectEncoding(ByteBuffer.wrap(buffer), 0, sampleLength, read == -1);
+                        scan = new Scan(searcher.matcher(encoding), 0, mode, statistics != null);
+                    }
+                    if (read == -1) {
+                        scan.scanWindow(ByteBuffer.wrap(buffer, 0, length), bufferOffset, scanned, length);
+                        scan.finishText();
+                        break;
+                    }
+                    length += read;
+                    scan.scanWindow(ByteBuffer.wrap(buffer, 0, length), bufferOffset, scanned, length - 1);
+                    scan.writeFoundLines(out, entryName, 1, null);
+                    scanned = length - 1;
+                }
+                scan.writeFoundLines(out, entryName, 1, null);
+                long emitStarted = now();
+                writeResult(entryName, scan.foundCount, out);
+                if (statistics != null) {
+                    report(entryName, readNanos, now() - emitStarted, Collections.singletonList(scan));
+                }
+            }
+        }
+    }
+
+    private static boolean stopsAtFirstFound(GrepOptions.OutputMode mode) {
+        return mode == GrepOptions.OutputMode.FILES_WITH_MATCHES || mode == GrepOptions.OutputMode.FILES_WITHOUT_MATCHES;
+    }
+
+    /**
+     * @return scans of the chunks, which found lines are already written
+     */
+    private List<Scan> scanByChunks(FileChannel channel, long size, String encoding, Writer out, String fileName,
+                                    ContextLines context) throws IOException {
+        Deque<ChunkScan> chunks = new ArrayDeque<>();
+        List<Scan> scans = new ArrayList<>();
+        long firstLineNumber = 1;
+        long next = 0;
+        while (next < size || !chunks.isEmpty()) {
+            while (next < size && chunks.size() <= pool.getParallelism()) {
+                ChunkScan chunk = new ChunkScan(channel, size, encoding, next, Math.min(size, next + chunkSize));
+                chunks.add(chunk);
+                if (ForkJoinTask.inForkJoinPool()) {
+                    chunk.fork();
+                } else {
+                    pool.execute(chunk);
+                }
+                next += chunkSize;
+            }
+            ChunkScan chunk = chunks.poll();
+            Scan scan;
+            try {
+                scan = chunk.join();
+            } catch (RuntimeException e) {
+                for (Throwable cause : Throwables.getCausalChain(e)) {
+                    Throwables.propagateIfInstanceOf(cause, IOException.class);
+                }
+                throw e;
+            }
+            boolean scanned;
+            do {
+                scanned = chunk.scanSlices();
+                scan.writeFoundLines(out, fileName, firstLineNumber, context);
+            } while (!scanned);
+            firstLineNumber += scan.lineNumber;
+            scans.add(scan);
+        }
+        return scans;
+    }
+
+    private static boolean isNotAFirstByteInUTF8(byte a) {
+        return (a & 0xC0) == 0x80;
+    }
+
+    private class ChunkScan extends RecursiveTask<Scan> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final long size;
+        private final String encoding;
+        private final long start;
+        private final long end;
+        private ByteBuffer window;
+        private long begin;
+        private Scan scan;
+        /**
+         * Index in window of the first byte of the chunk, that was not scanned yet.
+         */
+        private int scannedTo;
+
+        private ChunkScan(FileChannel channel, long size, String encoding, long start, long end) {
+            this.channel = channel;
+            this.size = size;
+            this.encoding = encoding;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected Scan compute() {
+            long matcherStart = Math.max(0, start - Math.max(0, searcher.getMaxPatternLength() - 1));
+            begin = Math.max(0, Math.min(matcherStart, start - MAX_SIZE_OF_MESSAGE));
+            try {
+                window = channel.map(FileChannel.MapMode.READ_ONLY, begin, Math.min(size, end + 1) - begin);
+            } catch (IOException e) {
+                throw Throwables.propagate(e);
+            }
+            scan = new Scan(searcher.matcher(encoding), matcherStart, mode, statistics != null);
+            scan.countAllLines = mode == GrepOptions.OutputMode.LINES;
+            scan.skipWindow(window, (int) (matcherStart - begin), (int) (start - begin));
+            scannedTo = (int) (start - begin);
+            scanSlices();
+            return scan;
+        }
+
+        /**
+         * Scans the chunk by slices, until it is scanned or at least {@link #MAX_KEPT_FOUND_LINES} found lines are
+         * kept, so the chunk, that waits to be written, does not keep all its found lines.
+         *
+         * @return true, if the whole chunk is scanned
+         */
+        private boolean scanSlices() {
+            int to = (int) (end - begin);
+            while (scannedTo < to && scan.foundLines.size() < MAX_KEPT_FOUND_LINES) {
+                int sliceTo = (int) Math.min(to, (long) scannedTo + SLICE_SIZE);
+                scan.scanWindow(window, begin, scannedTo, sliceTo);
+                scannedTo = sliceTo;
+                if (scannedTo == to && end == size) {
+                    scan.finishText();
+                }
+            }
+            return scannedTo == to;
+        }
+
+    }
+
+    private static class Scan implements MatchListener {
+
+        private final MultiEncodingSearch.Matcher matcher;
+        private final long matcherStart;
+        private final GrepOptions.OutputMode mode;
+        private final boolean measured;
+        private final List<FoundLine> foundLines = new ArrayList<>();
+        private long lineNumber = 0;
+        private long lastFoundOffset = -1;
+        private long foundCount = 0;
+        private boolean countAllLines = false;
+        private boolean stopped = false;
+        /**
+         * All found lines, that were written, to replay them for the same file, or null, if they are not kept.
+         */
+        private List<FoundLine> kept = null;
+
+        private long scannedBytes = 0;
+        private long matchNanos = 0;
+        private long emitNanos = 0;
+        private final Map<String, Long> matchesByEncoding = new HashMap<>();
+
+        private ByteBuffer window;
+        private long windowOffset;
+        private int lineCountedUpTo;
+
+        /**
+         * @param matcherStart offset in the file of the first byte, that will be processed by matcher
+         * @param measured     true, if time of the scan and found patterns should be counted
+         */
+        private Scan(MultiEncodingSearch.Matcher matcher, long matcherStart, GrepOptions.OutputMode mode,
+                     boolean measured) {
+            this.matcher = matcher;
+            this.matcherStart = matcherStart;
+            this.mode = mode;
+            this.measured = measured;
+        }
+
+        private long now() {
+            return measured ? System.nanoTime() : 0;
+        }
+
+        /**
+         * Processes bytes of the window by matcher without reporting found patterns and counting lines.
+         */
+        private void skipWindow(ByteBuffer window, int from, int to) {
+            matcher.scan(window, from, to - from, IGNORING_LISTENER);
+        }
+
+        /**
+         * Lines are counted lazily: only up to the found patterns and at the end of each window except the last one
+         * (or at the end of each window, if all lines should be counted).
+         *
+         * @param window       bytes of the file, starting from offset {@code windowOffset}
+         * @param from         index in window of the first byte, that was not scanned yet
+         * @param to           index in window of the first byte, that should not be scanned in this window. Window
+         *                     ends either at {@code to}, if it is the end of the file, or at {@code to + 1}
+         */
+        private void scanWindow(ByteBuffer window, long windowOffset, int from, int to) {
+            this.window = window;
+            this.windowOffset = windowOffset;
+            this.lineCountedUpTo = from;
+            long started = now();
+            stopped = !matcher.scan(window, from, to - from, this);
+            if (countAllLines || to < window.limit() && mode == GrepOptions.OutputMode.LINES) {
+                countLinesUpTo(to);
+            }
+            matchNanos += now() - started;
+            scannedBytes += to - from;
+        }
+
+        /**
+         * Reports patterns, that end at the end of the text, after its last window was scanned.
+         */
+        private void finishText() {
+            if (!stopped) {
+                long started = now();
+                stopped = !matcher.finish(this);
+                matchNanos += now() - started;
+            }
+        }
+
+        private void countLinesUpTo(int index) {
+            for (int i = lineCountedUpTo; i < index; i++) {
+                if (window.get(i) == '\n') {
+                    lineNumber++;
+                }
+            }
+            lineCountedUpTo = index;
+        }
+
+        @Override
+        public boolean onMatch(long offset, int patternId, String encoding) {
+            offset += matcherStart;
+            if (offset == lastFoundOffset) {
+                // line is already found for the longest pattern, that ends here
+                return true;
+            }
+            lastFoundOffset = offset;
+            foundCount++;
+            if (measured) {
+                Long count = matchesByEncoding.get(encoding);
+                matchesByEncoding.put(encoding, count == null ? 1 : count + 1);
+            }
+            if (mode == GrepOptions.OutputMode.LINES) {
+                int end = (int) (offset - windowOffset);
+                countLinesUpTo(end + 1);
+                foundLines.add(cutFoundLine(end, encoding));
+            }
+            return !stopsAtFirstFound(mode);
+        }
+
+        private FoundLine cutFoundLine(int end, String encoding) {
+            int first = end + 1;
+            while (first > 0 && end - first + 1 < MAX_SIZE_OF_MESSAGE && window.get(first - 1) != '\n') {
+                first--;
+            }
+            boolean containsFirstSymbol = first > 0 ? window.get(first - 1) == '\n' : windowOffset == 0;
+            if (encoding.equals(UTF_8)) {
+                int bytesWereSkipped = 0;
+                while (first <= end && isNotAFirstByteInUTF8(window.get(first))
+                        && bytesWereSkipped < MAX_BYTES_PER_CHAR_IN_UTF_8 - 1 && end - first + 1 > MAX_SIZE_OF_MESSAGE / 2) {
+                    bytesWereSkipped++;
+                    first++;
+                }
+            }
+            byte[] bytes = new byte[end + 1 - first];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = window.get(first + i);
+            }
+            boolean lineEnds = end + 1 == window.limit() || window.get(end + 1) == '\r' || window.get(end + 1) == '\n';
+            return new FoundLine(lineNumber, windowOffset + end, bytes, encoding, containsFirstSymbol, lineEnds);
+        }
+
+        /**
+         * Writes lines, that were found since the last call.
+         *
+         * @param firstLineNumber number of the first line of the scanned part of the file
+         * @param context         context of the found lines of the file, or null, if they are written without it
+         */
+        private void writeFoundLines(Writer out, String fileName, long firstLineNumber, ContextLines context)
+                throws IOException {
+            long started = now();
+            if (kept != null) {
+                kept.addAll(foundLines);
+                if (kept.size() > DuplicateContents.MAX_LINES_PER_RESULT) {
+                    kept = null;
+                }
+            }
+            for (FoundLine line : foundLines) {
+                if (context == null) {
+                    line.write(out, fileName, firstLineNumber);
+                } else {
+                    context.write(line, out, firstLineNumber);
+                }
+            }
+            if (!foundLines.isEmpty()) {
+                out.flush();
+            }
+            foundLines.clear();
+            emitNanos += now() - started;
+        }
+
+    }
+
+}
@@ -0,0 +1,63 @@
+package ru.ifmo.ctddev.polyarnyi.task1.grep;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Line with found pattern, cut to the bytes before the end of the pattern.
+ *
+ * @author Nickolay Polyarniy aka PolarNick
+ */
+class FoundLine {
+
+    private final long lineNumber;
+    private final long endOffset;
+    private final byte[] bytes;
+    private final String encoding;
+    private final boolean containsFirstSymbol;
+    private final boolean lineEnds;
+
+    /**
+     * @param lineNumber          number of line, counted from the beginning of the scanned part of the file
+     * @param endOffset           offset in the file of the last byte of the found pattern
+     * @param containsFirstSymbol true, if bytes are not cut from the beginning of the line
+     * @param lineEnds            true, if line ends right after the found pattern
+     */
+    FoundLine(long lineNumber, long endOffset, byte[] bytes, String encoding, boolean containsFirstSymbol,
+              boolean lineEnds) {
+        this.lineNumber = lineNumber;
+        this.endOffset = endOffset;
+        this.bytes = bytes;
+        this.encoding = encoding;
+        this.containsFirstSymbol = containsFirstSymbol;
+        this.lineEnds = lineEnds;
+    }
+
+    /**
+     * @param firstLineNumber number of the first line of the scanned part of the file
+     */
+    long getLineNumber(long firstLineNumber) {
+        return firstLineNumber + lineNumber;
+    }
+
+    long getEndOffset() {
+        return endOffset;
+    }
+
+    String getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * @param firstLineNumber number of the first line of the scanned part of the file
+     */
+    void write(Writer out, String fileName, long firstLineNumber) throws IOException {
+        out.write(fileName);
+        out.write('(');
+        out.write(Long.toString(firstLineNumber + lineNumber));
+        out.write(containsFirstSymbol ? "): " : "): ...");
+        out.write(new String(bytes, encoding));
+        out.write(lineEnds ? System.lineSeparator() : "..." + System.lineSeparator());
+    }
+
+}
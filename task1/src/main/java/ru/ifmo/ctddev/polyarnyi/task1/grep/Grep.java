@@ -1,12 +1,20 @@
 package ru.ifmo.ctddev.polyarnyi.task1.grep;
 
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Date: 15.02.14 at 23:05
@@ -15,114 +23,511 @@ import java.util.List;
  */
 public class Grep extends SimpleFileVisitor<Path> {
 
-    private static final String USAGE = "Proper Usage is: \"java Grep string1 string2 ... stringN\"\n" +
-            "Or to enter strings one by one in console: \"java Grep -\"";
-    private static final String STRINGS_FROM_CONSOLE = "-";
+    private static final String USAGE = "Proper Usage is: \"java Grep [options] string1 string2 ... stringN\"\n" +
+            "Or to enter strings one by one in console: \"java Grep [options] -\"\n" +
+            "Options:\n" +
+            "  -j N      scan files (and chunks of big files) in N threads\n" +
+            "  --sorted  with -j: walk entries of each directory in order of their names and write results in\n" +
+            "            this order: results of each file are written, when all previous files are scanned, and then\n" +
+            "            as soon as they are found\n" +
+            "  --read-ahead N  read up to N small files ahead by background threads, while other files are\n" +
+            "            scanned by -j threads\n" +
+            "  -l        write only paths of files with found strings\n" +
+            "  -L        write only paths of files without found strings\n" +
+            "  -c        write only paths of files and numbers of found lines in them\n" +
+            "  -i        ignore case of letters\n" +
+            "  -E        strings are regular expressions: . [] [^] \\d \\w \\s * + ? {n,m} | () ^ $,\n" +
+            "            they are matched in each line, --index is ignored\n" +
+            "  -A N      write N lines after each found line\n" +
+            "  -B N      write N lines before each found line\n" +
+            "  -C N      write N lines before and after each found line\n" +
+            "  --detect-encoding  detect encoding of each file by its first bytes and search strings only in it\n" +
+            "  --dedup   scan files with the same content (hard links and copies) once and repeat found lines for\n" +
+            "            the others. Copies are still read, but hard links are not\n" +
+            "  --index FILE  skip files, that can not contain strings, by index of their trigrams in FILE.\n" +
+            "                Index is updated for changed files, it should be used from the same directory\n" +
+            "  --cache FILE  load strings, compiled to FILE, or compile them to FILE, if they were changed\n" +
+            "  --flush-latency MS  write found lines not later than in about MS milliseconds (100 by default),\n" +
+            "            instead of waiting for the full output buffer\n" +
+            "  --watch   after the walk write changes of results of created, modified and removed files, until\n" +
+            "            the process is stopped: lines prefixed by \"-\" are removed, and by \"+\" - added.\n" +
+            "            If the previous result of the file was too long to be kept, \"-\" and its path are written\n" +
+            "            instead of its lines.\n" +
+            "            Files are scanned by one thread (and chunks of big files - by -j threads), --index is ignored\n" +
+            "  --results FILE  with --watch: reuse results of files, that were not changed since they were saved\n" +
+            "            to FILE, and save them there, when the process is stopped\n" +
+            "  --stats   write statistics of the compiled strings and of the scan to the standard error stream,\n" +
+            "            scan statistics are also available by JMX while it runs\n" +
+            "  --        end of options";
     private static final String ERROR_IO_EXCEPTION = "Input/Output error has occurred!";
-    private static final int MAX_SIZE_OF_MESSAGE = 256;
+    private static final int MAX_FILES_IN_FLIGHT_PER_THREAD = 64;
+    private static final int MAX_BUFFERED_OUTPUT_PER_FILE = 1 << 16;
 
     private static final String CP866 = "CP866";
     private static final String KOI8_R = "KOI8-R";
     private static final String UTF_8 = "UTF-8";
     private static final String CP1251 = "CP1251";
 
-    private static final int MAX_BYTES_PER_CHAR_IN_UTF_8 = 6;
-
     public static void main(String[] args) {
+        GrepOptions options;
+        try {
+            options = GrepOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println(USAGE);
+            return;
+        }
         try (BufferedReader in = new BufferedReader(new InputStreamReader(System.in, UTF_8));
-             Writer out = new OutputStreamWriter(System.out, UTF_8)) {
-            if (args.length == 0) {
-                System.out.println(USAGE);
-            } else if (args.length == 1 && STRINGS_FROM_CONSOLE.equals(args[0])) {
-                List<String> inputStrings = new ArrayList<>();
+             Writer out = new AsyncWriter(System.out, Charset.forName(UTF_8), options.getFlushLatencyMillis())) {
+            List<String> patterns = options.getPatterns();
+            if (options.isPatternsFromConsole()) {
+                patterns = new ArrayList<>();
                 String s = in.readLine();
                 while (s != null && !s.isEmpty()) {
-                    inputStrings.add(s);
+                    patterns.add(s);
                     s = in.readLine();
                 }
-                searchLinesContains(inputStrings, out);
-            } else {
-                searchLinesContains(Lists.newArrayList(args), out);
             }
+            searchLinesContains(patterns, options, out);
+        } catch (IllegalArgumentException e) {
+            // wrong regular expression, standard output is already closed with the writer
+            System.err.println(e.getMessage());
         } catch (IOException e) {
             System.out.println();
             System.out.println(ERROR_IO_EXCEPTION);
         }
     }
 
-    private static void searchLinesContains(List<String> patterns, Writer out) throws IOException {
-        MultiEncodingSearch searcher = new MultiEncodingSearch(patterns, Lists.newArrayList(CP866, KOI8_R, UTF_8, CP1251));
-        Path curPath = Paths.get("");
-        Files.walkFileTree(curPath, new Grep(searcher, out));
+    /**
+     * @return encodings, in which patterns are searched
+     */
+    static List<String> getEncodings() {
+        return Lists.newArrayList(CP866, KOI8_R, UTF_8, CP1251);
+    }
+
+    private static void searchLinesContains(List<String> patterns, GrepOptions options, Writer out) throws IOException {
+        List<String> encodings = getEncodings();
+        MultiEncodingSearch searcher = options.getCacheFile() == null
+                ? new MultiEncodingSearch(patterns, encodings, options.isIgnoreCase(), options.isDetectEncoding(),
+                options.isRegex())
+                : MultiEncodingSearch.compile(patterns, encodings, options.isIgnoreCase(), options.isDetectEncoding(),
+                options.isRegex(), options.getCacheFile());
+        ScanStatistics statistics = null;
+        if (options.isStatistics()) {
+            System.err.println(searcher.getStatistics());
+            statistics = new ScanStatistics();
+            statistics.register();
+        }
+        if (options.isWatch()) {
+            watch(searcher, patterns, options, out, statistics);
+        } else {
+            TrigramIndex index = null;
+            if (options.getIndexFile() != null && !options.isRegex()) {
+                index = TrigramIndex.open(options.getIndexFile(), patterns, encodings, options.isIgnoreCase());
+            }
+            Path curPath = Paths.get("");
+            Grep grep = new Grep(searcher, out, options, index, statistics);
+            try {
+                if (options.isSorted()) {
+                    new DirectoryCache().walk(curPath, grep);
+                } else {
+                    Files.walkFileTree(curPath, grep);
+                }
+            } finally {
+                grep.finish();
+            }
+        }
+        if (statistics != null) {
+            System.err.println(statistics.getSummary());
+        }
+    }
+
+    /**
+     * Walks the current directory and watches it with {@link GrepWatcher}, until the process is stopped.
+     */
+    private static void watch(MultiEncodingSearch searcher, List<String> patterns, GrepOptions options, Writer out,
+                              ScanStatistics statistics) throws IOException {
+        ForkJoinPool pool = options.getThreads() > 1 ? new ForkJoinPool(options.getThreads()) : null;
+        FileScanner scanner = new FileScanner(searcher, pool, options.getOutputMode(), options.getContextBefore(),
+                options.getContextAfter(), statistics, options.isDeduplicate() ? new DuplicateContents() : null);
+        ResultCache results = ResultCache.open(options.getResultsFile(), patterns, options);
+        final Thread watching = Thread.currentThread();
+        final GrepWatcher watcher = new GrepWatcher(scanner, out, results);
+        try {
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        watcher.close();
+                        // results are saved and output is written by the watching thread
+                        watching.join();
+                    } catch (IOException | InterruptedException ignored) {
+                    }
+                }
+            }));
+            watcher.walk(Paths.get(""));
+            watcher.watch();
+        } finally {
+            try {
+                watcher.close();
+            } finally {
+                results.save();
+                if (pool != null) {
+                    pool.shutdown();
+                }
+            }
+        }
     }
 
-    private final MultiEncodingSearch searcher;
+    private final FileScanner scanner;
     private final Writer out;
+    private final TrigramIndex index;
+
+    private final ForkJoinPool pool;
+    /**
+     * Reads files ahead of their scan by the pool, or null, if files are read by scanning threads.
+     */
+    private final ReadAhead readAhead;
+    private final boolean sorted;
+    private final Semaphore filesInFlight;
+    /**
+     * Outputs of the files in order of their visits, that are not written yet, if output is sorted.
+     */
+    private final Queue<SortedOutput> sortedOutputs = new ConcurrentLinkedQueue<>();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final Lock outLock = new ReentrantLock();
+    private final ScanStatistics statistics;
+    /**
+     * Time, when the walking thread returned from the last {@link #visitFile}, if statistics are collected.
+     */
+    private long lastVisitEnd;
 
     public Grep(MultiEncodingSearch searcher, Writer out) {
-        this.searcher = searcher;
+        this(searcher, out, new GrepOptions(), null);
+    }
+
+    /**
+     * If {@link GrepOptions#getThreads()} is {@code 1} - files are scanned by the thread, that walks the file tree,
+     * otherwise they are scanned by work-stealing pool. If files are {@link GrepOptions#getReadAhead() read ahead},
+     * they are always scanned by the pool. {@link #finish()} must be called after the walk.
+     *
+     * @param index index to skip files, that can not contain patterns, or null
+     */
+    public Grep(MultiEncodingSearch searcher, Writer out, GrepOptions options, TrigramIndex index) {
+        this(searcher, out, options, index, null);
+    }
+
+    /**
+     * @param index      index to skip files, that can not contain patterns, or null
+     * @param statistics statistics of the scan, or null, if scan should not be measured. The walk is measured from
+     *                   the creation of grep
+     */
+    public Grep(MultiEncodingSearch searcher, Writer out, GrepOptions options, TrigramIndex index,
+                ScanStatistics statistics) {
         this.out = out;
+        this.index = index;
+        this.pool = options.getThreads() > 1 || options.getReadAhead() > 0
+                ? new ForkJoinPool(options.getThreads()) : null;
+        this.readAhead = options.getReadAhead() > 0
+                ? new ReadAhead(options.getReadAhead(), FileScanner.BUFFER_SIZE, pool) : null;
+        this.scanner = new FileScanner(searcher, pool, options.getOutputMode(), options.getContextBefore(),
+                options.getContextAfter(), statistics, options.isDeduplicate() ? new DuplicateContents() : null);
+        this.sorted = options.isSorted();
+        this.filesInFlight = new Semaphore(options.getThreads() * MAX_FILES_IN_FLIGHT_PER_THREAD);
+        this.statistics = statistics;
+        this.lastVisitEnd = statistics == null ? 0 : System.nanoTime();
     }
 
     @Override
     public FileVisitResult visitFile(Path file, BasicFileAttributes attr) throws IOException {
-        searcher.reset();
-        try (InputStream in = new BufferedInputStream(new FileInputStream(file.toFile()))) {
-            int lineNumber = 1;
-            boolean containsFirstSymbol = true;
-            byte[] buffer = new byte[MAX_SIZE_OF_MESSAGE];
-            int first = 0;
-            int size = 0;
-            int curByte = in.read();
-            while (curByte != -1) {
-                char oneByteChar = (char) curByte;
-                if (System.lineSeparator().indexOf(oneByteChar) == 0) {
-                    first = 0;
-                    size = 0;
-                    containsFirstSymbol = true;
-                    lineNumber++;
-                } else if (System.lineSeparator().indexOf(oneByteChar) == -1) {
-                    if (size < MAX_SIZE_OF_MESSAGE) {
-                        buffer[(first + size) % MAX_SIZE_OF_MESSAGE] = (byte) curByte;
-                        size++;
-                    } else {
-                        buffer[first] = (byte) curByte;
-                        first = (first + 1) % MAX_SIZE_OF_MESSAGE;
-                        containsFirstSymbol = false;
+        return visitFile(file, attr, null);
+    }
+
+    /**
+     * @param content whole content of the file from absolute index {@code 0} to the limit, that was already read by
+     *                the caller, or null, if file should be read by grep. Content is only read, but it is kept until
+     *                the file is scanned, so it should not be reused for other files
+     */
+    FileVisitResult visitFile(Path file, BasicFileAttributes attr, ByteBuffer content) throws IOException {
+        if (statistics == null) {
+            return visit(file, attr, content);
+        }
+        statistics.fileVisited(System.nanoTime() - lastVisitEnd);
+        try {
+            return visit(file, attr, content);
+        } finally {
+            lastVisitEnd = System.nanoTime();
+        }
+    }
+
+    private FileVisitResult visit(final Path file, final BasicFileAttributes attr, ByteBuffer content)
+            throws IOException {
+        final boolean candidate = index == null || index.isCandidate(file, attr);
+        if (!candidate && !scanner.writesNotFound()) {
+            return FileVisitResult.CONTINUE;
+        }
+        if (pool == null) {
+            return scanFile(file, attr, candidate, content, out);
+        }
+        filesInFlight.acquireUninterruptibly();
+        if (sorted) {
+            final SortedOutput output = new SortedOutput();
+            sortedOutputs.add(output);
+            writeSortedResults();
+            execute(file, candidate, content, new ReadAhead.Consumer() {
+                @Override
+                public void accept(ByteBuffer content) {
+                    try {
+                        scanFile(file, attr, candidate, content, output);
+                    } catch (IOException | RuntimeException | Error e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        output.scanned = true;
+                        writeSortedResults();
                     }
                 }
-                String encodingOfFounded = searcher.proceed(curByte);
-                curByte = in.read();
-                if (encodingOfFounded != null) {
-                    if (encodingOfFounded.equals(UTF_8)) {
-                        int bytesWereSkipped = 0;
-                        while (isNotAFirstByteInUTF8(buffer[first])
-                                && bytesWereSkipped < MAX_BYTES_PER_CHAR_IN_UTF_8 - 1 && size > MAX_SIZE_OF_MESSAGE / 2) {
-                            bytesWereSkipped++;
-                            first = (first + 1) % MAX_SIZE_OF_MESSAGE;
-                            size--;
-                        }
+            });
+        } else {
+            execute(file, candidate, content, new ReadAhead.Consumer() {
+                @Override
+                public void accept(ByteBuffer content) {
+                    try (Writer result = new FileOutput()) {
+                        scanFile(file, attr, candidate, content, result);
+                    } catch (IOException | RuntimeException | Error e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        filesInFlight.release();
                     }
-                    byte[] bytes = new byte[size];
-                    int sizeOfSuffix = Math.min(size, MAX_SIZE_OF_MESSAGE - first);
-                    System.arraycopy(buffer, first, bytes, 0, sizeOfSuffix);
-                    System.arraycopy(buffer, 0, bytes, sizeOfSuffix, size - sizeOfSuffix);
-                    out.write(file.toString() + '(' + lineNumber + ')' + ": "
-                            + (containsFirstSymbol ? "" : "...")
-                            + new String(bytes, encodingOfFounded)
-                            + ((curByte == '\r' || curByte == '\n' || curByte == -1) ? "" : "...")
-                            + System.lineSeparator());
-                    out.flush();
                 }
+            });
+        }
+        rethrowFailure();
+        return FileVisitResult.CONTINUE;
+    }
+
+    /**
+     * Runs the scan of the file by the pool, after the file is read ahead, if it is a candidate and should be read,
+     * and its content was not read yet.
+     */
+    private void execute(Path file, boolean candidate, final ByteBuffer content, final ReadAhead.Consumer scan) {
+        if (readAhead != null && candidate && content == null) {
+            readAhead.read(file, scan);
+        } else {
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    scan.accept(content);
+                }
+            });
+        }
+    }
+
+    /**
+     * Waits for all files, submitted to the pool, writes results, that were not written yet, and saves the index.
+     */
+    public void finish() throws IOException {
+        if (readAhead != null) {
+            readAhead.close();
+        }
+        if (pool != null) {
+            awaitResults();
+        }
+        if (index != null) {
+            index.save();
+        }
+    }
+
+    private void awaitResults() throws IOException {
+        pool.shutdown();
+        awaitTermination();
+        out.flush();
+        rethrowFailure();
+    }
+
+    /**
+     * Writes results of the files from the head of {@link #sortedOutputs}, so results are written in order of the
+     * walk as soon as they can be: results of the scanned files are written at once, and the first file, that is not
+     * scanned yet, starts to write its result directly. Files leave {@link #filesInFlight}, only after their results
+     * are written, so the files, that wait for the slow one, keep at most {@link #MAX_BUFFERED_OUTPUT_PER_FILE}
+     * characters of their results each in memory.
+     */
+    private void writeSortedResults() {
+        outLock.lock();
+        try {
+            SortedOutput output;
+            while ((output = sortedOutputs.peek()) != null) {
+                try {
+                    output.startStreaming();
+                } catch (IOException | RuntimeException e) {
+                    failure.compareAndSet(null, e);
+                }
+                if (!output.scanned) {
+                    break;
+                }
+                sortedOutputs.poll();
+                filesInFlight.release();
             }
+        } finally {
+            outLock.unlock();
+        }
+    }
+
+    private void rethrowFailure() throws IOException {
+        Throwable e = failure.get();
+        if (e != null) {
+            Throwables.propagateIfInstanceOf(e, IOException.class);
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private void awaitTermination() throws InterruptedIOException {
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * @param candidate false, if index shows, that file does not contain patterns
+     * @param content   whole content of the file, that was read ahead, or null
+     */
+    private FileVisitResult scanFile(Path file, BasicFileAttributes attr, boolean candidate, ByteBuffer content,
+                                     Writer out) throws IOException {
+        if (!candidate) {
+            scanner.writeNotFound(file, out);
             return FileVisitResult.CONTINUE;
-        } catch (FileNotFoundException e) {
-            return FileVisitResult.CONTINUE;
         }
+        try {
+            TrigramIndex.Trigrams trigrams = index == null ? null : index.newTrigrams(file, attr);
+            scanner.scan(file, content, out, trigrams);
+            if (trigrams != null) {
+                index.update(file, attr, trigrams);
+            }
+        } catch (FileSystemException e) {
+            // file was removed or can not be read
+        }
+        return FileVisitResult.CONTINUE;
     }
 
-    private static boolean isNotAFirstByteInUTF8(byte a) {
-        return (((256 + a) % 256) & 0xC0) == 0x80;
+    /**
+     * Output of one file in sorted mode. Until the file becomes the first one, which result is not written yet, its
+     * output is buffered, and the buffer is spilled to the temporary file, when it is full. Then buffered output is
+     * written, and the rest of it is written directly.
+     */
+    private class SortedOutput extends Writer {
+
+        private final StringBuilder buffer = new StringBuilder();
+        private Path spillFile;
+        private Writer spill;
+        private boolean streaming = false;
+        private volatile boolean scanned = false;
+
+        @Override
+        public synchronized void write(char[] chars, int offset, int length) throws IOException {
+            if (streaming) {
+                out.write(chars, offset, length);
+                return;
+            }
+            buffer.append(chars, offset, length);
+            if (buffer.length() > MAX_BUFFERED_OUTPUT_PER_FILE) {
+                if (spill == null) {
+                    spillFile = Files.createTempFile("grep", ".out");
+                    spill = Files.newBufferedWriter(spillFile, Charset.forName(UTF_8));
+                }
+                spill.append(buffer);
+                buffer.setLength(0);
+            }
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            if (streaming) {
+                out.flush();
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+
+        /**
+         * Writes the buffered output, so the rest of it is written directly. Is called under {@link #outLock}, when
+         * the file becomes the first one, which result is not written yet.
+         */
+        private synchronized void startStreaming() throws IOException {
+            if (streaming) {
+                return;
+            }
+            streaming = true;
+            if (spill != null) {
+                try {
+                    spill.close();
+                    try (Reader in = Files.newBufferedReader(spillFile, Charset.forName(UTF_8))) {
+                        char[] chars = new char[MAX_BUFFERED_OUTPUT_PER_FILE];
+                        int read;
+                        while ((read = in.read(chars)) != -1) {
+                            out.write(chars, 0, read);
+                        }
+                    }
+                } finally {
+                    Files.deleteIfExists(spillFile);
+                }
+            }
+            out.write(buffer.toString());
+            buffer.setLength(0);
+            buffer.trimToSize();
+        }
+
+    }
+
+    /**
+     * Output of one file, that is scanned by the pool. Lines of the file are buffered, so that they are not mixed with
+     * lines of other files, and, if there are too many of them, whole lines from the buffer are written under
+     * {@link #outLock}, which is released right after it, so other files are not blocked until this one is scanned.
+     */
+    private class FileOutput extends Writer {
+
+        private final StringBuilder buffer = new StringBuilder();
+
+        @Override
+        public void write(char[] chars, int offset, int length) throws IOException {
+            buffer.append(chars, offset, length);
+            if (buffer.length() > MAX_BUFFERED_OUTPUT_PER_FILE) {
+                int linesEnd = buffer.lastIndexOf(System.lineSeparator());
+                if (linesEnd != -1) {
+                    writeBuffer(linesEnd + System.lineSeparator().length());
+                }
+            }
+        }
+
+        /**
+         * Lines are written, when the buffer is full or the file is scanned.
+         */
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (buffer.length() > 0) {
+                writeBuffer(buffer.length());
+            }
+        }
+
+        private void writeBuffer(int length) throws IOException {
+            String written = buffer.substring(0, length);
+            buffer.delete(0, length);
+            outLock.lock();
+            try {
+                out.write(written);
+                out.flush();
+            } finally {
+                outLock.unlock();
+            }
+        }
+
     }
 
 }
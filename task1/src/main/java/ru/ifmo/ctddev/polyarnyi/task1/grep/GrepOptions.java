@@ -0,0 +1,301 @@
+package ru.ifmo.ctddev.polyarnyi.task1.grep;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Command line options of {@link Grep}. Options go before the patterns, {@code "--"} ends the list of options.
+ *
+ * @author Nickolay Polyarniy aka PolarNick
+ */
+public class GrepOptions {
+
+    private static final String STRINGS_FROM_CONSOLE = "-";
+    private static final String END_OF_OPTIONS = "--";
+    private static final String THREADS = "-j";
+    private static final String READ_AHEAD = "--read-ahead";
+    private static final String SORTED = "--sorted";
+    private static final String FILES_WITH_MATCHES = "-l";
+    private static final String FILES_WITHOUT_MATCHES = "-L";
+    private static final String COUNT = "-c";
+    private static final String IGNORE_CASE = "-i";
+    private static final String REGEX = "-E";
+    private static final String DETECT_ENCODING = "--detect-encoding";
+    private static final String DEDUPLICATE = "--dedup";
+    private static final String INDEX = "--index";
+    private static final String CACHE = "--cache";
+    private static final String STATISTICS = "--stats";
+    private static final String FLUSH_LATENCY = "--flush-latency";
+    private static final String WATCH = "--watch";
+    private static final String RESULTS = "--results";
+    private static final String AFTER_CONTEXT = "-A";
+    private static final String BEFORE_CONTEXT = "-B";
+    private static final String CONTEXT = "-C";
+    private static final int DEFAULT_FLUSH_LATENCY_MILLIS = 100;
+
+    /**
+     * What is written for each scanned file.
+     */
+    public enum OutputMode {
+        /**
+         * Lines with found patterns.
+         */
+        LINES,
+        /**
+         * Path of the file, if some pattern was found in it. File is not scanned after the first found pattern.
+         */
+        FILES_WITH_MATCHES,
+        /**
+         * Path of the file, if no patterns were found in it. File is not scanned after the first found pattern.
+         */
+        FILES_WITHOUT_MATCHES,
+        /**
+         * Path of the file and number of lines, that would be written in {@link #LINES} mode.
+         */
+        COUNT
+    }
+
+    private int threads = 1;
+    private int readAhead = 0;
+    private boolean sorted = false;
+    private OutputMode outputMode = OutputMode.LINES;
+    private boolean ignoreCase = false;
+    private boolean regex = false;
+    private boolean detectEncoding = false;
+    private boolean deduplicate = false;
+    private Path indexFile = null;
+    private Path cacheFile = null;
+    private boolean statistics = false;
+    private int flushLatencyMillis = DEFAULT_FLUSH_LATENCY_MILLIS;
+    private boolean watch = false;
+    private Path resultsFile = null;
+    private int contextBefore = 0;
+    private int contextAfter = 0;
+    private boolean patternsFromConsole = false;
+    private final List<String> patterns = new ArrayList<>();
+
+    public static GrepOptions parse(String[] args) {
+        GrepOptions options = new GrepOptions();
+        int i = 0;
+        while (i < args.length && args[i].startsWith("-") && !STRINGS_FROM_CONSOLE.equals(args[i])) {
+            String option = args[i++];
+            if (END_OF_OPTIONS.equals(option)) {
+                break;
+            } else if (THREADS.equals(option)) {
+                options.threads = parsePositiveInt(option, i < args.length ? args[i++] : null);
+            } else if (READ_AHEAD.equals(option)) {
+                options.readAhead = parsePositiveInt(option, i < args.length ? args[i++] : null);
+            } else if (SORTED.equals(option)) {
+                options.sorted = true;
+            } else if (FILES_WITH_MATCHES.equals(option)) {
+                options.setOutputMode(option, OutputMode.FILES_WITH_MATCHES);
+            } else if (FILES_WITHOUT_MATCHES.equals(option)) {
+                options.setOutputMode(option, OutputMode.FILES_WITHOUT_MATCHES);
+            } else if (COUNT.equals(option)) {
+                options.setOutputMode(option, OutputMode.COUNT);
+            } else if (IGNORE_CASE.equals(option)) {
+                options.ignoreCase = true;
+            } else if (REGEX.equals(option)) {
+                options.regex = true;
+            } else if (DETECT_ENCODING.equals(option)) {
+                options.detectEncoding = true;
+            } else if (DEDUPLICATE.equals(option)) {
+                options.deduplicate = true;
+            } else if (INDEX.equals(option)) {
+                options.indexFile = Paths.get(parseValue(option, i < args.length ? args[i++] : null));
+            } else if (STATISTICS.equals(option)) {
+                options.statistics = true;
+            } else if (FLUSH_LATENCY.equals(option)) {
+                options.flushLatencyMillis = parsePositiveInt(option, i < args.length ? args[i++] : null);
+            } else if (WATCH.equals(option)) {
+                options.watch = true;
+            } else if (RESULTS.equals(option)) {
+                options.resultsFile = Paths.get(parseValue(option, i < args.length ? args[i++] : null));
+            } else if (AFTER_CONTEXT.equals(option)) {
+                options.contextAfter = parseNotNegativeInt(option, i < args.length ? args[i++] : null);
+            } else if (BEFORE_CONTEXT.equals(option)) {
+                options.contextBefore = parseNotNegativeInt(option, i < args.length ? args[i++] : null);
+            } else if (CONTEXT.equals(option)) {
+                options.contextBefore = parseNotNegativeInt(option, i < args.length ? args[i++] : null);
+                options.contextAfter = options.contextBefore;
+            } else if (CACHE.equals(option)) {
+                options.cacheFile = Paths.get(parseValue(option, i < args.length ? args[i++] : null));
+            } else {
+                throw new IllegalArgumentException("Unknown option \"" + option + "\"!");
+            }
+        }
+        if (args.length - i == 1 && STRINGS_FROM_CONSOLE.equals(args[i])) {
+            options.patternsFromConsole = true;
+        } else {
+            options.patterns.addAll(Arrays.asList(args).subList(i, args.length));
+        }
+        if (!options.patternsFromConsole && options.patterns.isEmpty()) {
+            throw new IllegalArgumentException("No patterns were specified!");
+        }
+        return options;
+    }
+
+    private void setOutputMode(String option, OutputMode mode) {
+        if (outputMode != OutputMode.LINES && outputMode != mode) {
+            throw new IllegalArgumentException("Option \"" + option + "\" conflicts with previous output mode!");
+        }
+        outputMode = mode;
+    }
+
+    private static String parseValue(String option, String value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Option \"" + option + "\" expects value!");
+        }
+        return value;
+    }
+
+    private static int parsePositiveInt(String option, String value) {
+        try {
+            int result = Integer.parseInt(value);
+            if (result > 0) {
+                return result;
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        throw new IllegalArgumentException("Option \"" + option + "\" expects positive integer, but was \"" + value + "\"!");
+    }
+
+    private static int parseNotNegativeInt(String option, String value) {
+        try {
+            int result = Integer.parseInt(value);
+            if (result >= 0) {
+                return result;
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        throw new IllegalArgumentException("Option \"" + option + "\" expects not negative integer, but was \""
+                + value + "\"!");
+    }
+
+    /**
+     * @return number of threads, that scan files. {@code 1} means, that files are scanned by the walking thread.
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * @return number of files, that can be read ahead of their scan by {@link ReadAhead}, or {@code 0}, if each file
+     * is read by the thread, that scans it
+     */
+    public int getReadAhead() {
+        return readAhead;
+    }
+
+    /**
+     * @return true, if results should be written in order of file paths, and false, if results of each file should
+     * be written as soon as it is scanned.
+     */
+    public boolean isSorted() {
+        return sorted;
+    }
+
+    public OutputMode getOutputMode() {
+        return outputMode;
+    }
+
+    /**
+     * @return true, if upper and lower case of letters should not be distinguished
+     */
+    public boolean isIgnoreCase() {
+        return ignoreCase;
+    }
+
+    /**
+     * @return true, if patterns are {@link Regex regular expressions}
+     */
+    public boolean isRegex() {
+        return regex;
+    }
+
+    /**
+     * @return true, if encoding of each file should be detected to search patterns only in this encoding
+     */
+    public boolean isDetectEncoding() {
+        return detectEncoding;
+    }
+
+    /**
+     * @return true, if files with the same content should be scanned once, see {@link DuplicateContents}
+     */
+    public boolean isDeduplicate() {
+        return deduplicate;
+    }
+
+    /**
+     * @return file of {@link TrigramIndex}, or null, if index should not be used
+     */
+    public Path getIndexFile() {
+        return indexFile;
+    }
+
+    /**
+     * @return file, to which automaton of patterns is compiled by {@link MultiEncodingSearch#compile}, or null, if
+     * automaton should be built on each start
+     */
+    public Path getCacheFile() {
+        return cacheFile;
+    }
+
+    /**
+     * @return true, if statistics of the automata and of the scan should be collected and written to the standard
+     * error stream
+     */
+    public boolean isStatistics() {
+        return statistics;
+    }
+
+    /**
+     * @return time in milliseconds, after which found lines are written, even if the output buffer is not full
+     */
+    public int getFlushLatencyMillis() {
+        return flushLatencyMillis;
+    }
+
+    /**
+     * @return true, if after the walk changed files should be scanned again until the process is stopped, see
+     * {@link GrepWatcher}
+     */
+    public boolean isWatch() {
+        return watch;
+    }
+
+    /**
+     * @return file, from which results of unchanged files are reused in watch mode, or null, if they should be kept
+     * only in memory
+     */
+    public Path getResultsFile() {
+        return resultsFile;
+    }
+
+    /**
+     * @return number of lines, that should be written before each found line
+     */
+    public int getContextBefore() {
+        return contextBefore;
+    }
+
+    /**
+     * @return number of lines, that should be written after each found line
+     */
+    public int getContextAfter() {
+        return contextAfter;
+    }
+
+    public boolean isPatternsFromConsole() {
+        return patternsFromConsole;
+    }
+
+    public List<String> getPatterns() {
+        return patterns;
+    }
+
+}
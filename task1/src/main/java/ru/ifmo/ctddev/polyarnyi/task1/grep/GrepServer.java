@@ -0,0 +1,347 @@
+package ru.ifmo.ctddev.polyarnyi.task1.grep;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Long-running {@link Grep}, that keeps automata of the recent patterns and listings of the walked directories
+ * between queries, so that small queries are not dominated by start of JVM and building of automata.
+ *
+ * Queries are read from the standard input line by line, each line consists of fields, separated by tabulation:
+ * {@code "id\tdirectory\targ1\targ2\t...\targN"}, where arguments are the same, as arguments of {@link Grep} (except
+ * reading of patterns from console, watching, statistics and reading ahead, that are not supported by server), and
+ * empty directory means current directory of the server. Each line of the
+ * result is written as {@code "id\tline"}, and the result ends with line {@code "id OK"} or
+ * {@code "id ERROR message"}. Empty line or end of the input stops the server after all queries are answered.
+ *
+ * Queries are answered by one thread in order of their arrival, but all queries to the same directory, that came
+ * while the previous queries were answered, share one walk of the tree: each small file is read once, and its content
+ * is scanned for all of them.
+ *
+ * @author Nickolay Polyarniy aka PolarNick
+ */
+public class GrepServer {
+
+    private static final String USAGE = "Proper Usage is: \"java GrepServer\"\n" +
+            "Queries are read from console as \"id<TAB>directory<TAB>arg1<TAB>...<TAB>argN\",\n" +
+            "where arguments are the same as arguments of Grep.";
+    private static final String FIELD_SEPARATOR = "\t";
+    private static final String OK = " OK";
+    private static final String ERROR = " ERROR ";
+    private static final String UTF_8 = "UTF-8";
+    private static final int MAX_CACHED_SEARCHERS = 16;
+
+    private final BufferedReader in;
+    private final Writer out;
+    private final BlockingQueue<Query> queries = new LinkedBlockingQueue<>();
+    private final Query endOfQueries = new Query(null, null, null, null);
+    private final DirectoryCache directories = new DirectoryCache();
+    private final List<String> encodings = Grep.getEncodings();
+    private final Map<List<Object>, MultiEncodingSearch> searchers
+            = new LinkedHashMap<List<Object>, MultiEncodingSearch>(MAX_CACHED_SEARCHERS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<List<Object>, MultiEncodingSearch> eldest) {
+            return size() > MAX_CACHED_SEARCHERS;
+        }
+    };
+
+    public static void main(String[] args) {
+        if (args.length != 0) {
+            System.out.println(USAGE);
+            return;
+        }
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(System.in, UTF_8));
+             Writer out = new BufferedWriter(new OutputStreamWriter(System.out, UTF_8))) {
+            new GrepServer(in, out).run();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+    public GrepServer(BufferedReader in, Writer out) {
+        this.in = in;
+        this.out = out;
+    }
+
+    /**
+     * Answers queries until the end of the input.
+     */
+    public void run() throws IOException {
+        Thread answering = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    answerQueries();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "GrepServer-answering");
+        answering.start();
+        try {
+            String line;
+            while ((line = in.readLine()) != null && !line.isEmpty()) {
+                Query query = parseQuery(line);
+                if (query != null) {
+                    queries.add(query);
+                }
+            }
+        } finally {
+            queries.add(endOfQueries);
+            try {
+                answering.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /**
+     * @return query, or null, if it is invalid (then error is already written)
+     */
+    private Query parseQuery(String line) throws IOException {
+        String[] fields = line.split(FIELD_SEPARATOR, -1);
+        String id = fields[0];
+        try {
+            if (fields.length < 3) {
+                throw new IllegalArgumentException("Query should consist of id, directory and arguments!");
+            }
+            GrepOptions options = GrepOptions.parse(Arrays.copyOfRange(fields, 2, fields.length));
+            if (options.isPatternsFromConsole()) {
+                throw new IllegalArgumentException("Patterns can not be read from console by server!");
+            }
+            if (options.isWatch() || options.isStatistics() || options.getReadAhead() > 0) {
+                throw new IllegalArgumentException("Watching, statistics and reading ahead are not supported by server!");
+            }
+            return new Query(id, Paths.get(fields[1]), options, new QueryOutput(id));
+        } catch (IllegalArgumentException e) {
+            writeLine(id + ERROR + e.getMessage());
+            flush();
+            return null;
+        }
+    }
+
+    private void answerQueries() throws InterruptedException {
+        List<Query> batch = new ArrayList<>();
+        while (true) {
+            batch.add(queries.take());
+            queries.drainTo(batch);
+            boolean ends = batch.remove(endOfQueries);
+            Map<Path, List<Query>> byDirectory = new LinkedHashMap<>();
+            for (Query query : batch) {
+                if (!byDirectory.containsKey(query.directory)) {
+                    byDirectory.put(query.directory, new ArrayList<Query>());
+                }
+                byDirectory.get(query.directory).add(query);
+            }
+            batch.clear();
+            for (Map.Entry<Path, List<Query>> entry : byDirectory.entrySet()) {
+                answer(entry.getKey(), entry.getValue());
+            }
+            if (ends) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Answers all queries to the same directory by one walk of its tree.
+     */
+    private void answer(Path directory, final List<Query> queries) {
+        for (Query query : queries) {
+            try {
+                query.start(searcher(query.options));
+            } catch (IOException | RuntimeException e) {
+                query.failure = e;
+            }
+        }
+        try {
+            directories.walk(directory, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attr) {
+                    ByteBuffer content = null;
+                    if (queries.size() > 1 && attr.size() <= FileScanner.BUFFER_SIZE) {
+                        content = read(file);
+                    }
+                    for (Query query : queries) {
+                        query.visitFile(file, attr, content);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            for (Query query : queries) {
+                if (query.failure == null) {
+                    query.failure = e;
+                }
+            }
+        }
+        for (Query query : queries) {
+            query.finish();
+        }
+    }
+
+    /**
+     * @return whole content of the small file in the new buffer, that is not reused, because queries can scan it later
+     * by their pools, or null, if file can not be read (then each query reports it on its own)
+     */
+    private static ByteBuffer read(Path file) {
+        try {
+            byte[] content = Files.readAllBytes(file);
+            return content.length <= FileScanner.BUFFER_SIZE ? ByteBuffer.wrap(content) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private MultiEncodingSearch searcher(GrepOptions options) throws IOException {
+        List<Object> key = Arrays.<Object>asList(options.getPatterns(), options.isIgnoreCase(),
+                options.isDetectEncoding(), options.isRegex());
+        MultiEncodingSearch searcher = searchers.get(key);
+        if (searcher == null) {
+            searcher = options.getCacheFile() == null
+                    ? new MultiEncodingSearch(options.getPatterns(), encodings, options.isIgnoreCase(),
+                    options.isDetectEncoding(), options.isRegex())
+                    : MultiEncodingSearch.compile(options.getPatterns(), encodings, options.isIgnoreCase(),
+                    options.isDetectEncoding(), options.isRegex(), options.getCacheFile());
+            searchers.put(key, searcher);
+        }
+        return searcher;
+    }
+
+    private void writeLine(String line) throws IOException {
+        synchronized (out) {
+            out.write(line);
+            out.write(System.lineSeparator());
+        }
+    }
+
+    private void flush() throws IOException {
+        synchronized (out) {
+            out.flush();
+        }
+    }
+
+    private class Query {
+
+        private final String id;
+        private final Path directory;
+        private final GrepOptions options;
+        private final QueryOutput output;
+        private Grep grep;
+        private Throwable failure;
+
+        private Query(String id, Path directory, GrepOptions options, QueryOutput output) {
+            this.id = id;
+            this.directory = directory;
+            this.options = options;
+            this.output = output;
+        }
+
+        private void start(MultiEncodingSearch searcher) throws IOException {
+            TrigramIndex index = null;
+            if (options.getIndexFile() != null && !options.isRegex()) {
+                index = TrigramIndex.open(options.getIndexFile(), options.getPatterns(), encodings,
+                        options.isIgnoreCase());
+            }
+            grep = new Grep(searcher, output, options, index);
+        }
+
+        /**
+         * @param content whole content of the file, that is shared with other queries, or null
+         */
+        private void visitFile(Path file, BasicFileAttributes attr, ByteBuffer content) {
+            if (failure != null) {
+                return;
+            }
+            try {
+                grep.visitFile(file, attr, content);
+            } catch (IOException | RuntimeException e) {
+                failure = e;
+            }
+        }
+
+        private void finish() {
+            try {
+                if (grep != null) {
+                    grep.finish();
+                }
+            } catch (IOException | RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+            try {
+                output.close();
+                writeLine(failure == null ? id + OK : id + ERROR + failure);
+                flush();
+            } catch (IOException e) {
+                // output is closed, so nobody waits for the answer
+            }
+        }
+
+    }
+
+    /**
+     * Output of one query, that prefixes its lines by id of the query.
+     */
+    private class QueryOutput extends Writer {
+
+        private final String prefix;
+        private final StringBuilder line = new StringBuilder();
+
+        private QueryOutput(String id) {
+            this.prefix = id + FIELD_SEPARATOR;
+        }
+
+        @Override
+        public synchronized void write(char[] chars, int offset, int length) throws IOException {
+            for (int i = offset; i < offset + length; i++) {
+                if (chars[i] == '\n') {
+                    writeLine(prefix + line);
+                    line.setLength(0);
+                } else if (chars[i] != '\r') {
+                    line.append(chars[i]);
+                }
+            }
+        }
+
+        /**
+         * Lines are written to the output of the server as soon as they end, and the output is flushed, when query is
+         * answered.
+         */
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (line.length() > 0) {
+                writeLine(prefix + line);
+                line.setLength(0);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,225 @@
+package ru.ifmo.ctddev.polyarnyi.task1.grep;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps results of the tree actual after its walk: directories of the tree are watched by {@link WatchService}, and
+ * only files, that were created or modified since they were scanned, are scanned again, so the watch costs in
+ * proportion to the changes, not to the size of the tree.
+ *
+ * The walk writes results of all files, as {@link Grep} does. After it only changes of results are written: each
+ * line, that is not written for the file anymore, is prefixed by {@code "-"}, and each new line - by {@code "+"}.
+ * Results of the files are kept in {@link ResultCache}, so if it was loaded from the file, the walk scans only files,
+ * that were changed since the cache was saved. If the previous result of the file was too long to be kept, line
+ * {@code "-"} with the path of the file is written instead of its lines, and all lines of its new result are added.
+ *
+ * Events of the burst of changes are collected for {@link #EVENTS_LATENCY_MILLIS}, so the file, that is written by
+ * parts, is scanned once. If events were lost, the whole tree is walked again, but only changed files are scanned.
+ *
+ * @author Nickolay Polyarniy aka PolarNick
+ */
+class GrepWatcher implements Closeable {
+
+    private static final String ADDED = "+";
+    private static final String REMOVED = "-";
+    private static final long EVENTS_LATENCY_MILLIS = 50;
+
+    private final FileScanner scanner;
+    private final Writer out;
+    private final ResultCache results;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> directories = new HashMap<>();
+    private Path root;
+
+    GrepWatcher(FileScanner scanner, Writer out, ResultCache results) throws IOException {
+        this.scanner = scanner;
+        this.out = out;
+        this.results = results;
+        this.watchService = FileSystems.getDefault().newWatchService();
+    }
+
+    /**
+     * Walks the tree, writes results of all its files and starts to watch its directories.
+     */
+    void walk(Path root) throws IOException {
+        this.root = root;
+        walk(root, false);
+        out.flush();
+    }
+
+    /**
+     * Writes changes of results, until watcher is closed or the root of the tree is removed.
+     */
+    void watch() throws IOException {
+        try {
+            while (!directories.isEmpty()) {
+                Set<Path> changed = new LinkedHashSet<>();
+                WatchKey key = watchService.take();
+                do {
+                    collectChanged(key, changed);
+                } while ((key = watchService.poll(EVENTS_LATENCY_MILLIS, TimeUnit.MILLISECONDS)) != null);
+                for (Path path : changed) {
+                    update(path);
+                }
+                out.flush();
+            }
+        } catch (ClosedWatchServiceException e) {
+            // watcher was closed
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Stops the watch. Can be called from any thread.
+     */
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+    private void collectChanged(WatchKey key, Set<Path> changed) {
+        Path directory = directories.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                changed.add(root);
+            } else if (directory != null) {
+                changed.add(directory.resolve((Path) event.context()));
+            }
+        }
+        if (!key.reset()) {
+            directories.remove(key);
+        }
+    }
+
+    private void update(Path path) throws IOException {
+        BasicFileAttributes attr;
+        try {
+            attr = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            writeRemoved(results.remove(path));
+            return;
+        }
+        if (attr.isDirectory()) {
+            walk(path, true);
+        } else {
+            scanFile(path, attr, true);
+        }
+    }
+
+    /**
+     * @param changes true, if only changes of results should be written
+     */
+    private void walk(Path directory, final boolean changes) throws IOException {
+        final Set<Path> visited = new HashSet<>();
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attr) throws IOException {
+                // empty path of the current directory can not be watched
+                directories.put(dir.toAbsolutePath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attr) throws IOException {
+                visited.add(file);
+                scanFile(file, attr, changes);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                // file was removed or can not be read
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Map<Path, String> removed = results.retain(directory, visited);
+        if (changes) {
+            writeRemoved(removed);
+        }
+    }
+
+    /**
+     * @param changes true, if only changes of the result should be written
+     */
+    private void scanFile(Path file, BasicFileAttributes attr, boolean changes) throws IOException {
+        String cached = results.get(file, attr);
+        if (cached != null) {
+            if (!changes) {
+                out.write(cached);
+            }
+            return;
+        }
+        long started = System.currentTimeMillis();
+        StringWriter result = new StringWriter();
+        try {
+            scanner.scan(file, result);
+        } catch (FileSystemException e) {
+            // file was removed or can not be read
+            writeRemoved(results.remove(file));
+            return;
+        }
+        String previous = results.put(file, attr, started, result.toString());
+        if (changes) {
+            writeChanges(file, previous, result.toString());
+        } else {
+            out.write(result.toString());
+        }
+    }
+
+    private void writeRemoved(Map<Path, String> removed) throws IOException {
+        for (Map.Entry<Path, String> result : removed.entrySet()) {
+            writeChanges(result.getKey(), result.getValue(), "");
+        }
+    }
+
+    /**
+     * @param previous previous result of the file, or null, if it is not known
+     */
+    private void writeChanges(Path file, String previous, String current) throws IOException {
+        if (previous == null) {
+            out.write(REMOVED + file + System.lineSeparator());
+            previous = "";
+        }
+        Multiset<String> notMatched = HashMultiset.create(lines(previous));
+        List<String> added = new ArrayList<>();
+        for (String line : lines(current)) {
+            if (!notMatched.remove(line)) {
+                added.add(line);
+            }
+        }
+        for (String line : lines(previous)) {
+            if (notMatched.remove(line)) {
+                out.write(REMOVED + line + System.lineSeparator());
+            }
+        }
+        for (String line : added) {
+            out.write(ADDED + line + System.lineSeparator());
+        }
+    }
+
+    private static Iterable<String> lines(String result) {
+        return Splitter.on(System.lineSeparator()).omitEmptyStrings().split(result);
+    }
+
+}
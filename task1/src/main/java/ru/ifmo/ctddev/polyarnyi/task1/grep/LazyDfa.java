@@ -0,0 +1,587 @@
+package ru.ifmo.ctddev.polyarnyi.task1.grep;
+
+import com.google.common.base.Preconditions;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Search of {@link Regex regular expressions} by the deterministic automaton over bytes, that is built lazily from
+ * {@link ByteNfa}: state of the automaton is the set of states of NFA, and its transition by the byte is computed,
+ * when it is taken for the first time. Each thread has its own cache of states, and when there are
+ * {@link #MAX_CACHED_STATES} of them, cache is cleared, so the memory is bounded even for expressions with
+ * exponential number of states.
+ *
+ * Lines are searched as grep searches them: each line is reported once, at the end of the earliest match in it (with
+ * all patterns, that end there), and the rest of the line is skipped. End of line is checked by the next byte, so
+ * patterns, that end before it, are reported, when it is processed.
+ *
+ * If each match starts with one of at most {@link #MAX_PREFIXES} literal prefixes of at least
+ * {@link #MIN_PREFIX_LENGTH} bytes, they are searched by {@link AhoCorasick}, while automaton has no started matches.
+ * When prefix is found, automaton processes it and the following bytes, until all started matches fail.
+ *
+ * @author Nickolay Polyarniy aka PolarNick
+ */
+public class LazyDfa<Data> implements SearchEngine<Data> {
+
+    static final int MIN_PREFIX_LENGTH = 3;
+    static final int MAX_PREFIXES = 256;
+    private static final int MAX_PREFIX_LENGTH = 16;
+    private static final int MAX_CACHED_STATES = 1 << 11;
+    private static final int INITIAL_CACHED_STATES = 16;
+    private static final int BYTES_COUNT = 256;
+    private static final int UNKNOWN = -1;
+
+    /**
+     * Some patterns end at this state or before the byte, that led to it.
+     */
+    private static final byte ACCEPTING = 1;
+    /**
+     * There are no started matches at this state, so prefixes can be searched instead.
+     */
+    private static final byte IDLE = 2;
+
+    private final List<Data> data;
+    private final ByteNfa nfa;
+    /**
+     * Literal prefixes of all matches, or null, if they are not searched.
+     */
+    private final AhoCorasick<Integer> prefixes;
+    private final int maxPrefixLength;
+    private final ThreadLocal<Cache> caches = new ThreadLocal<Cache>() {
+        @Override
+        protected Cache initialValue() {
+            return new Cache();
+        }
+    };
+
+    /**
+     * @param data data of each pattern of the automaton
+     */
+    public LazyDfa(ByteNfa nfa, List<Data> data) {
+        Preconditions.checkArgument(nfa.getPatternsCount() == data.size(), "Data must be per pattern!");
+        this.data = new ArrayList<>(data);
+        this.nfa = nfa;
+        List<int[]> prefixes = nfa.findPrefixes(MAX_PREFIXES, MAX_PREFIX_LENGTH);
+        int minPrefixLength = Integer.MAX_VALUE;
+        int maxPrefixLength = 0;
+        List<Integer> prefixIndices = new ArrayList<>();
+        for (int[] prefix : prefixes) {
+            minPrefixLength = Math.min(minPrefixLength, prefix.length);
+            maxPrefixLength = Math.max(maxPrefixLength, prefix.length);
+            prefixIndices.add(prefixIndices.size());
+        }
+        boolean searchesPrefixes = !prefixes.isEmpty() && minPrefixLength >= MIN_PREFIX_LENGTH;
+        this.prefixes = searchesPrefixes ? new AhoCorasick<>(prefixes, prefixIndices, 0, BYTES_COUNT - 1) : null;
+        this.maxPrefixLength = searchesPrefixes ? maxPrefixLength : 0;
+    }
+
+    /**
+     * Reads engine, written by {@link #write}, from the current position of the buffer, and moves position after it.
+     * Prefixes are found again.
+     *
+     * @param data data of each pattern, that engine was built from
+     */
+    static <Data> LazyDfa<Data> read(ByteBuffer in, List<Data> data) {
+        return new LazyDfa<>(ByteNfa.read(in), data);
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        nfa.write(out);
+    }
+
+    @Override
+    public Matcher matcher() {
+        return new Matcher();
+    }
+
+    @Override
+    public Data getData(int patternIndex) {
+        return data.get(patternIndex);
+    }
+
+    /**
+     * @return size of NFA and of the automaton of prefixes (states of the lazy automaton are not counted)
+     */
+    @Override
+    public long getSizeInBytes() {
+        return nfa.getSizeInBytes() + (prefixes == null ? 0 : prefixes.getSizeInBytes());
+    }
+
+    public int getNfaStatesCount() {
+        return nfa.getStatesCount();
+    }
+
+    /**
+     * @return true, if literal prefixes of the matches are searched by {@link AhoCorasick}
+     */
+    public boolean isSearchingPrefixes() {
+        return prefixes != null;
+    }
+
+    /**
+     * State of the lazy automaton: sorted states of NFA (states, that consume bytes, matches and ends of line) and
+     * patterns, that ended before the byte, that led to this state.
+     */
+    private static class State {
+
+        private final int[] nfaStates;
+        /**
+         * Patterns, that ended before the line break (from the last one).
+         */
+        private final int[] endedBefore;
+        private final boolean skipsLine;
+        /**
+         * Patterns, that ended at this state (from the last one).
+         */
+        private final int[] ended;
+        private final int hash;
+
+        private State(int[] nfaStates, int[] endedBefore, boolean skipsLine, ByteNfa nfa) {
+            this.nfaStates = nfaStates;
+            this.endedBefore = endedBefore;
+            this.skipsLine = skipsLine;
+            List<Integer> ended = new ArrayList<>();
+            for (int s : nfaStates) {
+                if (nfa.getType(s) == ByteNfa.MATCH) {
+                    ended.add(nfa.getOut(s));
+                }
+            }
+            this.ended = descending(ended);
+            this.hash = 31 * (31 * Arrays.hashCode(nfaStates) + Arrays.hashCode(endedBefore)) + (skipsLine ? 1 : 0);
+        }
+
+        private boolean isAccepting() {
+            return ended.length > 0 || endedBefore.length > 0;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof State)) {
+                return false;
+            }
+            State state = (State) o;
+            return hash == state.hash && skipsLine == state.skipsLine && Arrays.equals(nfaStates, state.nfaStates)
+                    && Arrays.equals(endedBefore, state.endedBefore);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+    }
+
+    private static int[] descending(List<Integer> patterns) {
+        int[] result = new int[patterns.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = patterns.get(i);
+        }
+        Arrays.sort(result);
+        for (int i = 0; i < result.length / 2; i++) {
+            int swapped = result[i];
+            result[i] = result[result.length - 1 - i];
+            result[result.length - 1 - i] = swapped;
+        }
+        return result;
+    }
+
+    /**
+     * States of the lazy automaton, that were built by one thread. Transition from state {@code s} by byte {@code b}
+     * is {@code transitions[(s << 8) | b]}, or {@link #UNKNOWN}, if it was not computed yet.
+     */
+    private class Cache {
+
+        private final ByteNfa.Closure closure = new ByteNfa.Closure(nfa);
+        private final ByteNfa.Closure beforeLineEnd = new ByteNfa.Closure(nfa);
+        private final Map<State, Integer> ids = new HashMap<>();
+        private State[] states = new State[INITIAL_CACHED_STATES];
+        private int[] transitions = new int[INITIAL_CACHED_STATES * BYTES_COUNT];
+        private byte[] flags = new byte[INITIAL_CACHED_STATES];
+        private int count = 0;
+        /**
+         * Number of times, when cache was cleared. States of other generations have other numbers.
+         */
+        private int generation = 0;
+        private int startOfLine;
+        private int startInLine;
+        private int skippingLine;
+
+        private Cache() {
+            Arrays.fill(transitions, UNKNOWN);
+            addStartStates();
+        }
+
+        private void addStartStates() {
+            closure.clear();
+            closure.add(nfa.getStart(), true, false);
+            startOfLine = intern(new State(closure.toSortedArray(), new int[0], false, nfa));
+            closure.clear();
+            closure.add(nfa.getStart(), false, false);
+            startInLine = intern(new State(closure.toSortedArray(), new int[0], false, nfa));
+            skippingLine = intern(new State(new int[0], new int[0], true, nfa));
+            for (int b = 0; b < BYTES_COUNT; b++) {
+                transitions[(skippingLine << 8) | b] = b == Regex.LINE_FEED ? startOfLine : skippingLine;
+            }
+            if (prefixes != null) {
+                flags[startOfLine] |= IDLE;
+                flags[startInLine] |= IDLE;
+            }
+        }
+
+        /**
+         * @return number of the state, that is added, if it is not in the cache yet
+         */
+        private int intern(State state) {
+            Integer id = ids.get(state);
+            if (id != null) {
+                return id;
+            }
+            if (count == states.length) {
+                if (count == MAX_CACHED_STATES) {
+                    clear();
+                    return intern(state);
+                }
+                int capacity = 2 * count;
+                states = Arrays.copyOf(states, capacity);
+                flags = Arrays.copyOf(flags, capacity);
+                transitions = Arrays.copyOf(transitions, capacity * BYTES_COUNT);
+                Arrays.fill(transitions, count * BYTES_COUNT, transitions.length, UNKNOWN);
+            }
+            states[count] = state;
+            flags[count] = state.isAccepting() ? ACCEPTING : 0;
+            ids.put(state, count);
+            return count++;
+        }
+
+        private void clear() {
+            ids.clear();
+            Arrays.fill(states, null);
+            Arrays.fill(transitions, UNKNOWN);
+            Arrays.fill(flags, (byte) 0);
+            count = 0;
+            generation++;
+            addStartStates();
+        }
+
+        /**
+         * Computes the transition and adds it to the cache (cache can be cleared, so state numbers can change).
+         *
+         * @return number of the next state
+         */
+        private int next(int state, int b) {
+            State source = states[state];
+            int generation = this.generation;
+            int target = intern(step(source, b));
+            if (this.generation != generation) {
+                state = intern(source);
+            }
+            transitions[(state << 8) | b] = target;
+            return target;
+        }
+
+        private State step(State source, int b) {
+            closure.clear();
+            List<Integer> endedBefore = new ArrayList<>();
+            if (b == Regex.LINE_FEED || b == '\r') {
+                beforeLineEnd.clear();
+                for (int s : source.nfaStates) {
+                    if (nfa.getType(s) == ByteNfa.LINE_END) {
+                        beforeLineEnd.add(nfa.getOut(s), false, true);
+                    }
+                }
+                for (int k = 0; k < beforeLineEnd.size(); k++) {
+                    consume(beforeLineEnd.get(k), b, endedBefore);
+                }
+            }
+            for (int s : source.nfaStates) {
+                consume(s, b, null);
+            }
+            closure.add(nfa.getStart(), b == Regex.LINE_FEED, false);
+            return new State(closure.toSortedArray(), descending(endedBefore), false, nfa);
+        }
+
+        private void consume(int s, int b, List<Integer> endedBefore) {
+            byte type = nfa.getType(s);
+            if (type == ByteNfa.BYTES && nfa.consumes(s, b)) {
+                closure.add(nfa.getOut(s), b == Regex.LINE_FEED, false);
+            } else if (type == ByteNfa.MATCH && endedBefore != null && !endedBefore.contains(nfa.getOut(s))) {
+                endedBefore.add(nfa.getOut(s));
+            }
+        }
+
+    }
+
+    /**
+     * Position of the engine in the processed text. Engine itself can be shared between threads, while each thread
+     * (or each processed text) should use its own matcher.
+     */
+    public class Matcher implements SearchEngine.Matcher<Data> {
+
+        /**
+         * Number of processed bytes.
+         */
+        private long position = 0;
+        private Cache cache = null;
+        private int generation;
+        private int state;
+        /**
+         * State after the last scan, to find it in the cache, if cache was cleared or matcher is used by other thread,
+         * or null, if it is the start of the text.
+         */
+        private State lastState = null;
+        /**
+         * The last processed byte.
+         */
+        private int lastByte = Regex.LINE_FEED;
+
+        private final AhoCorasick<Integer>.Matcher prefixMatcher;
+        /**
+         * True, if prefixes are searched instead of running the automaton.
+         */
+        private boolean idle;
+        /**
+         * Offset, from which prefixes are searched.
+         */
+        private long idleFrom = 0;
+        private long prefixEnd;
+        private final OutputListener prefixFound = new OutputListener() {
+            @Override
+            public boolean onOutput(long offset, int patternIndex) {
+                prefixEnd = offset;
+                return false;
+            }
+        };
+        /**
+         * Last {@code maxPrefixLength} processed bytes (or less, if less bytes were processed), to run automaton from
+         * the beginning of the found prefix.
+         */
+        private final byte[] tail = new byte[maxPrefixLength];
+        private int tailLength = 0;
+
+        private final ByteBuffer singleByte = ByteBuffer.allocate(1);
+        private Data found;
+        private final OutputListener firstFound = new OutputListener() {
+            @Override
+            public boolean onOutput(long offset, int patternIndex) {
+                found = found == null ? data.get(patternIndex) : found;
+                return true;
+            }
+        };
+
+        private Matcher() {
+            this.prefixMatcher = prefixes == null ? null : prefixes.matcher();
+            this.idle = prefixes != null;
+        }
+
+        @Override
+        public void reset() {
+            position = 0;
+            lastState = null;
+            lastByte = Regex.LINE_FEED;
+            cache = null;
+            idle = prefixes != null;
+            idleFrom = 0;
+            if (prefixMatcher != null) {
+                prefixMatcher.reset();
+            }
+            tailLength = 0;
+        }
+
+        @Override
+        public Data processText(int character) {
+            found = null;
+            singleByte.put(0, (byte) character);
+            scan(singleByte, 0, 1, firstFound);
+            return found;
+        }
+
+        public boolean scan(byte[] text, int offset, int length, OutputListener listener) {
+            return scan(ByteBuffer.wrap(text), offset, length, listener);
+        }
+
+        @Override
+        public boolean scan(ByteBuffer text, int offset, int length, OutputListener listener) {
+            Cache cache = cache();
+            long start = position;
+            long textStart = start - offset;
+            int end = offset + length;
+            int i = offset;
+            boolean stopped = false;
+            while (i < end && !stopped) {
+                if (idle) {
+                    prefixEnd = -1;
+                    prefixMatcher.scan(text, i, end - i, prefixFound);
+                    if (prefixEnd == -1) {
+                        i = end;
+                        break;
+                    }
+                    long prefixLast = idleFrom + prefixEnd;
+                    long from = Math.max(idleFrom, prefixLast - maxPrefixLength + 1);
+                    idle = false;
+                    state = from == 0 || byteAt(text, textStart, start, from - 1) == Regex.LINE_FEED
+                            ? cache.startOfLine : cache.startInLine;
+                    long k = from;
+                    while (k <= prefixLast && !stopped) {
+                        stopped = !process(cache, byteAt(text, textStart, start, k), k, listener, false);
+                        k++;
+                    }
+                    i = (int) (Math.max(start, k) - textStart);
+                    if (!stopped && (cache.flags[state] & IDLE) != 0) {
+                        startIdle(prefixLast + 1);
+                    }
+                    continue;
+                }
+                int state = this.state;
+                int[] transitions = cache.transitions;
+                byte[] flags = cache.flags;
+                for (; i < end; i++) {
+                    int b = text.get(i) & 0xFF;
+                    int next = transitions[(state << 8) | b];
+                    if (next == UNKNOWN) {
+                        next = cache.next(state, b);
+                        transitions = cache.transitions;
+                        flags = cache.flags;
+                    }
+                    state = next;
+                    if (flags[next] != 0) {
+                        this.state = state;
+                        stopped = !onFlags(cache, b, textStart + i, listener, true);
+                        state = this.state;
+                        if (stopped || idle) {
+                            i++;
+                            break;
+                        }
+                    }
+                }
+                this.state = state;
+            }
+            int processed = i - offset;
+            remember(text, offset, processed);
+            if (processed > 0) {
+                lastByte = text.get(i - 1) & 0xFF;
+            }
+            position = start + processed;
+            generation = cache.generation;
+            lastState = cache.states[state];
+            return !stopped;
+        }
+
+        /**
+         * Last line of the text can end without line break, so patterns, that end before the end of line, are
+         * reported at the last byte, as if the line break followed it.
+         */
+        @Override
+        public boolean finish(OutputListener listener) {
+            if (idle || lastByte == Regex.LINE_FEED || lastByte == '\r') {
+                return true;
+            }
+            Cache cache = cache();
+            int next = cache.transitions[(state << 8) | Regex.LINE_FEED];
+            State lineEnd = cache.states[next == UNKNOWN ? cache.next(state, Regex.LINE_FEED) : next];
+            for (int pattern : lineEnd.endedBefore) {
+                if (!listener.onOutput(position - 1, pattern)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return cache of the current thread, where the current state is found
+         */
+        private Cache cache() {
+            Cache cache = caches.get();
+            if (cache != this.cache || cache.generation != generation) {
+                this.cache = cache;
+                generation = cache.generation;
+                state = lastState == null ? cache.startOfLine : cache.intern(lastState);
+            }
+            return cache;
+        }
+
+        /**
+         * Processes one byte by automaton, that is not idle.
+         *
+         * @param offset   offset of the byte in the processed text
+         * @param mayIdle true, if prefixes should be searched, if there are no started matches after this byte
+         * @return false, if scanning was stopped by listener
+         */
+        private boolean process(Cache cache, int b, long offset, OutputListener listener, boolean mayIdle) {
+            int next = cache.transitions[(state << 8) | b];
+            state = next == UNKNOWN ? cache.next(state, b) : next;
+            return cache.flags[state] == 0 || onFlags(cache, b, offset, listener, mayIdle);
+        }
+
+        /**
+         * Reports patterns, if they ended at the current state, and starts idling, if there are no started matches.
+         *
+         * @return false, if scanning was stopped by listener
+         */
+        private boolean onFlags(Cache cache, int b, long offset, OutputListener listener, boolean mayIdle) {
+            if ((cache.flags[state] & ACCEPTING) != 0) {
+                State accepted = cache.states[state];
+                state = b == Regex.LINE_FEED ? cache.startOfLine : cache.skippingLine;
+                for (int pattern : accepted.endedBefore) {
+                    if (!listener.onOutput(offset - 1, pattern)) {
+                        return false;
+                    }
+                }
+                for (int pattern : accepted.ended) {
+                    if (!listener.onOutput(offset, pattern)) {
+                        return false;
+                    }
+                }
+            }
+            if (mayIdle && (cache.flags[state] & IDLE) != 0) {
+                startIdle(offset + 1);
+            }
+            return true;
+        }
+
+        private void startIdle(long from) {
+            idle = true;
+            idleFrom = from;
+            prefixMatcher.reset();
+        }
+
+        /**
+         * @param textStart offset in the processed text of the byte with index {@code 0} of the text
+         * @param start     offset in the processed text of the first byte of this scan
+         * @return unsigned byte with the given offset in the processed text (it is either in the text, or in the
+         * {@link #tail} of the previous scans)
+         */
+        private int byteAt(ByteBuffer text, long textStart, long start, long offset) {
+            if (offset >= start) {
+                return text.get((int) (offset - textStart)) & 0xFF;
+            }
+            return tail[(int) (tailLength - (start - offset))] & 0xFF;
+        }
+
+        /**
+         * Appends bytes of the text to the {@link #tail}.
+         */
+        private void remember(ByteBuffer text, int offset, int length) {
+            int capacity = tail.length;
+            int kept = Math.min(tailLength, capacity - Math.min(capacity, length));
+            System.arraycopy(tail, tailLength - kept, tail, 0, kept);
+            int copied = Math.min(capacity, length);
+            for (int i = 0; i < copied; i++) {
+                tail[kept + i] = text.get(offset + length - copied + i);
+            }
+            tailLength = kept + copied;
+        }
+
+    }
+
+}
@@ -0,0 +1,57 @@
+package ru.ifmo.ctddev.polyarnyi.task1.grep;
+
+/**
+ * Pattern, found by {@link MultiEncodingSearch}.
+ *
+ * @author Nickolay Polyarniy aka PolarNick
+ */
+public class Match {
+
+    private final long endOffset;
+    private final int patternId;
+    private final String encoding;
+
+    public Match(long endOffset, int patternId, String encoding) {
+        this.endOffset = endOffset;
+        this.patternId = patternId;
+        this.encoding = encoding;
+    }
+
+    /**
+     * @return offset of the last byte of found pattern
+     */
+    public long getEndOffset() {
+        return endOffset;
+    }
+
+    public int getPatternId() {
+        return patternId;
+    }
+
+    public String getEncoding() {
+        return encoding;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Match)) {
+            return false;
+        }
+        Match match = (Match) o;
+        return endOffset == match.endOffset && patternId == match.patternId && encoding.equals(match.encoding);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * (int) (endOffset ^ (endOffset >>> 32)) + patternId) + encoding.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return endOffset + ":" + patternId + ":" + encoding;
+    }
+
+}
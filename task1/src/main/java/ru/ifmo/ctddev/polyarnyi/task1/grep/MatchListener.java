@@ -0,0 +1,19 @@
+package ru.ifmo.ctddev.polyarnyi.task1.grep;
+
+/**
+ * Receives patterns, found by {@link MultiEncodingSearch.Matcher#scan}.
+ *
+ * @author Nickolay Polyarniy aka PolarNick
+ */
+public interface MatchListener {
+
+    /**
+     * @param offset    offset of the last byte of found pattern in the stream, processed by matcher since its creation
+     *                  or last reset
+     * @param patternId index of found pattern in the list of patterns, that searcher was created with
+     * @param encoding  encoding, in which pattern was found
+     * @return true, if scanning should be continued, false - if it should be stopped after this pattern
+     */
+    boolean onMatch(long offset, int patternId, String encoding);
+
+}
@@ -1,46 +1,766 @@
 package ru.ifmo.ctddev.polyarnyi.task1.grep;
 
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
+ * Searches patterns in several encodings at once by one automaton over bytes. Automaton is an engine, chosen by
+ * {@link SearchEngines#plan}: {@link AhoCorasick} or, for long patterns, {@link WuManber}.
+ *
+ * Case of the same byte differs between encodings, so case-insensitive search uses one automaton over classes of
+ * bytes, that are {@link CaseFolding#linkCases linked} by case in any of the encodings: the text is scanned once, as
+ * in case-sensitive search, and each found pattern is checked by {@link CaseFolding folding} of its own encoding
+ * against the last bytes of the text.
+ *
+ * If encodings of files should be detected, automaton of each encoding is built too, and {@link #matcher(String)} of
+ * the detected encoding scans the file by only one of them: it is faster, and patterns, encoded in other encodings,
+ * are not found by chance. See {@link EncodingDetector}. Case-insensitive automaton of one encoding folds patterns
+ * and the text by its folding (in single-byte encodings - by classes of characters in the automaton itself).
+ * Patterns, found by several automata, are merged in order of their end offsets by blocks of
+ * {@link #MERGED_BLOCK_SIZE} bytes.
+ *
+ * Building of the automaton for big sets of patterns takes much longer than the scan itself, so it can be compiled
+ * once to the cache file by {@link #compile}: file starts with the hash of patterns and encodings, and is rebuilt,
+ * if it does not match them.
+ *
+ * Patterns can be {@link Regex regular expressions} too: they are searched by {@link LazyDfa} over bytes of all
+ * encodings (case is ignored by classes of characters in the expressions), that reports each line with matches once.
+ *
  * Date: 16.02.14 at 2:53
  *
  * @author Nickolay Polyarniy aka PolarNick
  */
-
 public class MultiEncodingSearch {
 
-    private final AhoCorasick<String> ahoCorasick;
+    private static final int CACHE_MAGIC = 0x47524341;
+    private static final int CACHE_VERSION = 7;
+    private static final int MERGED_BLOCK_SIZE = 1 << 16;
+    private static final int FOLDED_BLOCK_SIZE = 1 << 16;
+
+    private static final Comparator<Match> BY_END_OFFSET = new Comparator<Match>() {
+        @Override
+        public int compare(Match a, Match b) {
+            return Long.compare(a.getEndOffset(), b.getEndOffset());
+        }
+    };
+
+    private final boolean ignoreCase;
+    private final boolean regex;
+    private final int maxPatternLength;
+    private final long patternsBytes;
+    private final List<Part> parts;
+    /**
+     * Automaton of each encoding, if encodings of files should be detected, otherwise empty.
+     */
+    private final Map<String, Part> encodingParts;
+    private final EncodingDetector detector;
 
     public MultiEncodingSearch(List<String> patterns, List<String> encodings) {
-        List<int[]> patternsInAllEncodings = new ArrayList<>(patterns.size() * encodings.size());
-        List<String> patternEncodings = new ArrayList<>(patterns.size() * encodings.size());
+        this(patterns, encodings, false);
+    }
+
+    /**
+     * @param ignoreCase true, if upper and lower case of letters should not be distinguished
+     */
+    public MultiEncodingSearch(List<String> patterns, List<String> encodings, boolean ignoreCase) {
+        this(patterns, encodings, ignoreCase, false);
+    }
+
+    /**
+     * @param ignoreCase     true, if upper and lower case of letters should not be distinguished
+     * @param detectEncoding true, if automaton of each encoding should be built to scan files of the detected
+     *                       encoding by {@link #matcher(String)}
+     */
+    public MultiEncodingSearch(List<String> patterns, List<String> encodings, boolean ignoreCase,
+                               boolean detectEncoding) {
+        this(patterns, encodings, ignoreCase, detectEncoding, false);
+    }
+
+    /**
+     * @param ignoreCase     true, if upper and lower case of letters should not be distinguished
+     * @param detectEncoding true, if automaton of each encoding should be built to scan files of the detected
+     *                       encoding by {@link #matcher(String)}
+     * @param regex          true, if patterns are regular expressions
+     * @throws IllegalArgumentException if patterns are regular expressions, and some of them is wrong or matches
+     *                                  empty string
+     */
+    public MultiEncodingSearch(List<String> patterns, List<String> encodings, boolean ignoreCase,
+                               boolean detectEncoding, boolean regex) {
+        this.ignoreCase = ignoreCase;
+        this.regex = regex;
+        List<byte[]> patternsInAllEncodings = encode(patterns, encodings);
+        int maxPatternLength = 0;
+        long patternsBytes = 0;
+        for (byte[] bytes : patternsInAllEncodings) {
+            maxPatternLength = Math.max(maxPatternLength, bytes.length);
+            patternsBytes += bytes.length;
+        }
+        this.maxPatternLength = regex ? Integer.MAX_VALUE : maxPatternLength;
+        this.patternsBytes = patternsBytes;
+
+        this.parts = new ArrayList<>();
+        this.encodingParts = new HashMap<>();
+        if (regex) {
+            List<Regex> expressions = new ArrayList<>(patterns.size());
+            for (String pattern : patterns) {
+                expressions.add(Regex.parse(pattern, ignoreCase));
+            }
+            parts.add(new Part(encodings, null, new LazyDfa<>(ByteNfa.compile(expressions, encodings),
+                    patternEncodings(patterns.size(), encodings))));
+            if (detectEncoding) {
+                for (String encoding : encodings) {
+                    List<String> partEncodings = Collections.singletonList(encoding);
+                    encodingParts.put(encoding, new Part(partEncodings, null, new LazyDfa<>(ByteNfa.compile(
+                            expressions, partEncodings), patternEncodings(patterns.size(), partEncodings))));
+                }
+            }
+        } else if (!ignoreCase) {
+            List<int[]> automatonPatterns = new ArrayList<>(patternsInAllEncodings.size());
+            for (byte[] bytes : patternsInAllEncodings) {
+                automatonPatterns.add(toUnsignedBytes(bytes));
+            }
+            parts.add(new Part(encodings, null, SearchEngines.build(automatonPatterns,
+                    patternEncodings(patterns.size(), encodings), null)));
+        } else {
+            parts.add(foldedPart(patternsInAllEncodings, encodings, null));
+        }
+        if (!regex && detectEncoding) {
+            for (int e = 0; e < encodings.size(); e++) {
+                List<String> encoding = Collections.singletonList(encodings.get(e));
+                CaseFolding folding = ignoreCase ? CaseFolding.forEncoding(encodings.get(e)) : null;
+                List<int[]> automatonPatterns = new ArrayList<>(patterns.size());
+                for (int i = 0; i < patterns.size(); i++) {
+                    byte[] bytes = patternsInAllEncodings.get(i * encodings.size() + e);
+                    automatonPatterns.add(folding == null ? toUnsignedBytes(bytes) : folding.fold(bytes));
+                }
+                boolean foldsByClasses = folding != null && folding.isContextFree();
+                SearchEngine<String> automaton = SearchEngines.build(automatonPatterns,
+                        patternEncodings(patterns.size(), encoding), foldsByClasses ? folding.getByteFolding() : null);
+                encodingParts.put(encodings.get(e), new Part(encoding, foldsByClasses ? null : folding, automaton));
+            }
+        }
+        this.detector = detectEncoding ? new EncodingDetector(encodings) : null;
+    }
+
+    private MultiEncodingSearch(boolean ignoreCase, boolean regex, int maxPatternLength, long patternsBytes,
+                                List<Part> parts, Map<String, Part> encodingParts, EncodingDetector detector) {
+        this.ignoreCase = ignoreCase;
+        this.regex = regex;
+        this.maxPatternLength = maxPatternLength;
+        this.patternsBytes = patternsBytes;
+        this.parts = parts;
+        this.encodingParts = encodingParts;
+        this.detector = detector;
+    }
+
+    /**
+     * @return bytes of each pattern in all encodings: patterns go in the same order, each in all encodings
+     */
+    private static List<byte[]> encode(List<String> patterns, List<String> encodings) {
+        List<byte[]> patternsInAllEncodings = new ArrayList<>(patterns.size() * encodings.size());
         for (String pattern : patterns) {
             for (String encoding : encodings) {
-                byte[] bytes = pattern.getBytes(Charset.forName(encoding));
-                int[] a = new int[bytes.length];
+                patternsInAllEncodings.add(pattern.getBytes(Charset.forName(encoding)));
+            }
+        }
+        return patternsInAllEncodings;
+    }
+
+    /**
+     * @param cache buffer to read the automaton from, or null, if it should be built
+     * @return case-insensitive part of patterns in all encodings, that scans the text by one automaton over joint
+     * classes of bytes of all encodings
+     */
+    private static Part foldedPart(List<byte[]> patternsInAllEncodings, List<String> encodings, ByteBuffer cache) {
+        List<CaseFolding> foldings = new ArrayList<>(encodings.size());
+        for (String encoding : encodings) {
+            foldings.add(CaseFolding.forEncoding(encoding));
+        }
+        CaseFolding[] patternFoldings = new CaseFolding[patternsInAllEncodings.size()];
+        int[][] foldedPatterns = new int[patternsInAllEncodings.size()][];
+        int[] classes = CaseFolding.newClasses();
+        for (int i = 0; i < patternsInAllEncodings.size(); i++) {
+            patternFoldings[i] = foldings.get(i % encodings.size());
+            foldedPatterns[i] = patternFoldings[i].fold(patternsInAllEncodings.get(i));
+            if (cache == null) {
+                patternFoldings[i].linkCases(patternsInAllEncodings.get(i), classes);
+            }
+        }
+        List<String> data = patternEncodings(patternsInAllEncodings.size() / encodings.size(), encodings);
+        SearchEngine<String> automaton;
+        if (cache == null) {
+            int[] folding = CaseFolding.toFolding(classes);
+            List<int[]> automatonPatterns = new ArrayList<>(patternsInAllEncodings.size());
+            for (byte[] bytes : patternsInAllEncodings) {
+                int[] pattern = new int[bytes.length];
                 for (int i = 0; i < bytes.length; i++) {
-                    a[i] = toUnsignedByte(bytes[i]);
+                    pattern[i] = folding[bytes[i] & 0xFF];
+                }
+                automatonPatterns.add(pattern);
+            }
+            automaton = SearchEngines.build(automatonPatterns, data, folding);
+        } else {
+            automaton = SearchEngines.read(cache, data);
+        }
+        return new Part(encodings, patternFoldings, foldedPatterns, automaton);
+    }
+
+    /**
+     * @return encoding of each pattern in the automaton: patterns go in the same order, each in all encodings
+     */
+    private static List<String> patternEncodings(int patternsCount, List<String> encodings) {
+        List<String> patternEncodings = new ArrayList<>(patternsCount * encodings.size());
+        for (int i = 0; i < patternsCount; i++) {
+            patternEncodings.addAll(encodings);
+        }
+        return patternEncodings;
+    }
+
+    public static MultiEncodingSearch compile(List<String> patterns, List<String> encodings, Path cacheFile)
+            throws IOException {
+        return compile(patterns, encodings, false, false, cacheFile);
+    }
+
+    /**
+     * Loads the automata from the memory-mapped cache file, if they were compiled for the same patterns and
+     * encodings, otherwise builds them and writes to the cache file.
+     */
+    public static MultiEncodingSearch compile(List<String> patterns, List<String> encodings, boolean ignoreCase,
+                                              boolean detectEncoding, Path cacheFile) throws IOException {
+        return compile(patterns, encodings, ignoreCase, detectEncoding, false, cacheFile);
+    }
+
+    /**
+     * Loads the automata from the memory-mapped cache file, if they were compiled for the same patterns and
+     * encodings, otherwise builds them and writes to the cache file.
+     *
+     * @param regex true, if patterns are regular expressions
+     */
+    public static MultiEncodingSearch compile(List<String> patterns, List<String> encodings, boolean ignoreCase,
+                                              boolean detectEncoding, boolean regex, Path cacheFile)
+            throws IOException {
+        byte[] key = cacheKey(patterns, encodings, ignoreCase, detectEncoding, regex);
+        if (Files.exists(cacheFile)) {
+            MultiEncodingSearch cached = loadCache(cacheFile, key, patterns, encodings, ignoreCase, detectEncoding,
+                    regex);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        MultiEncodingSearch searcher = new MultiEncodingSearch(patterns, encodings, ignoreCase, detectEncoding,
+                regex);
+        searcher.saveCache(cacheFile, key, encodings);
+        return searcher;
+    }
+
+    private static byte[] cacheKey(List<String> patterns, List<String> encodings, boolean ignoreCase,
+                                   boolean detectEncoding, boolean regex) {
+        Hasher hasher = Hashing.sha1().newHasher();
+        hasher.putBoolean(ignoreCase);
+        hasher.putBoolean(detectEncoding);
+        hasher.putBoolean(regex);
+        for (List<String> strings : Arrays.asList(encodings, patterns)) {
+            hasher.putInt(strings.size());
+            for (String string : strings) {
+                hasher.putInt(string.length());
+                hasher.putString(string, Charsets.UTF_8);
+            }
+        }
+        return hasher.hash().asBytes();
+    }
+
+    /**
+     * @return searcher from the cache file, or null, if it was compiled for other patterns or in other format
+     */
+    private static MultiEncodingSearch loadCache(Path cacheFile, byte[] key, List<String> patterns,
+                                                 List<String> encodings, boolean ignoreCase, boolean detectEncoding,
+                                                 boolean regex) throws IOException {
+        try (FileChannel channel = FileChannel.open(cacheFile, StandardOpenOption.READ)) {
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.getInt() != CACHE_MAGIC || in.getInt() != CACHE_VERSION) {
+                return null;
+            }
+            byte[] cachedKey = new byte[key.length];
+            in.get(cachedKey);
+            if (!Arrays.equals(key, cachedKey)) {
+                return null;
+            }
+            int maxPatternLength = in.getInt();
+            long patternsBytes = in.getLong();
+            List<Part> parts = new ArrayList<>();
+            Map<String, Part> encodingParts = new HashMap<>();
+            if (regex || !ignoreCase) {
+                parts.add(new Part(encodings, null,
+                        SearchEngines.read(in, patternEncodings(patterns.size(), encodings))));
+            } else {
+                parts.add(foldedPart(encode(patterns, encodings), encodings, in));
+            }
+            if (detectEncoding) {
+                for (String encoding : encodings) {
+                    CaseFolding folding = ignoreCase && !regex ? CaseFolding.forEncoding(encoding) : null;
+                    List<String> partEncodings = Collections.singletonList(encoding);
+                    encodingParts.put(encoding, new Part(partEncodings,
+                            folding == null || folding.isContextFree() ? null : folding,
+                            SearchEngines.read(in, patternEncodings(patterns.size(), partEncodings))));
                 }
-                patternsInAllEncodings.add(a);
-                patternEncodings.add(encoding);
             }
+            return new MultiEncodingSearch(ignoreCase, regex, maxPatternLength, patternsBytes, parts, encodingParts,
+                    detectEncoding ? new EncodingDetector(encodings) : null);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            // truncated cache will be rebuilt
+            return null;
         }
-        ahoCorasick = new AhoCorasick<>(patternsInAllEncodings, patternEncodings, 0, 255);
     }
 
-    public void reset() {
-        ahoCorasick.resetText();
+    private void saveCache(Path cacheFile, byte[] key, List<String> encodings) throws IOException {
+        Path tempFile = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+            out.writeInt(CACHE_MAGIC);
+            out.writeInt(CACHE_VERSION);
+            out.write(key);
+            out.writeInt(maxPatternLength);
+            out.writeLong(patternsBytes);
+            for (Part part : getAllParts(encodings)) {
+                SearchEngines.write(part.automaton, out);
+            }
+        }
+        Files.move(tempFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
     }
 
-    public String proceed(int nextByte) {
-        return ahoCorasick.processText(toUnsignedByte(nextByte));
+    /**
+     * @return automata of {@link #parts}, followed by automata of each encoding, that are not among them
+     */
+    private List<Part> getAllParts(List<String> encodings) {
+        List<Part> allParts = new ArrayList<>(parts);
+        for (String encoding : encodings) {
+            Part part = encodingParts.get(encoding);
+            if (part != null && !parts.contains(part)) {
+                allParts.add(part);
+            }
+        }
+        return allParts;
+    }
+
+    public Matcher matcher() {
+        return new Matcher(parts);
+    }
+
+    /**
+     * @param encoding encoding of the scanned text, or null, if it is unknown
+     * @return matcher, that finds patterns only in the given encoding, if its automaton was built, otherwise matcher,
+     * that finds patterns in all encodings
+     */
+    public Matcher matcher(String encoding) {
+        Part part = encoding == null ? null : encodingParts.get(encoding);
+        return part == null ? matcher() : new Matcher(Collections.singletonList(part));
+    }
+
+    /**
+     * @return encoding of the text, detected by its sample with absolute indices from {@code offset} to
+     * {@code offset + length}, or null, if encodings should not be detected or it is ambiguous
+     * @see EncodingDetector#detect
+     */
+    public String detectEncoding(ByteBuffer sample, int offset, int length, boolean wholeText) {
+        return detector == null ? null : detector.detect(sample, offset, length, wholeText);
+    }
+
+    /**
+     * @return length in bytes of the longest pattern among all encodings, or {@link Integer#MAX_VALUE}, if patterns
+     * are regular expressions
+     */
+    public int getMaxPatternLength() {
+        return maxPatternLength;
+    }
+
+    public boolean isIgnoreCase() {
+        return ignoreCase;
+    }
+
+    public boolean isRegex() {
+        return regex;
+    }
+
+    /**
+     * @return true, if automaton of each encoding was built to scan files of the {@link #detectEncoding detected}
+     * encoding
+     */
+    public boolean isDetectingEncoding() {
+        return detector != null;
+    }
+
+    /**
+     * @return size of the automata and their memory per byte of the patterns in all encodings
+     */
+    public String getStatistics() {
+        long states = 0;
+        long denseStates = 0;
+        int classes = 0;
+        int skipping = 0;
+        int regular = 0;
+        long size = 0;
+        Set<Part> allParts = new HashSet<>(parts);
+        allParts.addAll(encodingParts.values());
+        for (Part part : allParts) {
+            if (part.automaton instanceof AhoCorasick) {
+                AhoCorasick<String> automaton = (AhoCorasick<String>) part.automaton;
+                states += automaton.getStatesCount();
+                denseStates += automaton.getDenseStatesCount();
+                classes = Math.max(classes, automaton.getClassesCount());
+            } else if (part.automaton instanceof LazyDfa) {
+                states += ((LazyDfa<String>) part.automaton).getNfaStatesCount();
+                regular++;
+            } else {
+                skipping++;
+            }
+            size += part.automaton.getSizeInBytes();
+        }
+        return String.format("Automata: %d (%d of them Wu-Manber, %d regular expressions), states: %d (%d with full "
+                        + "transition tables), byte classes: up to %d, size: %d bytes (%.1f per byte of %d bytes of "
+                        + "patterns in all encodings)", allParts.size(), skipping, regular, states, denseStates, classes, size,
+                (double) size / Math.max(1, patternsBytes), patternsBytes);
+    }
+
+    /**
+     * @return all occurrences of all patterns in all encodings, ordered by their end offsets
+     */
+    public List<Match> findAll(byte[] text) {
+        final List<Match> result = new ArrayList<>();
+        MatchListener collector = new MatchListener() {
+            @Override
+            public boolean onMatch(long offset, int patternId, String encoding) {
+                result.add(new Match(offset, patternId, encoding));
+                return true;
+            }
+        };
+        Matcher matcher = matcher();
+        matcher.scan(text, 0, text.length, collector);
+        matcher.finish(collector);
+        return result;
     }
 
     private static int toUnsignedByte(int aByte) {
         return (256 + aByte) % 256;
     }
 
-}
\ No newline at end of file
+    private static int[] toUnsignedBytes(byte[] bytes) {
+        int[] result = new int[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            result[i] = toUnsignedByte(bytes[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Automaton of all patterns in some of the encodings.
+     */
+    private static class Part {
+
+        private final int encodingsCount;
+        /**
+         * Folding of the text, that can not be done by the automaton itself, or null.
+         */
+        private final CaseFolding folding;
+        /**
+         * Folding of the encoding of each pattern in the automaton, if the automaton folds the text by joint classes
+         * of all encodings, so found patterns should be checked by it, otherwise null.
+         */
+        private final CaseFolding[] patternFoldings;
+        private final int[][] foldedPatterns;
+        private final int maxPatternLength;
+        private final SearchEngine<String> automaton;
+
+        private Part(List<String> encodings, CaseFolding folding, SearchEngine<String> automaton) {
+            this(encodings, folding, null, null, automaton);
+        }
+
+        private Part(List<String> encodings, CaseFolding[] patternFoldings, int[][] foldedPatterns,
+                     SearchEngine<String> automaton) {
+            this(encodings, null, patternFoldings, foldedPatterns, automaton);
+        }
+
+        private Part(List<String> encodings, CaseFolding folding, CaseFolding[] patternFoldings,
+                     int[][] foldedPatterns, SearchEngine<String> automaton) {
+            this.encodingsCount = encodings.size();
+            this.folding = folding;
+            this.patternFoldings = patternFoldings;
+            this.foldedPatterns = foldedPatterns;
+            int maxPatternLength = 0;
+            for (int i = 0; foldedPatterns != null && i < foldedPatterns.length; i++) {
+                maxPatternLength = Math.max(maxPatternLength, foldedPatterns[i].length);
+            }
+            this.maxPatternLength = maxPatternLength;
+            this.automaton = automaton;
+        }
+
+    }
+
+    /**
+     * Search state of one scanned stream. One {@link MultiEncodingSearch} can be shared between threads, each of them
+     * should use its own matcher.
+     */
+    public class Matcher {
+
+        private final List<PartMatcher> matchers = new ArrayList<>();
+        private final List<Match> merged = new ArrayList<>();
+        private final MatchListener collector = new MatchListener() {
+            @Override
+            public boolean onMatch(long offset, int patternId, String encoding) {
+                merged.add(new Match(offset, patternId, encoding));
+                return true;
+            }
+        };
+
+        private Matcher(List<Part> parts) {
+            for (Part part : parts) {
+                matchers.add(new PartMatcher(part));
+            }
+        }
+
+        public void reset() {
+            for (PartMatcher matcher : matchers) {
+                matcher.reset();
+            }
+        }
+
+        public String proceed(int nextByte) {
+            String found = null;
+            for (PartMatcher matcher : matchers) {
+                String encoding = matcher.proceed(toUnsignedByte(nextByte));
+                found = found == null ? encoding : found;
+            }
+            return found;
+        }
+
+        /**
+         * Processes {@code length} bytes of the text, starting from {@code offset}, and reports found patterns to
+         * listener.
+         *
+         * @return false, if scanning was stopped by listener
+         */
+        public boolean scan(byte[] text, int offset, int length, MatchListener listener) {
+            return scan(ByteBuffer.wrap(text), offset, length, listener);
+        }
+
+        /**
+         * Processes bytes of the buffer with absolute indices from {@code offset} to {@code offset + length}, and
+         * reports found patterns to listener.
+         *
+         * @return false, if scanning was stopped by listener
+         */
+        public boolean scan(ByteBuffer text, int offset, int length, MatchListener listener) {
+            if (matchers.size() == 1) {
+                return matchers.get(0).scan(text, offset, length, listener);
+            }
+            int end = offset + length;
+            for (int from = offset; from < end; from += MERGED_BLOCK_SIZE) {
+                int blockLength = Math.min(MERGED_BLOCK_SIZE, end - from);
+                for (PartMatcher matcher : matchers) {
+                    matcher.scan(text, from, blockLength, collector);
+                }
+                if (!reportMerged(listener)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Reports patterns, that end at the end of the text, but are known only after the next byte (regular
+         * expressions, that end before the end of line). Should be called after the last byte of the text.
+         *
+         * @return false, if scanning was stopped by listener
+         */
+        public boolean finish(MatchListener listener) {
+            if (matchers.size() == 1) {
+                return matchers.get(0).finish(listener);
+            }
+            for (PartMatcher matcher : matchers) {
+                matcher.finish(collector);
+            }
+            return reportMerged(listener);
+        }
+
+        private boolean reportMerged(MatchListener listener) {
+            Collections.sort(merged, BY_END_OFFSET);
+            try {
+                for (Match match : merged) {
+                    if (!listener.onMatch(match.getEndOffset(), match.getPatternId(), match.getEncoding())) {
+                        return false;
+                    }
+                }
+            } finally {
+                merged.clear();
+            }
+            return true;
+        }
+
+    }
+
+    /**
+     * Search state of the automaton of one part, that translates index of pattern in automaton to index of pattern
+     * and its encoding, and checks patterns, found by joint classes of bytes, against the last bytes of the text.
+     */
+    private static class PartMatcher implements SearchEngine.OutputListener {
+
+        private final Part part;
+        private final SearchEngine.Matcher<String> matcher;
+        private final byte[] folded;
+        private final ByteBuffer foldedBuffer;
+        private int previousByte = 0;
+        private MatchListener listener;
+        /**
+         * Last bytes of the text before the scanned block, enough to check the longest pattern.
+         */
+        private final byte[] tail;
+        private int tailLength = 0;
+        /**
+         * Offset of the scanned block in the text, that is scanned since the reset.
+         */
+        private long position = 0;
+        private ByteBuffer block;
+        private int blockOffset;
+        /**
+         * Found pattern with the byte before it.
+         */
+        private final byte[] candidate;
+        private String proceeded;
+        private final MatchListener proceedListener = new MatchListener() {
+            @Override
+            public boolean onMatch(long offset, int patternId, String encoding) {
+                proceeded = proceeded == null ? encoding : proceeded;
+                return true;
+            }
+        };
+
+        private PartMatcher(Part part) {
+            this.part = part;
+            this.matcher = part.automaton.matcher();
+            this.folded = part.folding == null ? null : new byte[FOLDED_BLOCK_SIZE];
+            this.foldedBuffer = folded == null ? null : ByteBuffer.wrap(folded);
+            this.tail = part.foldedPatterns == null ? null : new byte[part.maxPatternLength];
+            this.candidate = part.foldedPatterns == null ? null : new byte[part.maxPatternLength + 1];
+        }
+
+        private void reset() {
+            matcher.reset();
+            previousByte = 0;
+            tailLength = 0;
+            position = 0;
+        }
+
+        private String proceed(int nextByte) {
+            if (part.foldedPatterns != null) {
+                proceeded = null;
+                scan(ByteBuffer.wrap(new byte[]{(byte) nextByte}), 0, 1, proceedListener);
+                return proceeded;
+            }
+            int character = part.folding == null ? nextByte : part.folding.fold(previousByte, nextByte);
+            previousByte = nextByte;
+            return matcher.processText(character);
+        }
+
+        private boolean scan(ByteBuffer text, int offset, int length, MatchListener listener) {
+            this.listener = listener;
+            try {
+                if (part.foldedPatterns != null) {
+                    block = text;
+                    blockOffset = offset;
+                    try {
+                        return matcher.scan(text, offset, length, this);
+                    } finally {
+                        block = null;
+                        remember(text, offset, length);
+                    }
+                }
+                if (part.folding == null) {
+                    return matcher.scan(text, offset, length, this);
+                }
+                for (int from = offset; from < offset + length; from += FOLDED_BLOCK_SIZE) {
+                    int blockLength = Math.min(FOLDED_BLOCK_SIZE, offset + length - from);
+                    part.folding.fold(text, from, blockLength, previousByte, folded);
+                    previousByte = text.get(from + blockLength - 1) & 0xFF;
+                    if (!matcher.scan(foldedBuffer, 0, blockLength, this)) {
+                        return false;
+                    }
+                }
+                return true;
+            } finally {
+                this.listener = null;
+            }
+        }
+
+        private boolean finish(MatchListener listener) {
+            this.listener = listener;
+            try {
+                return matcher.finish(this);
+            } finally {
+                this.listener = null;
+            }
+        }
+
+        @Override
+        public boolean onOutput(long offset, int patternIndex) {
+            if (part.foldedPatterns != null && !isFound(offset, patternIndex)) {
+                return true;
+            }
+            return listener.onMatch(offset, patternIndex / part.encodingsCount, part.automaton.getData(patternIndex));
+        }
+
+        /**
+         * @return true, if the pattern, that ends at the offset, is found by the folding of its encoding
+         */
+        private boolean isFound(long endOffset, int patternIndex) {
+            int[] pattern = part.foldedPatterns[patternIndex];
+            long from = endOffset - pattern.length;
+            for (int i = 0; i <= pattern.length; i++) {
+                candidate[i] = byteAt(from + i);
+            }
+            return part.patternFoldings[patternIndex].matches(pattern, candidate, 1, candidate[0] & 0xFF);
+        }
+
+        private byte byteAt(long offset) {
+            if (offset < 0) {
+                return 0;
+            }
+            if (offset >= position) {
+                return block.get(blockOffset + (int) (offset - position));
+            }
+            return tail[tailLength - (int) (position - offset)];
+        }
+
+        private void remember(ByteBuffer text, int offset, int length) {
+            int kept = Math.max(0, Math.min(tailLength, tail.length - length));
+            System.arraycopy(tail, tailLength - kept, tail, 0, kept);
+            int added = Math.min(length, tail.length);
+            for (int i = 0; i < added; i++) {
+                tail[kept + i] = text.get(offset + length - added + i);
+            }
+            tailLength = kept + added;
+            position += length;
+        }
+
+    }
+
+}
@@ -0,0 +1,178 @@
+package ru.ifmo.ctddev.polyarnyi.task1.grep;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads files ahead of their scan by background threads, so the disk is busy, while scanning threads match the
+ * files, that were already read. Each file is read at once to one of the reusable direct buffers from the bounded
+ * pool of {@code depth} buffers, and then it is passed with the buffer to the {@link Consumer}, that is run by the
+ * executor of scanning threads. The buffer returns to the pool after the consumer, so at most {@code depth} files
+ * are read ahead, and reading waits for the scan, when all buffers are taken.
+ *
+ * Files, that are bigger than the buffer or can not be read, are passed to the consumer without content: big files
+ * are memory-mapped by the scanner (and read ahead by the operating system), and errors are reported by the scanner
+ * itself, when it opens the file.
+ *
+ * @author Nickolay Polyarniy aka PolarNick
+ */
+class ReadAhead implements Closeable {
+
+    private static final int MAX_READERS = 4;
+
+    private static final Request END = new Request(null, null);
+
+    /**
+     * Receives the content of the file, that was read ahead.
+     */
+    interface Consumer {
+
+        /**
+         * @param content whole content of the file from absolute index {@code 0} to the limit, or null, if file was
+         *                not read ahead. Buffer is reused for other files after return, so it should not be kept
+         */
+        void accept(ByteBuffer content);
+
+    }
+
+    private final int bufferSize;
+    private final Executor scanners;
+    private final BlockingQueue<ByteBuffer> freeBuffers;
+    private final BlockingQueue<Request> requests = new LinkedBlockingQueue<>();
+    private final int readersCount;
+    private final ExecutorService readers;
+    private boolean closed = false;
+
+    /**
+     * @param depth      number of files, that can be read ahead of the scan
+     * @param bufferSize size of the biggest file, that is read ahead
+     * @param scanners   executor, that runs consumers of the read files
+     */
+    ReadAhead(int depth, int bufferSize, Executor scanners) {
+        this.bufferSize = bufferSize;
+        this.scanners = scanners;
+        this.freeBuffers = new ArrayBlockingQueue<>(depth);
+        for (int i = 0; i < depth; i++) {
+            // one more byte to know, that the file is not longer than the buffer
+            freeBuffers.add(ByteBuffer.allocateDirect(bufferSize + 1));
+        }
+        this.readersCount = Math.min(depth, MAX_READERS);
+        this.readers = Executors.newFixedThreadPool(readersCount,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("grep-reader-%d").build());
+        for (int i = 0; i < readersCount; i++) {
+            readers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        readFiles();
+                    } catch (InterruptedException e) {
+                        // reading was stopped
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Reads the file by one of the reading threads and passes it to the consumer.
+     */
+    void read(Path file, Consumer consumer) {
+        if (closed) {
+            throw new IllegalStateException("Read-ahead is closed!");
+        }
+        requests.add(new Request(file, consumer));
+    }
+
+    private void readFiles() throws InterruptedException {
+        Request request;
+        while ((request = requests.take()) != END) {
+            final Consumer consumer = request.consumer;
+            final ByteBuffer buffer = freeBuffers.take();
+            final boolean read = readFully(request.file, buffer);
+            if (!read) {
+                freeBuffers.add(buffer);
+            }
+            scanners.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!read) {
+                        consumer.accept(null);
+                        return;
+                    }
+                    try {
+                        consumer.accept(buffer);
+                    } finally {
+                        freeBuffers.add(buffer);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * @return true, if the whole file was read to the buffer, that is flipped to it
+     */
+    private boolean readFully(Path file, ByteBuffer buffer) {
+        buffer.clear();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > bufferSize) {
+                return false;
+            }
+            while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        buffer.flip();
+        return buffer.limit() <= bufferSize;
+    }
+
+    /**
+     * Waits, until all files are read and passed to the executor, and stops the reading threads.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (int i = 0; i < readersCount; i++) {
+            requests.add(END);
+        }
+        readers.shutdown();
+        try {
+            readers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            readers.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private static class Request {
+
+        private final Path file;
+        private final Consumer consumer;
+
+        private Request(Path file, Consumer consumer) {
+            this.file = file;
+            this.consumer = consumer;
+        }
+
+    }
+
+}
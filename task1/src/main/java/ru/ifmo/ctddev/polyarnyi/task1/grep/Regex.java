@@ -0,0 +1,578 @@
+package ru.ifmo.ctddev.polyarnyi.task1.grep;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Regular expression over characters, that is searched in lines of the text by {@link LazyDfa}. Syntax is a subset
+ * of {@link java.util.regex.Pattern}:
+ * <ul>
+ * <li>characters, escaped characters ({@code \t}, {@code \r}, {@code \f}, {@code \xhh}, &#92;uhhhh, or any
+ * character except letters and digits after backslash) and any character {@code .}</li>
+ * <li>classes {@code [...]} and {@code [^...]} of characters and their ranges, {@code \d}, {@code \w}, {@code \s}
+ * (digits, letters and digits of all alphabets with underscore, white space) and their complements {@code \D},
+ * {@code \W}, {@code \S}</li>
+ * <li>repetitions {@code *}, {@code +}, {@code ?}, {@code {n}}, {@code {n,}} and {@code {n,m}} (reluctant ones are
+ * the same, as they match the same lines), groups {@code (...)} and {@code (?:...)}, alternatives {@code |}</li>
+ * <li>start {@code ^} and end {@code $} of the line. End of line is matched before the line feed or the carriage
+ * return, so it is not matched at the end of the text without them</li>
+ * </ul>
+ * Line feed is not matched by any class, so the match never crosses the line. Expression, that matches empty
+ * string, is rejected, because it would be found in each line.
+ *
+ * @author Nickolay Polyarniy aka PolarNick
+ */
+class Regex {
+
+    static final int LINE_FEED = '\n';
+    private static final int MAX_REPETITIONS = 1000;
+    private static final int[] ALL_CHARACTERS = {0, Character.MAX_CODE_POINT};
+
+    private final String pattern;
+    private final Node root;
+
+    private Regex(String pattern, Node root) {
+        this.pattern = pattern;
+        this.root = root;
+    }
+
+    /**
+     * @param ignoreCase true, if upper and lower case of letters should not be distinguished
+     * @throws IllegalArgumentException if pattern is not a supported regular expression or matches empty string
+     */
+    static Regex parse(String pattern, boolean ignoreCase) {
+        Node root = new Parser(pattern, ignoreCase).parse();
+        if (root.matchesEmpty()) {
+            throw new IllegalArgumentException("Regular expression \"" + pattern + "\" matches empty string!");
+        }
+        return new Regex(pattern, root);
+    }
+
+    /**
+     * Adds states of the expression to the automaton.
+     *
+     * @param next state, to which automaton goes after the match
+     * @return first state of the expression
+     */
+    int compile(ByteNfa.Builder builder, int next) {
+        return root.compile(builder, next);
+    }
+
+    @Override
+    public String toString() {
+        return pattern;
+    }
+
+    private abstract static class Node {
+
+        abstract boolean matchesEmpty();
+
+        abstract int compile(ByteNfa.Builder builder, int next);
+
+    }
+
+    private static class Characters extends Node {
+
+        /**
+         * Sorted not intersecting ranges of code points: {@code [from0, to0, from1, to1, ...]}.
+         */
+        private final int[] ranges;
+
+        private Characters(int[] ranges) {
+            this.ranges = ranges;
+        }
+
+        @Override
+        boolean matchesEmpty() {
+            return false;
+        }
+
+        @Override
+        int compile(ByteNfa.Builder builder, int next) {
+            return builder.addCharacters(ranges, next);
+        }
+
+    }
+
+    private static class Concatenation extends Node {
+
+        private final List<Node> nodes;
+
+        private Concatenation(List<Node> nodes) {
+            this.nodes = nodes;
+        }
+
+        @Override
+        boolean matchesEmpty() {
+            for (Node node : nodes) {
+                if (!node.matchesEmpty()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        int compile(ByteNfa.Builder builder, int next) {
+            for (int i = nodes.size() - 1; i >= 0; i--) {
+                next = nodes.get(i).compile(builder, next);
+            }
+            return next;
+        }
+
+    }
+
+    private static class Alternation extends Node {
+
+        private final List<Node> alternatives;
+
+        private Alternation(List<Node> alternatives) {
+            this.alternatives = alternatives;
+        }
+
+        @Override
+        boolean matchesEmpty() {
+            for (Node alternative : alternatives) {
+                if (alternative.matchesEmpty()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        int compile(ByteNfa.Builder builder, int next) {
+            int first = alternatives.get(alternatives.size() - 1).compile(builder, next);
+            for (int i = alternatives.size() - 2; i >= 0; i--) {
+                first = builder.addSplit(alternatives.get(i).compile(builder, next), first);
+            }
+            return first;
+        }
+
+    }
+
+    private static class Repetition extends Node {
+
+        private static final int UNBOUNDED = -1;
+
+        private final Node node;
+        private final int min;
+        private final int max;
+
+        private Repetition(Node node, int min, int max) {
+            this.node = node;
+            this.min = min;
+            this.max = max;
+        }
+
+        @Override
+        boolean matchesEmpty() {
+            return min == 0 || node.matchesEmpty();
+        }
+
+        @Override
+        int compile(ByteNfa.Builder builder, int next) {
+            int first = next;
+            if (max == UNBOUNDED) {
+                first = builder.addSplit(ByteNfa.NO_STATE, next);
+                builder.setOut(first, node.compile(builder, first));
+            } else {
+                for (int i = min; i < max; i++) {
+                    first = builder.addSplit(node.compile(builder, first), next);
+                }
+            }
+            for (int i = 0; i < min; i++) {
+                first = node.compile(builder, first);
+            }
+            return first;
+        }
+
+    }
+
+    private static class LineStart extends Node {
+
+        @Override
+        boolean matchesEmpty() {
+            return true;
+        }
+
+        @Override
+        int compile(ByteNfa.Builder builder, int next) {
+            return builder.addLineStart(next);
+        }
+
+    }
+
+    private static class LineEnd extends Node {
+
+        @Override
+        boolean matchesEmpty() {
+            return true;
+        }
+
+        @Override
+        int compile(ByteNfa.Builder builder, int next) {
+            return builder.addLineEnd(next);
+        }
+
+    }
+
+    private static class Parser {
+
+        private final String pattern;
+        private final boolean ignoreCase;
+        private int position = 0;
+
+        private Parser(String pattern, boolean ignoreCase) {
+            this.pattern = pattern;
+            this.ignoreCase = ignoreCase;
+        }
+
+        private Node parse() {
+            Node node = parseAlternation();
+            if (position < pattern.length()) {
+                throw error("unmatched \")\"");
+            }
+            return node;
+        }
+
+        private Node parseAlternation() {
+            List<Node> alternatives = new ArrayList<>();
+            alternatives.add(parseConcatenation());
+            while (position < pattern.length() && pattern.charAt(position) == '|') {
+                position++;
+                alternatives.add(parseConcatenation());
+            }
+            return alternatives.size() == 1 ? alternatives.get(0) : new Alternation(alternatives);
+        }
+
+        private Node parseConcatenation() {
+            List<Node> nodes = new ArrayList<>();
+            while (position < pattern.length() && pattern.charAt(position) != '|'
+                    && pattern.charAt(position) != ')') {
+                nodes.add(parseRepetition(parseAtom()));
+            }
+            return nodes.size() == 1 ? nodes.get(0) : new Concatenation(nodes);
+        }
+
+        private Node parseRepetition(Node node) {
+            while (position < pattern.length()) {
+                char c = pattern.charAt(position);
+                int min;
+                int max;
+                if (c == '*') {
+                    min = 0;
+                    max = Repetition.UNBOUNDED;
+                } else if (c == '+') {
+                    min = 1;
+                    max = Repetition.UNBOUNDED;
+                } else if (c == '?') {
+                    min = 0;
+                    max = 1;
+                } else if (c == '{') {
+                    int closing = pattern.indexOf('}', position);
+                    if (closing == -1) {
+                        throw error("unclosed \"{\"");
+                    }
+                    String[] bounds = pattern.substring(position + 1, closing).split(",", -1);
+                    if (bounds.length > 2) {
+                        throw error("wrong repetition");
+                    }
+                    min = parseBound(bounds[0]);
+                    max = bounds.length == 1 ? min : bounds[1].isEmpty() ? Repetition.UNBOUNDED : parseBound(bounds[1]);
+                    if (max != Repetition.UNBOUNDED && max < min) {
+                        throw error("wrong repetition");
+                    }
+                    position = closing;
+                } else {
+                    return node;
+                }
+                position++;
+                if (position < pattern.length() && pattern.charAt(position) == '?') {
+                    // reluctant repetition matches the same lines
+                    position++;
+                }
+                node = new Repetition(node, min, max);
+            }
+            return node;
+        }
+
+        private int parseBound(String bound) {
+            try {
+                int result = Integer.parseInt(bound);
+                if (result >= 0 && result <= MAX_REPETITIONS) {
+                    return result;
+                }
+            } catch (NumberFormatException ignored) {
+            }
+            throw error("repetition bound should be from 0 to " + MAX_REPETITIONS);
+        }
+
+        private Node parseAtom() {
+            int c = pattern.codePointAt(position);
+            position += Character.charCount(c);
+            switch (c) {
+                case '(':
+                    if (pattern.startsWith("?:", position)) {
+                        position += 2;
+                    }
+                    Node node = parseAlternation();
+                    if (position == pattern.length()) {
+                        throw error("unclosed \"(\"");
+                    }
+                    position++;
+                    return node;
+                case '[':
+                    return new Characters(parseClass());
+                case '.':
+                    return new Characters(ALL_CHARACTERS);
+                case '^':
+                    return new LineStart();
+                case '$':
+                    return new LineEnd();
+                case '\\':
+                    int[] escaped = parseEscape();
+                    return new Characters(escaped.length == 2 && escaped[0] == escaped[1] ? fold(escaped) : escaped);
+                case '*':
+                case '+':
+                case '?':
+                case '{':
+                    throw error("nothing to repeat");
+                default:
+                    return new Characters(fold(new int[]{c, c}));
+            }
+        }
+
+        /**
+         * @return characters of the class, that starts after {@code "["}
+         */
+        private int[] parseClass() {
+            boolean negated = position < pattern.length() && pattern.charAt(position) == '^';
+            if (negated) {
+                position++;
+            }
+            List<int[]> parts = new ArrayList<>();
+            List<int[]> predefined = new ArrayList<>();
+            boolean first = true;
+            while (true) {
+                if (position == pattern.length()) {
+                    throw error("unclosed \"[\"");
+                }
+                int c = pattern.codePointAt(position);
+                if (c == ']' && !first) {
+                    position++;
+                    break;
+                }
+                first = false;
+                int[] from = parseClassCharacter();
+                if (from.length != 2 || from[0] != from[1]) {
+                    predefined.add(from);
+                    continue;
+                }
+                if (position + 1 < pattern.length() && pattern.charAt(position) == '-'
+                        && pattern.charAt(position + 1) != ']') {
+                    position++;
+                    int[] to = parseClassCharacter();
+                    if (to.length != 2 || to[0] != to[1] || to[0] < from[0]) {
+                        throw error("wrong range of characters");
+                    }
+                    parts.add(new int[]{from[0], to[0]});
+                } else {
+                    parts.add(from);
+                }
+            }
+            predefined.add(fold(union(parts)));
+            int[] characters = union(predefined);
+            return negated ? complement(characters) : characters;
+        }
+
+        /**
+         * @return ranges of the single character or of the escaped class
+         */
+        private int[] parseClassCharacter() {
+            int c = pattern.codePointAt(position);
+            position += Character.charCount(c);
+            return c == '\\' ? parseEscape() : new int[]{c, c};
+        }
+
+        /**
+         * @return ranges of the character or of the class, escaped after {@code "\"}
+         */
+        private int[] parseEscape() {
+            if (position == pattern.length()) {
+                throw error("trailing \"\\\"");
+            }
+            int c = pattern.codePointAt(position);
+            position += Character.charCount(c);
+            switch (c) {
+                case 'd':
+                    return UnicodeClasses.DIGITS;
+                case 'D':
+                    return complement(UnicodeClasses.DIGITS);
+                case 'w':
+                    return UnicodeClasses.WORD;
+                case 'W':
+                    return complement(UnicodeClasses.WORD);
+                case 's':
+                    return UnicodeClasses.SPACE;
+                case 'S':
+                    return complement(UnicodeClasses.SPACE);
+                case 't':
+                    return new int[]{'\t', '\t'};
+                case 'n':
+                    return new int[]{'\n', '\n'};
+                case 'r':
+                    return new int[]{'\r', '\r'};
+                case 'f':
+                    return new int[]{'\f', '\f'};
+                case 'x':
+                    return parseHex(2);
+                case 'u':
+                    return parseHex(4);
+                default:
+                    if (Character.isLetterOrDigit(c)) {
+                        throw error("unsupported escape \"\\" + new String(Character.toChars(c)) + "\"");
+                    }
+                    return new int[]{c, c};
+            }
+        }
+
+        private int[] parseHex(int digits) {
+            if (position + digits > pattern.length()) {
+                throw error("wrong hexadecimal code of character");
+            }
+            try {
+                int c = Integer.parseInt(pattern.substring(position, position + digits), 16);
+                position += digits;
+                return new int[]{c, c};
+            } catch (NumberFormatException e) {
+                throw error("wrong hexadecimal code of character");
+            }
+        }
+
+        /**
+         * @return characters with all cases of them, if case should be ignored
+         */
+        private int[] fold(int[] characters) {
+            if (!ignoreCase) {
+                return characters;
+            }
+            List<int[]> folded = new ArrayList<>();
+            folded.add(characters);
+            for (int i = 0; i < characters.length; i += 2) {
+                for (int c = characters[i]; c <= characters[i + 1]; c++) {
+                    for (int variant : new int[]{Character.toLowerCase(c), Character.toUpperCase(c),
+                            Character.toTitleCase(c), Character.toLowerCase(Character.toUpperCase(c))}) {
+                        if (variant != c) {
+                            folded.add(new int[]{variant, variant});
+                        }
+                    }
+                }
+            }
+            return union(folded);
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException("Wrong regular expression \"" + pattern + "\": " + message
+                    + " at index " + position + "!");
+        }
+
+    }
+
+    /**
+     * @return sorted not intersecting ranges, that contain all characters of the given ranges
+     */
+    static int[] union(List<int[]> ranges) {
+        List<int[]> pairs = new ArrayList<>();
+        for (int[] range : ranges) {
+            for (int i = 0; i < range.length; i += 2) {
+                pairs.add(new int[]{range[i], range[i + 1]});
+            }
+        }
+        int[][] sorted = pairs.toArray(new int[pairs.size()][]);
+        Arrays.sort(sorted, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                return Integer.compare(a[0], b[0]);
+            }
+        });
+        int[] result = new int[2 * sorted.length];
+        int size = 0;
+        for (int[] pair : sorted) {
+            if (size > 0 && pair[0] <= result[size - 1] + 1) {
+                result[size - 1] = Math.max(result[size - 1], pair[1]);
+            } else {
+                result[size++] = pair[0];
+                result[size++] = pair[1];
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    /**
+     * @return ranges of all characters, that are not in the given sorted ranges
+     */
+    static int[] complement(int[] ranges) {
+        int[] result = new int[ranges.length + 2];
+        int size = 0;
+        int next = 0;
+        for (int i = 0; i < ranges.length; i += 2) {
+            if (ranges[i] > next) {
+                result[size++] = next;
+                result[size++] = ranges[i] - 1;
+            }
+            next = ranges[i + 1] + 1;
+        }
+        if (next <= Character.MAX_CODE_POINT) {
+            result[size++] = next;
+            result[size++] = Character.MAX_CODE_POINT;
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    /**
+     * Classes of all alphabets, as {@link java.util.regex.Pattern#UNICODE_CHARACTER_CLASS} defines them.
+     */
+    private static class UnicodeClasses {
+
+        private static final int[] DIGITS;
+        private static final int[] WORD;
+        private static final int[] SPACE;
+
+        static {
+            List<int[]> digits = new ArrayList<>();
+            List<int[]> word = new ArrayList<>();
+            List<int[]> space = new ArrayList<>();
+            for (int c = 0; c <= Character.MAX_CODE_POINT; c++) {
+                int type = Character.getType(c);
+                if (Character.isDigit(c)) {
+                    append(digits, c);
+                }
+                if (Character.isAlphabetic(c) || Character.isDigit(c) || c == 0x200C || c == 0x200D
+                        || type == Character.NON_SPACING_MARK || type == Character.ENCLOSING_MARK
+                        || type == Character.COMBINING_SPACING_MARK || type == Character.CONNECTOR_PUNCTUATION) {
+                    append(word, c);
+                }
+                if (c >= '\t' && c <= '\r' || c == 0x85 || Character.isSpaceChar(c)) {
+                    append(space, c);
+                }
+            }
+            DIGITS = union(digits);
+            WORD = union(word);
+            SPACE = union(space);
+        }
+
+        private static void append(List<int[]> ranges, int c) {
+            int[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+            if (last != null && last[1] == c - 1) {
+                last[1] = c;
+            } else {
+                ranges.add(new int[]{c, c});
+            }
+        }
+
+    }
+
+}
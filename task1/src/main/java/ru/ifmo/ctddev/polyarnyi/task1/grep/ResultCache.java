@@ -0,0 +1,253 @@
+package ru.ifmo.ctddev.polyarnyi.task1.grep;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Results of the scanned files (everything, that {@link FileScanner} wrote for them), that are reused while size and
+ * modification time of the file are not changed. Results depend on the query, so the cache is bound to the hash of
+ * the patterns and of the options, that change the output, and the cache of another query is dropped on load.
+ *
+ * File can be changed again within the resolution of its modification time, so results of the files, that were
+ * modified less than {@link #RACY_INTERVAL_MILLIS} before they were scanned, are kept (to know, what was written for
+ * them), but are not reused.
+ *
+ * Each result is kept as its 64-bit hash and its UTF-8 bytes, if it has at most
+ * {@link DuplicateContents#MAX_LINES_PER_RESULT} lines and all kept results take at most {@link #MAX_CACHED_BYTES}.
+ * Otherwise only the hash is kept: such file is scanned again, and its previous result is not known, unless the new
+ * result has the same hash, so memory of the cache grows with the output of the changed files, not of the whole tree.
+ *
+ * @author Nickolay Polyarniy aka PolarNick
+ */
+class ResultCache {
+
+    private static final int MAGIC = 0x47524552;
+    private static final int VERSION = 2;
+    private static final long RACY_INTERVAL_MILLIS = 2000;
+    private static final long MAX_CACHED_BYTES = 64L << 20;
+    private static final String UTF_8 = "UTF-8";
+
+    private final Path cacheFile;
+    private final long queryHash;
+    private final Map<Path, Entry> entries = new HashMap<>();
+    private long cachedBytes = 0;
+
+    private ResultCache(Path cacheFile, long queryHash) {
+        this.cacheFile = cacheFile;
+        this.queryHash = queryHash;
+    }
+
+    /**
+     * @param cacheFile file, from which results are loaded and to which they are saved, or null, if they are kept
+     *                  only in memory
+     */
+    static ResultCache open(Path cacheFile, List<String> patterns, GrepOptions options) throws IOException {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        for (String pattern : patterns) {
+            hasher.putString(pattern, Charset.forName(UTF_8)).putByte((byte) 0);
+        }
+        hasher.putBoolean(options.isIgnoreCase())
+                .putBoolean(options.isRegex())
+                .putBoolean(options.isDetectEncoding())
+                .putInt(options.getOutputMode().ordinal())
+                .putInt(options.getContextBefore())
+                .putInt(options.getContextAfter());
+        ResultCache cache = new ResultCache(cacheFile, hasher.hash().asLong());
+        if (cacheFile != null && Files.exists(cacheFile)) {
+            cache.load();
+        }
+        return cache;
+    }
+
+    /**
+     * @return result of the file, if it was not changed since it was scanned, and its result was kept, otherwise null
+     */
+    String get(Path file, BasicFileAttributes attr) {
+        Entry entry = entries.get(file);
+        return entry != null && entry.isActual(attr) ? entry.result() : null;
+    }
+
+    /**
+     * @param scanStarted time in milliseconds, when the scan of the file started
+     * @return previous result of the file, empty string, if it was not cached, or null, if it was not kept and was
+     * different
+     */
+    String put(Path file, BasicFileAttributes attr, long scanStarted, String result) {
+        long lastModified = attr.lastModifiedTime().toMillis();
+        long hash = hash(result);
+        byte[] bytes = null;
+        if (linesCount(result) <= DuplicateContents.MAX_LINES_PER_RESULT) {
+            bytes = result.getBytes(Charset.forName(UTF_8));
+        }
+        Entry previous = removed(entries.remove(file));
+        if (bytes != null && cachedBytes + bytes.length > MAX_CACHED_BYTES) {
+            bytes = null;
+        }
+        entries.put(file, added(new Entry(attr.size(), lastModified, scanStarted - lastModified < RACY_INTERVAL_MILLIS,
+                hash, bytes)));
+        if (previous == null) {
+            return "";
+        }
+        return previous.bytes == null && previous.hash == hash ? result : previous.result();
+    }
+
+    /**
+     * Removes results of the file or of all files in the directory.
+     *
+     * @return removed results by paths of their files, results, that were not kept, are null
+     */
+    Map<Path, String> remove(Path path) {
+        Entry entry = removed(entries.remove(path));
+        if (entry != null) {
+            return Collections.singletonMap(path, entry.result());
+        }
+        return retain(path, Collections.<Path>emptySet());
+    }
+
+    /**
+     * Removes results of all files in the directory except given ones.
+     *
+     * @param directory directory, empty path means all files
+     * @return removed results by paths of their files, results, that were not kept, are null
+     */
+    Map<Path, String> retain(Path directory, Set<Path> files) {
+        Map<Path, String> removed = new HashMap<>();
+        boolean all = directory.toString().isEmpty();
+        for (Iterator<Map.Entry<Path, Entry>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Path, Entry> entry = it.next();
+            if ((all || entry.getKey().startsWith(directory)) && !files.contains(entry.getKey())) {
+                removed.put(entry.getKey(), removed(entry.getValue()).result());
+                it.remove();
+            }
+        }
+        return removed;
+    }
+
+    private Entry added(Entry entry) {
+        if (entry.bytes != null) {
+            cachedBytes += entry.bytes.length;
+        }
+        return entry;
+    }
+
+    private Entry removed(Entry entry) {
+        if (entry != null && entry.bytes != null) {
+            cachedBytes -= entry.bytes.length;
+        }
+        return entry;
+    }
+
+    private static long hash(String result) {
+        return Hashing.murmur3_128().hashString(result, Charset.forName(UTF_8)).asLong();
+    }
+
+    private static int linesCount(String result) {
+        int count = 0;
+        for (int i = result.indexOf('\n'); i != -1; i = result.indexOf('\n', i + 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Saves results to the file of the cache, if it was specified.
+     */
+    void save() throws IOException {
+        if (cacheFile == null) {
+            return;
+        }
+        Path tempFile = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(queryHash);
+            out.writeInt(entries.size());
+            for (Map.Entry<Path, Entry> entry : entries.entrySet()) {
+                out.writeUTF(entry.getKey().toString());
+                out.writeLong(entry.getValue().size);
+                out.writeLong(entry.getValue().lastModified);
+                out.writeBoolean(entry.getValue().racy);
+                out.writeLong(entry.getValue().hash);
+                byte[] result = entry.getValue().bytes;
+                if (result == null) {
+                    out.writeInt(-1);
+                    continue;
+                }
+                out.writeInt(result.length);
+                out.write(result);
+            }
+        }
+        Files.move(tempFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void load() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(cacheFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != queryHash) {
+                // results of unknown format or of another query will be rebuilt
+                return;
+            }
+            int count = in.readInt();
+            Path root = cacheFile.getFileSystem().getPath("");
+            for (int i = 0; i < count; i++) {
+                Path file = root.resolve(in.readUTF());
+                long size = in.readLong();
+                long lastModified = in.readLong();
+                boolean racy = in.readBoolean();
+                long hash = in.readLong();
+                int length = in.readInt();
+                byte[] result = null;
+                if (length != -1) {
+                    result = new byte[length];
+                    in.readFully(result);
+                }
+                entries.put(file, added(new Entry(size, lastModified, racy, hash, result)));
+            }
+        }
+    }
+
+    private static class Entry {
+
+        private final long size;
+        private final long lastModified;
+        /**
+         * True, if file could be changed after the scan without change of its modification time.
+         */
+        private final boolean racy;
+        private final long hash;
+        /**
+         * Result in UTF-8, or null, if it was not kept.
+         */
+        private final byte[] bytes;
+
+        private Entry(long size, long lastModified, boolean racy, long hash, byte[] bytes) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.racy = racy;
+            this.hash = hash;
+            this.bytes = bytes;
+        }
+
+        private boolean isActual(BasicFileAttributes attr) {
+            return !racy && bytes != null && size == attr.size() && lastModified == attr.lastModifiedTime().toMillis();
+        }
+
+        private String result() {
+            return bytes == null ? null : new String(bytes, Charset.forName(UTF_8));
+        }
+
+    }
+
+}
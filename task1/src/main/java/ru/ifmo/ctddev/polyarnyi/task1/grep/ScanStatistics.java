@@ -0,0 +1,198 @@
+package ru.ifmo.ctddev.polyarnyi.task1.grep;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and timers of the scan, that show, whether it is bound by the walk of the tree, reading of the files,
+ * scanning by automata or writing of the results:
+ * <ul>
+ * <li>walk - time of the walking thread outside of {@link Grep#visitFile}</li>
+ * <li>read - time of reading of the small files and decompression of archives (memory-mapped files are read, while
+ * they are scanned, so it is counted as match time)</li>
+ * <li>match - time of scanning by automata and cutting of the found lines</li>
+ * <li>emit - time of writing of the results</li>
+ * </ul>
+ * Times of the files, that are scanned in parallel, are summed up.
+ *
+ * Statistics are collected only if they are passed to {@link Grep}, otherwise nothing is measured. Scanners count
+ * everything for the whole file and add it here once per file, so counters are not contended in the scan loop.
+ *
+ * @author Nickolay Polyarniy aka PolarNick
+ */
+public class ScanStatistics implements ScanStatisticsMXBean {
+
+    static final String OBJECT_NAME = "ru.ifmo.ctddev.polyarnyi.task1.grep:type=ScanStatistics";
+    private static final int SLOWEST_FILES = 10;
+
+    private static final Comparator<FileTime> BY_TIME = new Comparator<FileTime>() {
+        @Override
+        public int compare(FileTime a, FileTime b) {
+            return Long.compare(a.nanos, b.nanos);
+        }
+    };
+
+    private final AtomicLong filesVisited = new AtomicLong();
+    private final AtomicLong filesScanned = new AtomicLong();
+    private final AtomicLong bytesScanned = new AtomicLong();
+    private final AtomicLong walkNanos = new AtomicLong();
+    private final AtomicLong readNanos = new AtomicLong();
+    private final AtomicLong matchNanos = new AtomicLong();
+    private final AtomicLong emitNanos = new AtomicLong();
+    private final ConcurrentMap<String, AtomicLong> matchesByEncoding = new ConcurrentHashMap<>();
+    /**
+     * The slowest files, starting from the fastest of them.
+     */
+    private final PriorityQueue<FileTime> slowestFiles = new PriorityQueue<>(SLOWEST_FILES + 1, BY_TIME);
+
+    /**
+     * Registers statistics in the platform MBean server as {@link #OBJECT_NAME}, replacing statistics, that were
+     * registered before.
+     */
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            throw new IllegalStateException("Statistics can not be registered!", e);
+        }
+    }
+
+    void fileVisited(long walkNanos) {
+        filesVisited.incrementAndGet();
+        this.walkNanos.addAndGet(walkNanos);
+    }
+
+    /**
+     * @param matchesByEncoding number of matches for each encoding, where they were found
+     */
+    void fileScanned(String fileName, long bytes, long readNanos, long matchNanos, long emitNanos,
+                     Map<String, Long> matchesByEncoding) {
+        filesScanned.incrementAndGet();
+        bytesScanned.addAndGet(bytes);
+        this.readNanos.addAndGet(readNanos);
+        this.matchNanos.addAndGet(matchNanos);
+        this.emitNanos.addAndGet(emitNanos);
+        for (Map.Entry<String, Long> entry : matchesByEncoding.entrySet()) {
+            AtomicLong count = this.matchesByEncoding.get(entry.getKey());
+            if (count == null) {
+                this.matchesByEncoding.putIfAbsent(entry.getKey(), new AtomicLong());
+                count = this.matchesByEncoding.get(entry.getKey());
+            }
+            count.addAndGet(entry.getValue());
+        }
+        FileTime time = new FileTime(fileName, bytes, readNanos + matchNanos + emitNanos);
+        synchronized (slowestFiles) {
+            if (slowestFiles.size() < SLOWEST_FILES || BY_TIME.compare(time, slowestFiles.peek()) > 0) {
+                slowestFiles.add(time);
+                if (slowestFiles.size() > SLOWEST_FILES) {
+                    slowestFiles.poll();
+                }
+            }
+        }
+    }
+
+    @Override
+    public long getFilesVisited() {
+        return filesVisited.get();
+    }
+
+    @Override
+    public long getFilesScanned() {
+        return filesScanned.get();
+    }
+
+    @Override
+    public long getBytesScanned() {
+        return bytesScanned.get();
+    }
+
+    @Override
+    public Map<String, Long> getMatchesByEncoding() {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> entry : matchesByEncoding.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        return result;
+    }
+
+    @Override
+    public long getWalkMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(walkNanos.get());
+    }
+
+    @Override
+    public long getReadMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(readNanos.get());
+    }
+
+    @Override
+    public long getMatchMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(matchNanos.get());
+    }
+
+    @Override
+    public long getEmitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(emitNanos.get());
+    }
+
+    @Override
+    public List<String> getSlowestFiles() {
+        List<FileTime> slowest;
+        synchronized (slowestFiles) {
+            slowest = new ArrayList<>(slowestFiles);
+        }
+        Collections.sort(slowest, Collections.reverseOrder(BY_TIME));
+        List<String> result = new ArrayList<>(slowest.size());
+        for (FileTime time : slowest) {
+            result.add(String.format("%s: %d ms, %d bytes", time.fileName,
+                    TimeUnit.NANOSECONDS.toMillis(time.nanos), time.bytes));
+        }
+        return result;
+    }
+
+    @Override
+    public String getSummary() {
+        StringBuilder summary = new StringBuilder(String.format(
+                "Files: %d visited, %d scanned, bytes scanned: %d, matches: %s%n"
+                        + "Time: walk %d ms, read %d ms, match %d ms, emit %d ms%nSlowest files:",
+                getFilesVisited(), getFilesScanned(), getBytesScanned(), getMatchesByEncoding(),
+                getWalkMillis(), getReadMillis(), getMatchMillis(), getEmitMillis()));
+        for (String file : getSlowestFiles()) {
+            summary.append(System.lineSeparator()).append("  ").append(file);
+        }
+        return summary.toString();
+    }
+
+    private static class FileTime {
+
+        private final String fileName;
+        private final long bytes;
+        private final long nanos;
+
+        private FileTime(String fileName, long bytes, long nanos) {
+            this.fileName = fileName;
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+
+    }
+
+}
@@ -0,0 +1,39 @@
+package ru.ifmo.ctddev.polyarnyi.task1.grep;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Management interface of {@link ScanStatistics}.
+ *
+ * @author Nickolay Polyarniy aka PolarNick
+ */
+public interface ScanStatisticsMXBean {
+
+    long getFilesVisited();
+
+    long getFilesScanned();
+
+    long getBytesScanned();
+
+    /**
+     * @return number of found lines (or files, if only paths of files are written) for each encoding
+     */
+    Map<String, Long> getMatchesByEncoding();
+
+    long getWalkMillis();
+
+    long getReadMillis();
+
+    long getMatchMillis();
+
+    long getEmitMillis();
+
+    /**
+     * @return descriptions of the files, that were scanned for the longest time, starting from the slowest one
+     */
+    List<String> getSlowestFiles();
+
+    String getSummary();
+
+}
@@ -0,0 +1,77 @@
+package ru.ifmo.ctddev.polyarnyi.task1.grep;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Immutable searcher of the set of patterns over bytes, each pattern has its data. Text is processed by
+ * {@link Matcher}, all engines of literal patterns report the same patterns in the same order, see
+ * {@link SearchEngines}. {@link LazyDfa} of regular expressions reports lines, where they are found, instead.
+ *
+ * @author Nickolay Polyarniy aka PolarNick
+ */
+public interface SearchEngine<Data> {
+
+    Matcher<Data> matcher();
+
+    Data getData(int patternIndex);
+
+    /**
+     * @return size of the tables of the engine (without data of patterns)
+     */
+    long getSizeInBytes();
+
+    /**
+     * Writes engine without data of patterns in format, that is read by {@link SearchEngines#read}.
+     */
+    void write(DataOutput out) throws IOException;
+
+    /**
+     * Position of the engine in the processed text. Each thread (or each processed text) should use its own matcher.
+     */
+    interface Matcher<Data> {
+
+        void reset();
+
+        /**
+         * @return data of the longest pattern, that ends at this character, or null
+         */
+        Data processText(int character);
+
+        /**
+         * Processes bytes of the text with absolute indices from {@code offset} to {@code offset + length}, as
+         * unsigned characters, and reports all found patterns to listener in order of their end offsets, including
+         * overlapping ones. Patterns, that end at the same offset, are reported from the longest one, and equal
+         * patterns - from the last one.
+         *
+         * @return false, if scanning was stopped by listener
+         */
+        boolean scan(ByteBuffer text, int offset, int length, OutputListener listener);
+
+        /**
+         * Reports patterns, that end at the end of the text, but are known only after the next byte (patterns of
+         * {@link LazyDfa}, that end before the end of line). Engines of literal patterns report nothing.
+         *
+         * @return false, if scanning was stopped by listener
+         */
+        boolean finish(OutputListener listener);
+
+    }
+
+    /**
+     * Receives patterns, found by {@link Matcher#scan}.
+     */
+    interface OutputListener {
+
+        /**
+         * @param offset       offset of the last character of found pattern in the text, processed by matcher since
+         *                     its creation or last {@link Matcher#reset()}
+         * @param patternIndex index of found pattern in the list of patterns, that engine was built from
+         * @return true, if scanning should be continued, false - if it should be stopped after this pattern
+         */
+        boolean onOutput(long offset, int patternIndex);
+
+    }
+
+}
@@ -0,0 +1,149 @@
+package ru.ifmo.ctddev.polyarnyi.task1.grep;
+
+import com.google.common.primitives.Ints;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Planner, that chooses {@link SearchEngine} for the set of patterns over bytes.
+ *
+ * {@link AhoCorasick} makes one transition per byte of the text, so it is chosen for short patterns and for big sets
+ * of patterns. {@link WuManber} reads about one block of bytes per shift of the window, and compares patterns with
+ * the text, if the shift is zero, so it is chosen, if all patterns are at least {@link #MIN_SKIPPING_LENGTH} bytes
+ * long, there are at most {@link #MAX_SKIPPING_PATTERNS} different patterns, and the expected shift is long enough.
+ * The expected shift is the mean shift of the blocks of bytes, that occur in the patterns: the less different bytes
+ * the patterns consist of, the more blocks of the text occur in the patterns, and the shorter the shifts are.
+ *
+ * Aho-Corasick skips bytes by words, while they can not start any pattern, so if patterns start only with few bytes
+ * above ASCII (that are rare in most texts), Wu-Manber is chosen only for much longer shifts.
+ *
+ * Regular expressions are always searched by {@link LazyDfa}, it is only written and read here.
+ *
+ * @author Nickolay Polyarniy aka PolarNick
+ */
+class SearchEngines {
+
+    /**
+     * Kind of the engine, as it is written by {@link #write}.
+     */
+    enum Kind {
+        AHO_CORASICK,
+        WU_MANBER,
+        LAZY_DFA
+    }
+
+    static final int MIN_SKIPPING_LENGTH = 6;
+    static final int MAX_SKIPPING_PATTERNS = 64;
+    private static final double MIN_EXPECTED_SHIFT = 4;
+    /**
+     * Aho-Corasick, that skips bytes by words, is about as fast as Wu-Manber with such shift.
+     */
+    private static final double MIN_EXPECTED_SHIFT_OVER_SKIPPING_AHO_CORASICK = 12;
+    private static final int MAX_SKIPPED_LEADING_BYTES = 8;
+    private static final int ASCII_SIZE = 128;
+    private static final int BYTES_COUNT = 256;
+
+    private SearchEngines() {
+    }
+
+    /**
+     * @param patterns    unsigned bytes of the patterns
+     * @param byteFolding byte of the patterns, that should be matched by each byte of the text, or null, if bytes are
+     *                    matched as is
+     */
+    static <Data> SearchEngine<Data> build(List<int[]> patterns, List<Data> data, int[] byteFolding) {
+        return build(plan(patterns), patterns, data, byteFolding);
+    }
+
+    static <Data> SearchEngine<Data> build(Kind kind, List<int[]> patterns, List<Data> data, int[] byteFolding) {
+        if (kind == Kind.WU_MANBER) {
+            return new WuManber<>(patterns, data, byteFolding);
+        }
+        return new AhoCorasick<>(patterns, data, 0, BYTES_COUNT - 1, byteFolding, AhoCorasick.MAX_DENSE_CELLS);
+    }
+
+    /**
+     * @return kind of the engine, that is expected to scan text faster
+     */
+    static Kind plan(List<int[]> patterns) {
+        if (patterns.isEmpty()) {
+            return Kind.AHO_CORASICK;
+        }
+        int minLength = Integer.MAX_VALUE;
+        boolean[] inAlphabet = new boolean[BYTES_COUNT];
+        boolean[] isLeadingByte = new boolean[BYTES_COUNT];
+        Set<List<Integer>> different = new HashSet<>();
+        for (int[] pattern : patterns) {
+            different.add(Ints.asList(pattern));
+            minLength = Math.min(minLength, pattern.length);
+            for (int b : pattern) {
+                inAlphabet[b] = true;
+            }
+            if (pattern.length > 0) {
+                isLeadingByte[pattern[0]] = true;
+            }
+        }
+        if (minLength < MIN_SKIPPING_LENGTH || different.size() > MAX_SKIPPING_PATTERNS) {
+            return Kind.AHO_CORASICK;
+        }
+        int alphabetSize = 0;
+        int leadingBytes = 0;
+        boolean asciiLeadingBytes = false;
+        for (int b = 0; b < BYTES_COUNT; b++) {
+            alphabetSize += inAlphabet[b] ? 1 : 0;
+            leadingBytes += isLeadingByte[b] ? 1 : 0;
+            asciiLeadingBytes |= isLeadingByte[b] && b < ASCII_SIZE;
+        }
+        int[] shift = WuManber.buildShifts(patterns, minLength);
+        long shiftsSum = 0;
+        for (int a = 0; a < BYTES_COUNT; a++) {
+            for (int b = 0; b < BYTES_COUNT; b++) {
+                if (inAlphabet[a] && inAlphabet[b]) {
+                    shiftsSum += shift[(a << 8) | b];
+                }
+            }
+        }
+        double expectedShift = (double) shiftsSum / alphabetSize / alphabetSize;
+        double minExpectedShift = leadingBytes <= MAX_SKIPPED_LEADING_BYTES && !asciiLeadingBytes
+                ? MIN_EXPECTED_SHIFT_OVER_SKIPPING_AHO_CORASICK : MIN_EXPECTED_SHIFT;
+        return expectedShift >= minExpectedShift ? Kind.WU_MANBER : Kind.AHO_CORASICK;
+    }
+
+    static Kind kindOf(SearchEngine<?> engine) {
+        if (engine instanceof LazyDfa) {
+            return Kind.LAZY_DFA;
+        }
+        return engine instanceof WuManber ? Kind.WU_MANBER : Kind.AHO_CORASICK;
+    }
+
+    /**
+     * Writes kind of the engine and the engine itself without data of patterns.
+     */
+    static void write(SearchEngine<?> engine, DataOutput out) throws IOException {
+        out.writeByte(kindOf(engine).ordinal());
+        engine.write(out);
+    }
+
+    /**
+     * Reads engine, written by {@link #write}, from the current position of the buffer, and moves position after it.
+     *
+     * @param data data of each pattern, that engine was built from
+     */
+    static <Data> SearchEngine<Data> read(ByteBuffer in, List<Data> data) {
+        int kind = in.get();
+        if (kind == Kind.WU_MANBER.ordinal()) {
+            return WuManber.read(in, data);
+        } else if (kind == Kind.AHO_CORASICK.ordinal()) {
+            return AhoCorasick.read(in, data);
+        } else if (kind == Kind.LAZY_DFA.ordinal()) {
+            return LazyDfa.read(in, data);
+        }
+        throw new IllegalArgumentException("Unknown kind of engine: " + kind + "!");
+    }
+
+}
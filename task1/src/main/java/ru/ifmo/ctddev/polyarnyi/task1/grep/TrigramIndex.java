@@ -0,0 +1,350 @@
+package ru.ifmo.ctddev.polyarnyi.task1.grep;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Persistent index of byte trigrams of the scanned files, that is used to skip files, which can not contain any of
+ * the patterns: file can contain pattern only if it contains all trigrams of the pattern in one of encodings.
+ *
+ * For each file index stores its size, modification time and sorted set of its trigrams. Entries of the files,
+ * that were changed since they were indexed, are updated by {@link #update} from the bytes, that the scanner read,
+ * entries of the files, that were not visited, are dropped on {@link #save()}. Archives are stored without trigrams
+ * (their bytes are compressed), so they are always scanned.
+ *
+ * @author Nickolay Polyarniy aka PolarNick
+ */
+public class TrigramIndex {
+
+    private static final int MAGIC = 0x47524933;
+    private static final int VERSION = 2;
+    private static final int TRIGRAMS_COUNT = 1 << 24;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private static final ThreadLocal<long[]> TRIGRAM_SETS = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[TRIGRAMS_COUNT / 64];
+        }
+    };
+
+    private final Path indexFile;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Set<String> visited = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    /**
+     * Sorted trigrams of each pattern in each encoding, or null, if some pattern is too short to have trigrams.
+     */
+    private final List<int[]> patternsTrigrams;
+
+    private TrigramIndex(Path indexFile, List<int[]> patternsTrigrams) {
+        this.indexFile = indexFile;
+        this.patternsTrigrams = patternsTrigrams;
+    }
+
+    public static TrigramIndex open(Path indexFile, List<String> patterns, List<String> encodings) throws IOException {
+        return open(indexFile, patterns, encodings, false);
+    }
+
+    /**
+     * Loads index from file (if it exists) to search given patterns.
+     *
+     * @param ignoreCase true, if patterns are searched case-insensitively. Index stores trigrams of bytes as is, so
+     *                   then it does not skip files, but it is still updated
+     */
+    public static TrigramIndex open(Path indexFile, List<String> patterns, List<String> encodings,
+                                    boolean ignoreCase) throws IOException {
+        List<int[]> patternsTrigrams = new ArrayList<>(patterns.size() * encodings.size());
+        for (String pattern : patterns) {
+            if (ignoreCase) {
+                patternsTrigrams = null;
+                break;
+            }
+            for (String encoding : encodings) {
+                byte[] bytes = pattern.getBytes(Charset.forName(encoding));
+                if (bytes.length < 3) {
+                    patternsTrigrams = null;
+                    break;
+                }
+                SortedSet<Integer> trigrams = new TreeSet<>();
+                for (int i = 0; i + 3 <= bytes.length; i++) {
+                    trigrams.add(trigram(bytes[i], bytes[i + 1], bytes[i + 2]));
+                }
+                int[] sorted = new int[trigrams.size()];
+                int k = 0;
+                for (int trigram : trigrams) {
+                    sorted[k++] = trigram;
+                }
+                patternsTrigrams.add(sorted);
+            }
+            if (patternsTrigrams == null) {
+                break;
+            }
+        }
+        TrigramIndex index = new TrigramIndex(indexFile, patternsTrigrams);
+        if (Files.exists(indexFile)) {
+            index.load();
+        }
+        return index;
+    }
+
+    /**
+     * @return false, if file was not changed since it was indexed, and it can not contain any of patterns
+     */
+    public boolean isCandidate(Path file, BasicFileAttributes attr) {
+        String key = file.toString();
+        visited.add(key);
+        Entry entry = entries.get(key);
+        if (entry == null || !entry.isActual(attr) || entry.trigrams == null || patternsTrigrams == null) {
+            return true;
+        }
+        for (int[] pattern : patternsTrigrams) {
+            if (containsAll(entry.trigrams, pattern)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Indexes the file, if it was changed since it was indexed.
+     */
+    public void update(Path file, BasicFileAttributes attr) throws IOException {
+        if (newTrigrams(file, attr) != null) {
+            put(file, attr, readTrigrams(file));
+        }
+    }
+
+    /**
+     * @return empty trigrams, that are collected from the bytes of the file, while it is scanned, if the file was
+     * changed since it was indexed, otherwise null
+     */
+    Trigrams newTrigrams(Path file, BasicFileAttributes attr) {
+        Entry entry = entries.get(file.toString());
+        return entry == null || !entry.isActual(attr) ? new Trigrams() : null;
+    }
+
+    /**
+     * Indexes the file by trigrams, that were collected by the scanner, or by reading the file again, if the scanner
+     * did not read all its bytes.
+     */
+    void update(Path file, BasicFileAttributes attr, Trigrams trigrams) throws IOException {
+        int[] sorted = trigrams.finish();
+        if (!trigrams.complete) {
+            sorted = readTrigrams(file);
+        }
+        put(file, attr, sorted);
+    }
+
+    private void put(Path file, BasicFileAttributes attr, int[] trigrams) {
+        entries.put(file.toString(), new Entry(attr.size(), attr.lastModifiedTime().toMillis(), trigrams));
+    }
+
+    /**
+     * Saves entries of the files, that were visited since the index was opened.
+     */
+    public void save() throws IOException {
+        Path tempFile = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            List<String> keys = new ArrayList<>(entries.keySet());
+            keys.retainAll(visited);
+            out.writeInt(keys.size());
+            for (String key : keys) {
+                Entry entry = entries.get(key);
+                out.writeUTF(key);
+                out.writeLong(entry.size);
+                out.writeLong(entry.lastModified);
+                if (entry.trigrams == null) {
+                    out.writeInt(-1);
+                    continue;
+                }
+                out.writeInt(entry.trigrams.length);
+                int previous = 0;
+                for (int trigram : entry.trigrams) {
+                    writeVarInt(out, trigram - previous);
+                    previous = trigram;
+                }
+            }
+        }
+        Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void load() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                // index of unknown format will be rebuilt
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                long size = in.readLong();
+                long lastModified = in.readLong();
+                int trigramsCount = in.readInt();
+                if (trigramsCount == -1) {
+                    entries.put(key, new Entry(size, lastModified, null));
+                    continue;
+                }
+                int[] trigrams = new int[trigramsCount];
+                int previous = 0;
+                for (int k = 0; k < trigrams.length; k++) {
+                    trigrams[k] = previous + readVarInt(in);
+                    previous = trigrams[k];
+                }
+                entries.put(key, new Entry(size, lastModified, trigrams));
+            }
+        }
+    }
+
+    /**
+     * @return sorted trigrams of the file, or null, if file is an archive
+     */
+    private static int[] readTrigrams(Path file) throws IOException {
+        Trigrams trigrams = new Trigrams();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (ArchiveReader.detect(channel) != null) {
+                trigrams.setArchive();
+            } else {
+                ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                while (channel.read(buffer) != -1) {
+                    trigrams.add(buffer, 0, buffer.position());
+                    buffer.clear();
+                }
+            }
+        } catch (IOException e) {
+            trigrams.finish();
+            throw e;
+        }
+        return trigrams.finish();
+    }
+
+    private static boolean containsAll(int[] sorted, int[] subset) {
+        for (int trigram : subset) {
+            if (Arrays.binarySearch(sorted, trigram) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int trigram(byte a, byte b, byte c) {
+        return ((a & 0xFF) << 16) | ((b & 0xFF) << 8) | (c & 0xFF);
+    }
+
+    private static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInput in) throws IOException {
+        int result = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.readByte();
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+    }
+
+    /**
+     * Trigrams of one file, that are collected from its bytes, which are added in order. Set of the already found
+     * trigrams is taken from the thread, that adds the first bytes, and is cleared and returned to the thread, that
+     * finishes collecting.
+     */
+    static class Trigrams {
+
+        private long[] set;
+        private int[] trigrams = new int[16];
+        private int count = 0;
+        private int trigram = 0;
+        private long bytesCount = 0;
+        private boolean complete = false;
+        private boolean archive = false;
+
+        void add(ByteBuffer bytes, int from, int to) {
+            if (set == null) {
+                set = TRIGRAM_SETS.get();
+                TRIGRAM_SETS.set(null);
+                if (set == null) {
+                    set = new long[TRIGRAMS_COUNT / 64];
+                }
+            }
+            for (int i = from; i < to; i++) {
+                trigram = ((trigram << 8) | (bytes.get(i) & 0xFF)) & (TRIGRAMS_COUNT - 1);
+                if (++bytesCount >= 3 && (set[trigram >>> 6] & (1L << trigram)) == 0) {
+                    set[trigram >>> 6] |= 1L << trigram;
+                    if (count == trigrams.length) {
+                        trigrams = Arrays.copyOf(trigrams, count * 2);
+                    }
+                    trigrams[count++] = trigram;
+                }
+            }
+        }
+
+        /**
+         * Marks, that all bytes of the file were added.
+         */
+        void setComplete() {
+            complete = true;
+        }
+
+        /**
+         * Marks, that the file is an archive, so it is indexed without trigrams.
+         */
+        void setArchive() {
+            archive = true;
+            complete = true;
+        }
+
+        /**
+         * @return sorted trigrams, or null, if file is an archive
+         */
+        private int[] finish() {
+            if (set != null) {
+                for (int i = 0; i < count; i++) {
+                    set[trigrams[i] >>> 6] = 0;
+                }
+                TRIGRAM_SETS.set(set);
+                set = null;
+            }
+            if (archive) {
+                return null;
+            }
+            int[] sorted = Arrays.copyOf(trigrams, count);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+
+    }
+
+    private static class Entry {
+
+        private final long size;
+        private final long lastModified;
+        private final int[] trigrams;
+
+        private Entry(long size, long lastModified, int[] trigrams) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.trigrams = trigrams;
+        }
+
+        private boolean isActual(BasicFileAttributes attr) {
+            return size == attr.size() && lastModified == attr.lastModifiedTime().toMillis();
+        }
+
+    }
+
+}
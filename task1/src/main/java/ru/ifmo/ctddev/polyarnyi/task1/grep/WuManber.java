@@ -0,0 +1,376 @@
+package ru.ifmo.ctddev.polyarnyi.task1.grep;
+
+import com.google.common.base.Preconditions;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Wu-Manber search of the set of patterns over bytes: text is checked only at the ends of windows of
+ * {@code minLength} bytes, and the window is shifted by the table of its last {@link #BLOCK} bytes, so for long
+ * patterns most bytes of the text are not read at all.
+ *
+ * Patterns are aligned by their ends: shift of the block is the distance from its last occurrence in the last
+ * {@code minLength} bytes of some pattern to the end of the pattern (or {@code minLength - 1}, if there is no such).
+ * If shift is {@code 0}, patterns with this block at the end are compared with the text backwards. So patterns are
+ * found in order of their end offsets, as {@link AhoCorasick} finds them, and matcher keeps only the last
+ * {@code maxLength - 1} bytes of the previous text to find patterns, that start in it.
+ *
+ * Characters of the text can be folded by the map of bytes (patterns should consist of folded bytes only).
+ *
+ * @author Nickolay Polyarniy aka PolarNick
+ */
+public class WuManber<Data> implements SearchEngine<Data> {
+
+    static final int BLOCK = 2;
+    private static final int BYTES_COUNT = 256;
+    private static final int BLOCKS_COUNT = BYTES_COUNT * BYTES_COUNT;
+
+    private final List<Data> data;
+    private final byte[][] patterns;
+    /**
+     * Folded byte for each byte of the text.
+     */
+    private final int[] folding;
+    private final int minLength;
+    private final int maxLength;
+    /**
+     * Shift of the window, that ends with each block of the text (blocks are folded in advance).
+     */
+    private final int[] shift;
+    /**
+     * Patterns, that end with block {@code b}, are {@code bucketPatterns[bucketStart[b]..bucketStart[b + 1])}, the
+     * longest one goes first, equal ones - from the last one.
+     */
+    private final int[] bucketStart;
+    private final int[] bucketPatterns;
+    /**
+     * True, if pattern in the bucket is equal to the previous one (for example, ASCII pattern in several
+     * encodings), so it is not compared with the text again.
+     */
+    private final boolean[] sameAsPrevious;
+
+    /**
+     * @param patterns     unsigned bytes of the patterns, each pattern has at least {@link #BLOCK} bytes
+     * @param byteFolding  byte of the patterns, that should be matched by each byte of the text, or null, if bytes are
+     *                     matched as is
+     */
+    public WuManber(List<int[]> patterns, List<Data> data, int[] byteFolding) {
+        Preconditions.checkArgument(patterns.size() == data.size(), "Data must be per pattern!");
+        Preconditions.checkArgument(!patterns.isEmpty(), "There must be patterns!");
+        this.data = new ArrayList<>(data);
+        this.patterns = new byte[patterns.size()][];
+        int minLength = Integer.MAX_VALUE;
+        int maxLength = 0;
+        for (int i = 0; i < patterns.size(); i++) {
+            int[] pattern = patterns.get(i);
+            Preconditions.checkArgument(pattern.length >= BLOCK, "Pattern must have at least %s bytes!", BLOCK);
+            this.patterns[i] = new byte[pattern.length];
+            for (int k = 0; k < pattern.length; k++) {
+                this.patterns[i][k] = (byte) pattern[k];
+            }
+            minLength = Math.min(minLength, pattern.length);
+            maxLength = Math.max(maxLength, pattern.length);
+        }
+        this.minLength = minLength;
+        this.maxLength = maxLength;
+        this.folding = new int[BYTES_COUNT];
+        for (int b = 0; b < BYTES_COUNT; b++) {
+            folding[b] = byteFolding == null ? b : byteFolding[b];
+        }
+        int[] patternShift = buildShifts(patterns, minLength);
+        this.shift = byteFolding == null ? patternShift : new int[BLOCKS_COUNT];
+        if (byteFolding != null) {
+            for (int block = 0; block < BLOCKS_COUNT; block++) {
+                shift[block] = patternShift[foldBlock(block)];
+            }
+        }
+
+        this.bucketStart = new int[BLOCKS_COUNT + 1];
+        for (int[] pattern : patterns) {
+            bucketStart[lastBlock(pattern) + 1]++;
+        }
+        for (int b = 0; b < BLOCKS_COUNT; b++) {
+            bucketStart[b + 1] += bucketStart[b];
+        }
+        Integer[] order = new Integer[patterns.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                byte[] first = WuManber.this.patterns[a];
+                byte[] second = WuManber.this.patterns[b];
+                if (first.length != second.length) {
+                    return second.length - first.length;
+                }
+                for (int k = 0; k < first.length; k++) {
+                    if (first[k] != second[k]) {
+                        return first[k] - second[k];
+                    }
+                }
+                return b - a;
+            }
+        });
+        this.bucketPatterns = new int[patterns.size()];
+        int[] filled = Arrays.copyOf(bucketStart, BLOCKS_COUNT);
+        for (int pattern : order) {
+            bucketPatterns[filled[lastBlock(patterns.get(pattern))]++] = pattern;
+        }
+        this.sameAsPrevious = new boolean[patterns.size()];
+        for (int block = 0; block < BLOCKS_COUNT; block++) {
+            for (int k = bucketStart[block] + 1; k < bucketStart[block + 1]; k++) {
+                sameAsPrevious[k] = Arrays.equals(this.patterns[bucketPatterns[k]],
+                        this.patterns[bucketPatterns[k - 1]]);
+            }
+        }
+    }
+
+    /**
+     * @return shift of the window, that ends with each block, if patterns are aligned by their last
+     * {@code minLength} bytes
+     */
+    static int[] buildShifts(List<int[]> patterns, int minLength) {
+        int[] shift = new int[BLOCKS_COUNT];
+        Arrays.fill(shift, minLength - BLOCK + 1);
+        for (int[] pattern : patterns) {
+            for (int end = pattern.length - minLength + BLOCK - 1; end < pattern.length; end++) {
+                int block = (pattern[end - 1] << 8) | pattern[end];
+                shift[block] = Math.min(shift[block], pattern.length - 1 - end);
+            }
+        }
+        return shift;
+    }
+
+    private int foldBlock(int block) {
+        return (folding[block >>> 8] << 8) | folding[block & 0xFF];
+    }
+
+    private static int lastBlock(int[] pattern) {
+        return (pattern[pattern.length - 2] << 8) | pattern[pattern.length - 1];
+    }
+
+    /**
+     * Reads engine, written by {@link #write}, from the current position of the buffer, and moves position after it.
+     * Tables are rebuilt: they take much more space, than the patterns.
+     *
+     * @param data data of each pattern, that engine was built from
+     */
+    static <Data> WuManber<Data> read(ByteBuffer in, List<Data> data) {
+        int[] byteFolding = new int[BYTES_COUNT];
+        for (int b = 0; b < BYTES_COUNT; b++) {
+            byteFolding[b] = in.get() & 0xFF;
+        }
+        int count = in.getInt();
+        Preconditions.checkArgument(count == data.size(), "Data must be per pattern!");
+        List<int[]> patterns = new ArrayList<>(count);
+        while (patterns.size() < count) {
+            int[] pattern = new int[in.getInt()];
+            for (int k = 0; k < pattern.length; k++) {
+                pattern[k] = in.get() & 0xFF;
+            }
+            patterns.add(pattern);
+        }
+        return new WuManber<>(patterns, data, byteFolding);
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        for (int b = 0; b < BYTES_COUNT; b++) {
+            out.writeByte(folding[b]);
+        }
+        out.writeInt(patterns.length);
+        for (byte[] pattern : patterns) {
+            out.writeInt(pattern.length);
+            out.write(pattern);
+        }
+    }
+
+    @Override
+    public Matcher matcher() {
+        return new Matcher();
+    }
+
+    @Override
+    public Data getData(int patternIndex) {
+        return data.get(patternIndex);
+    }
+
+    @Override
+    public long getSizeInBytes() {
+        long bytes = (folding.length + shift.length + bucketStart.length + bucketPatterns.length) * 4L
+                + sameAsPrevious.length;
+        for (byte[] pattern : patterns) {
+            bytes += pattern.length;
+        }
+        return bytes;
+    }
+
+    public int getMinLength() {
+        return minLength;
+    }
+
+    /**
+     * Position of the engine in the processed text. Engine itself is immutable, so it can be shared between
+     * threads, while each thread (or each processed text) should use its own matcher.
+     */
+    public class Matcher implements SearchEngine.Matcher<Data> {
+
+        /**
+         * Number of processed bytes.
+         */
+        private long position = 0;
+        /**
+         * Offset of the end of the next window.
+         */
+        private long nextEnd = minLength - 1;
+        /**
+         * Last {@code maxLength - 1} processed bytes (or less, if less bytes were processed).
+         */
+        private final byte[] tail = new byte[maxLength - 1];
+        private int tailLength = 0;
+        /**
+         * Tail, followed by the first bytes of the text, to check windows, that end in these bytes.
+         */
+        private final byte[] joint = new byte[2 * (maxLength - 1)];
+        private final ByteBuffer jointBuffer = ByteBuffer.wrap(joint);
+        private final ByteBuffer singleByte = ByteBuffer.allocate(1);
+        private Data found;
+        private final OutputListener firstFound = new OutputListener() {
+            @Override
+            public boolean onOutput(long offset, int patternIndex) {
+                found = found == null ? data.get(patternIndex) : found;
+                return true;
+            }
+        };
+
+        private Matcher() {
+        }
+
+        @Override
+        public void reset() {
+            position = 0;
+            nextEnd = minLength - 1;
+            tailLength = 0;
+        }
+
+        @Override
+        public Data processText(int character) {
+            found = null;
+            singleByte.put(0, (byte) character);
+            scan(singleByte, 0, 1, firstFound);
+            return found;
+        }
+
+        public boolean scan(byte[] text, int offset, int length, OutputListener listener) {
+            return scan(ByteBuffer.wrap(text), offset, length, listener);
+        }
+
+        @Override
+        public boolean scan(ByteBuffer text, int offset, int length, OutputListener listener) {
+            long start = position;
+            int jointTextLength = Math.min(length, maxLength - 1);
+            long stoppedAt = -1;
+            if (nextEnd < start + jointTextLength) {
+                System.arraycopy(tail, 0, joint, 0, tailLength);
+                for (int i = 0; i < jointTextLength; i++) {
+                    joint[tailLength + i] = text.get(offset + i);
+                }
+                long jointStart = start - tailLength;
+                stoppedAt = scanEnds(jointBuffer, 0, tailLength + jointTextLength, jointStart, listener);
+            }
+            if (stoppedAt == -1 && nextEnd < start + length) {
+                stoppedAt = scanEnds(text, offset, offset + length, start - offset, listener);
+            }
+            int processed = stoppedAt == -1 ? length : (int) (stoppedAt - start + 1);
+            remember(text, offset, processed);
+            position = start + processed;
+            if (stoppedAt != -1) {
+                nextEnd = stoppedAt + 1;
+            }
+            return stoppedAt == -1;
+        }
+
+        @Override
+        public boolean finish(OutputListener listener) {
+            return true;
+        }
+
+        /**
+         * Checks windows, that end from {@link #nextEnd} to the index {@code to} of the text, and moves
+         * {@link #nextEnd} to the first window after them. All bytes of these windows and of the patterns, that end
+         * there, are in the text, starting from index {@code from}, except bytes before the beginning of the stream.
+         *
+         * @param textStart offset in the stream of the byte with index {@code 0} of the text
+         * @return offset of the pattern, after which scanning was stopped by listener, or {@code -1}
+         */
+        private long scanEnds(ByteBuffer text, int from, int to, long textStart, OutputListener listener) {
+            if (text.order() != ByteOrder.BIG_ENDIAN) {
+                // blocks are read by shorts
+                text = text.duplicate().order(ByteOrder.BIG_ENDIAN);
+            }
+            int[] shift = WuManber.this.shift;
+            int i = (int) (nextEnd - textStart);
+            while (i < to) {
+                int s = shift[text.getShort(i - 1) & 0xFFFF];
+                if (s > 0) {
+                    i += s;
+                    continue;
+                }
+                int block = foldBlock(text.getShort(i - 1) & 0xFFFF);
+                boolean matched = false;
+                for (int k = bucketStart[block]; k < bucketStart[block + 1]; k++) {
+                    int pattern = bucketPatterns[k];
+                    if (!sameAsPrevious[k]) {
+                        matched = matches(patterns[pattern], text, i, from);
+                    }
+                    if (matched && !listener.onOutput(textStart + i, pattern)) {
+                        return textStart + i;
+                    }
+                }
+                i++;
+            }
+            nextEnd = textStart + i;
+            return -1;
+        }
+
+        /**
+         * @return true, if pattern ends at the given index of the text. Last block of the pattern is already matched
+         */
+        private boolean matches(byte[] pattern, ByteBuffer text, int end, int from) {
+            int start = end - pattern.length + 1;
+            if (start < from) {
+                return false;
+            }
+            for (int k = pattern.length - BLOCK - 1; k >= 0; k--) {
+                if (folding[text.get(start + k) & 0xFF] != (pattern[k] & 0xFF)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Appends bytes of the text to the {@link #tail}.
+         */
+        private void remember(ByteBuffer text, int offset, int length) {
+            int capacity = tail.length;
+            int kept = Math.min(tailLength, capacity - Math.min(capacity, length));
+            System.arraycopy(tail, tailLength - kept, tail, 0, kept);
+            int copied = Math.min(capacity, length);
+            for (int i = 0; i < copied; i++) {
+                tail[kept + i] = text.get(offset + length - copied + i);
+            }
+            tailLength = kept + copied;
+        }
+
+    }
+
+}
@@ -6,6 +6,7 @@ import org.junit.Test;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 
 /**
  * Date: 16.02.14 at 1:04
@@ -24,14 +25,146 @@ public class AhoCorasickTest {
     @Test
     public void test1() throws Exception {
         String encoding = "UTF-8";
-        AhoCorasick<String> search = new AhoCorasick<>(patterns, Collections.nCopies(patterns.size(), encoding), ' ', 255);
+        AhoCorasick<String>.Matcher search = new AhoCorasick<>(patterns, Collections.nCopies(patterns.size(), encoding), ' ', 255).matcher();
         int[] text = toInts("hers he his hers she hasdf");
         for (int i = 0; i < text.length; i++) {
             Assert.assertEquals("At index = " + i, isOneOfPatternEnd(text, i) ? encoding : null, search.processText(text[i]));
         }
     }
 
+    @Test
+    public void testRandomNestedPatterns() throws Exception {
+        Random random = new Random(239);
+        for (int iteration = 0; iteration < 100; iteration++) {
+            List<int[]> patterns = new ArrayList<>();
+            List<Integer> data = new ArrayList<>();
+            for (int i = 0; i < 1 + random.nextInt(10); i++) {
+                patterns.add(randomInts(random, 1 + random.nextInt(4), 'a', 'c'));
+                data.add(i);
+            }
+            AhoCorasick<Integer>.Matcher search = new AhoCorasick<>(patterns, data, 'a', 'c').matcher();
+            int[] text = randomInts(random, 100, 'a', 'c');
+            for (int i = 0; i < text.length; i++) {
+                Integer found = search.processText(text[i]);
+                Assert.assertEquals("At index = " + i, isOneOfPatternEnd(patterns, text, i), found != null);
+                if (found != null) {
+                    Assert.assertTrue("At index = " + i, isEndOfPattern(text, i, patterns.get(found)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testInterleavedMatchers() throws Exception {
+        AhoCorasick<String> search = new AhoCorasick<>(patterns, Collections.nCopies(patterns.size(), "UTF-8"), ' ', 255);
+        AhoCorasick<String>.Matcher first = search.matcher();
+        AhoCorasick<String>.Matcher second = search.matcher();
+        int[] firstText = toInts("hers he his hers she hasdf");
+        int[] secondText = toInts("ushers shis hishe sheep");
+        for (int i = 0; i < Math.max(firstText.length, secondText.length); i++) {
+            if (i < firstText.length) {
+                Assert.assertEquals("At index = " + i, isOneOfPatternEnd(firstText, i), first.processText(firstText[i]) != null);
+            }
+            if (i < secondText.length) {
+                Assert.assertEquals("At index = " + i, isOneOfPatternEnd(secondText, i), second.processText(secondText[i]) != null);
+            }
+        }
+    }
+
+    @Test
+    public void testScanReportsAllOverlappingPatterns() throws Exception {
+        Random random = new Random(566);
+        for (int iteration = 0; iteration < 100; iteration++) {
+            List<int[]> patterns = new ArrayList<>();
+            for (int i = 0; i < 1 + random.nextInt(10); i++) {
+                patterns.add(randomInts(random, 1 + random.nextInt(4), 'a', 'c'));
+            }
+            AhoCorasick<Integer> search = new AhoCorasick<>(patterns, Collections.nCopies(patterns.size(), 0), 'a', 'c');
+            int[] text = randomInts(random, 100, 'a', 'c');
+            Assert.assertEquals(findAllNaive(patterns, text), scanAll(search, text));
+        }
+    }
+
+    @Test
+    public void testScanSkipsBytesNotStartingPatterns() throws Exception {
+        Random random = new Random(30);
+        for (int iteration = 0; iteration < 100; iteration++) {
+            List<int[]> patterns = new ArrayList<>();
+            for (int i = 0; i < 1 + random.nextInt(20); i++) {
+                patterns.add(randomInts(random, 1 + random.nextInt(4), 246, 255));
+            }
+            AhoCorasick<Integer> search = new AhoCorasick<>(patterns, Collections.nCopies(patterns.size(), 0), 0, 255);
+            int[] text = randomInts(random, 1000, 0, 255);
+            for (int i = 0; i < text.length; i++) {
+                if (random.nextInt(50) != 0) {
+                    text[i] = random.nextInt(246);
+                }
+            }
+            Assert.assertEquals(findAllNaive(patterns, text), scanAll(search, text));
+        }
+    }
+
+    @Test
+    public void testSparseStatesFindSameAsDense() throws Exception {
+        Random random = new Random(2014);
+        for (int iteration = 0; iteration < 100; iteration++) {
+            List<int[]> patterns = new ArrayList<>();
+            for (int i = 0; i < 1 + random.nextInt(30); i++) {
+                patterns.add(randomInts(random, 1 + random.nextInt(6), 'a', 'a' + random.nextInt(12)));
+            }
+            int[] text = randomInts(random, 300, 'a' - 2, 'l');
+            List<String> expected = findAllNaive(patterns, text);
+            for (int maxDenseCells : new int[]{0, 13 * 5, 1 << 20}) {
+                AhoCorasick<Integer> search = new AhoCorasick<>(patterns, Collections.nCopies(patterns.size(), 0),
+                        0, 255, null, maxDenseCells);
+                Assert.assertEquals("Max dense cells = " + maxDenseCells, expected, scanAll(search, text));
+            }
+        }
+    }
+
+    private static List<String> scanAll(AhoCorasick<Integer> search, int[] text) {
+        byte[] bytes = new byte[text.length];
+        for (int i = 0; i < text.length; i++) {
+            bytes[i] = (byte) text[i];
+        }
+        final List<String> found = new ArrayList<>();
+        search.matcher().scan(bytes, 0, bytes.length, new SearchEngine.OutputListener() {
+            @Override
+            public boolean onOutput(long offset, int patternIndex) {
+                found.add(offset + ":" + patternIndex);
+                return true;
+            }
+        });
+        Collections.sort(found);
+        return found;
+    }
+
+    private static List<String> findAllNaive(List<int[]> patterns, int[] text) {
+        List<String> found = new ArrayList<>();
+        for (int i = 0; i < text.length; i++) {
+            for (int j = 0; j < patterns.size(); j++) {
+                if (isEndOfPattern(text, i, patterns.get(j))) {
+                    found.add(i + ":" + j);
+                }
+            }
+        }
+        Collections.sort(found);
+        return found;
+    }
+
+    private static int[] randomInts(Random random, int length, int minCharacter, int maxCharacter) {
+        int[] result = new int[length];
+        for (int i = 0; i < length; i++) {
+            result[i] = minCharacter + random.nextInt(maxCharacter - minCharacter + 1);
+        }
+        return result;
+    }
+
     private static boolean isOneOfPatternEnd(int[] text, int i) {
+        return isOneOfPatternEnd(patterns, text, i);
+    }
+
+    private static boolean isOneOfPatternEnd(List<int[]> patterns, int[] text, int i) {
         for (int[] pattern : patterns) {
             if (isEndOfPattern(text, i, pattern)) {
                 return true;
@@ -0,0 +1,194 @@
+package ru.ifmo.ctddev.polyarnyi.task1.grep;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * @author Nickolay Polyarniy aka PolarNick
+ */
+public class AsyncWriterTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Test
+    public void testLinesOfAllThreadsAreWritten() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final Writer out = new AsyncWriter(bytes, UTF_8, 10);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int thread = t;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 20000; i++) {
+                            out.write(thread + ": строка " + i + "\n");
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        out.close();
+
+        List<String> expected = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            for (int i = 0; i < 20000; i++) {
+                expected.add(t + ": строка " + i);
+            }
+        }
+        List<String> written = new ArrayList<>();
+        Collections.addAll(written, new String(bytes.toByteArray(), UTF_8).split("\n"));
+        Collections.sort(expected);
+        Collections.sort(written);
+        Assert.assertEquals(expected, written);
+    }
+
+    @Test
+    public void testNotFullBatchIsWrittenAfterFlushLatency() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Writer out = new AsyncWriter(bytes, UTF_8, 10);
+        out.write("привет\n");
+        out.flush();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (bytes.size() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        Assert.assertEquals("привет\n", new String(bytes.toByteArray(), UTF_8));
+        out.close();
+    }
+
+    @Test(timeout = 10000)
+    public void testWriterWaitingForSlowStreamDoesNotBlockOthers() throws Exception {
+        final CountDownLatch streamIsFree = new CountDownLatch(1);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final Writer out = new AsyncWriter(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    streamIsFree.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                bytes.write(b, off, len);
+            }
+        }, UTF_8, 10);
+        final int batchesCount = AsyncWriter.MAX_QUEUED_BATCHES + 2;
+        Thread filling = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                char[] chars = new char[AsyncWriter.BATCH_SIZE];
+                Arrays.fill(chars, 'a');
+                try {
+                    for (int i = 0; i < batchesCount; i++) {
+                        out.write(chars);
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        filling.start();
+        while (filling.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(5);
+        }
+        out.write("b");
+        Assert.assertTrue(filling.isAlive());
+
+        streamIsFree.countDown();
+        filling.join();
+        out.close();
+        String written = new String(bytes.toByteArray(), UTF_8);
+        Assert.assertEquals(batchesCount * AsyncWriter.BATCH_SIZE + 1, written.length());
+        Assert.assertEquals(written.length() - 1, written.replace("b", "").length());
+    }
+
+    @Test(timeout = 10000)
+    public void testLongStringIsNotCopiedAheadOfQueue() throws Exception {
+        final CountDownLatch streamIsFree = new CountDownLatch(1);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final Writer out = new AsyncWriter(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    streamIsFree.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                bytes.write(b, off, len);
+            }
+        }, UTF_8, 10);
+        final char[] chars = new char[(AsyncWriter.MAX_QUEUED_BATCHES + 8) * AsyncWriter.BATCH_SIZE];
+        Arrays.fill(chars, 'a');
+        Thread writing = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    out.write(chars);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        writing.start();
+        while (writing.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(5);
+        }
+        // characters, that were not copied to the queue yet, are changed
+        Arrays.fill(chars, 'b');
+
+        streamIsFree.countDown();
+        writing.join();
+        out.close();
+        String written = new String(bytes.toByteArray(), UTF_8);
+        Assert.assertEquals(chars.length, written.length());
+        // one more batch can be written to the buffer of the stream before it blocks
+        Assert.assertTrue(written.replace("b", "").length()
+                <= (AsyncWriter.MAX_QUEUED_BATCHES + 1) * AsyncWriter.BATCH_SIZE);
+    }
+
+    @Test(expected = IOException.class)
+    public void testFailureOfStreamIsThrownToWriters() throws Exception {
+        Writer out = new AsyncWriter(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("Broken pipe");
+            }
+        }, UTF_8, 10);
+        char[] chars = new char[AsyncWriter.BATCH_SIZE];
+        for (int i = 0; i < 1000; i++) {
+            out.write(chars);
+        }
+        out.close();
+    }
+
+}
@@ -0,0 +1,53 @@
+package ru.ifmo.ctddev.polyarnyi.task1.grep;
+
+import com.google.common.collect.Lists;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * @author Nickolay Polyarniy aka PolarNick
+ */
+public class EncodingDetectorTest {
+
+    private static final List<String> ENCODINGS = Lists.newArrayList("CP866", "KOI8-R", "UTF-8", "CP1251");
+    private static final String TEXT = "Съешь же ещё этих мягких французских булок, да выпей чаю.\n"
+            + "Ошибка: не удалось открыть файл конфигурации. Проверьте права доступа.\n";
+
+    private final EncodingDetector detector = new EncodingDetector(ENCODINGS);
+
+    @Test
+    public void testDetectsEachEncodingOfRussianText() throws Exception {
+        for (String encoding : ENCODINGS) {
+            Assert.assertEquals(encoding, detect(TEXT.getBytes(Charset.forName(encoding)), true));
+        }
+    }
+
+    @Test
+    public void testSampleMayEndInTheMiddleOfCharacter() throws Exception {
+        byte[] text = "привет".getBytes(Charset.forName("UTF-8"));
+        ByteBuffer sample = ByteBuffer.wrap(text);
+        Assert.assertEquals("UTF-8", detector.detect(sample, 0, text.length - 1, false));
+        Assert.assertNotEquals("UTF-8", detector.detect(sample, 0, text.length - 1, true));
+    }
+
+    @Test
+    public void testAsciiIsDetectedOnlyInWholeText() throws Exception {
+        byte[] text = "hello, world".getBytes(Charset.forName("UTF-8"));
+        Assert.assertNotNull(detect(text, true));
+        Assert.assertNull(detect(text, false));
+    }
+
+    @Test
+    public void testFewLettersAreAmbiguous() throws Exception {
+        Assert.assertNull(detect("hello, мир".getBytes(Charset.forName("CP1251")), true));
+    }
+
+    private String detect(byte[] text, boolean wholeText) {
+        return detector.detect(ByteBuffer.wrap(text), 0, text.length, wholeText);
+    }
+
+}
@@ -0,0 +1,320 @@
+package ru.ifmo.ctddev.polyarnyi.task1.grep;
+
+import com.google.common.collect.Lists;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import javax.management.ObjectName;
+
+/**
+ * @author Nickolay Polyarniy aka PolarNick
+ */
+public class FileScannerTest {
+
+    private static final List<String> ENCODINGS = Lists.newArrayList("CP866", "KOI8-R", "UTF-8", "CP1251");
+    private static final List<String> PATTERNS = Lists.newArrayList("привет", "hello");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testGzipIsScannedAsItsContent() throws Exception {
+        byte[] text = randomText(239, 300000);
+        Path plain = folder.getRoot().toPath().resolve("log.txt");
+        Files.write(plain, text);
+        Path archive = folder.getRoot().toPath().resolve("log.txt.gz");
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(archive))) {
+            out.write(text);
+        }
+
+        String expected = scan(plain);
+        Assert.assertFalse(expected.isEmpty());
+        Assert.assertEquals(expected.replace(plain.toString(), archive + "!/log.txt"), scan(archive));
+    }
+
+    @Test
+    public void testZipEntriesAreScannedSeparately() throws Exception {
+        byte[] first = randomText(1, 100000);
+        byte[] second = randomText(2, 200000);
+        Path archive = folder.getRoot().toPath().resolve("bundle.zip");
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(archive))) {
+            out.putNextEntry(new ZipEntry("dir/"));
+            out.putNextEntry(new ZipEntry("dir/first.txt"));
+            out.write(first);
+            out.putNextEntry(new ZipEntry("second.txt"));
+            out.write(second);
+        }
+        Path plainFirst = folder.getRoot().toPath().resolve("first.txt");
+        Files.write(plainFirst, first);
+        Path plainSecond = folder.getRoot().toPath().resolve("second.txt");
+        Files.write(plainSecond, second);
+
+        String expected = scan(plainFirst).replace(plainFirst.toString(), archive + "!/dir/first.txt")
+                + scan(plainSecond).replace(plainSecond.toString(), archive + "!/second.txt");
+        Assert.assertEquals(expected, scan(archive));
+    }
+
+    @Test(timeout = 10000)
+    public void testZipWithEntriesNamedInOtherEncodingIsSkipped() throws Exception {
+        Path archive = folder.getRoot().toPath().resolve("cp866.zip");
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(archive), Charset.forName("CP866"))) {
+            out.putNextEntry(new ZipEntry("привет.txt"));
+            out.write("hello".getBytes(Charset.forName("CP866")));
+        }
+        Path plain = folder.getRoot().toPath().resolve("plain.txt");
+        Files.write(plain, "hello".getBytes(Charset.forName("UTF-8")));
+        try {
+            new FileScanner(new MultiEncodingSearch(PATTERNS, ENCODINGS)).scan(archive, new StringWriter());
+            Assert.fail();
+        } catch (FileSystemException expected) {
+        }
+
+        StringWriter out = new StringWriter();
+        Grep grep = new Grep(new MultiEncodingSearch(PATTERNS, ENCODINGS), out);
+        Files.walkFileTree(folder.getRoot().toPath(), grep);
+        grep.finish();
+        Assert.assertEquals(plain + "(1): hello" + System.lineSeparator(), out.toString());
+    }
+
+    @Test
+    public void testChunksAndWindowsAreScannedSameAsWholeFile() throws Exception {
+        int chunkSize = 65537;
+        int mapWindow = 100003;
+        byte[] text = randomText(7, 3 * FileScanner.BUFFER_SIZE / 2);
+        // dense found lines, so chunks stop and wait to be written
+        for (int i = 400000; i + 6 <= 700000; i += 6) {
+            System.arraycopy("hello\n".getBytes(Charset.forName("UTF-8")), 0, text, i, 6);
+        }
+        // long lines with patterns, that cross the boundaries of chunks and windows
+        for (int boundary : new int[]{chunkSize, 5 * chunkSize, 13 * chunkSize, mapWindow, 7 * mapWindow}) {
+            for (int i = boundary - 400; i < boundary - 2; i++) {
+                text[i] = 'x';
+            }
+            System.arraycopy("hello".getBytes(Charset.forName("UTF-8")), 0, text, boundary - 2, 5);
+        }
+        Path file = folder.getRoot().toPath().resolve("big.txt");
+        Files.write(file, text);
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (GrepOptions.OutputMode mode : GrepOptions.OutputMode.values()) {
+                for (int context = 0; context <= 1; context++) {
+                    String expected = scan(new FileScanner(new MultiEncodingSearch(PATTERNS, ENCODINGS), null, mode,
+                            context, context, null), file);
+                    Assert.assertFalse(expected.isEmpty() && mode != GrepOptions.OutputMode.FILES_WITHOUT_MATCHES);
+                    Assert.assertEquals(mode + " by windows", expected, scan(new FileScanner(
+                            new MultiEncodingSearch(PATTERNS, ENCODINGS), null, mode, context, context, null, null,
+                            mapWindow, chunkSize), file));
+                    Assert.assertEquals(mode + " by chunks", expected, scan(new FileScanner(
+                            new MultiEncodingSearch(PATTERNS, ENCODINGS), pool, mode, context, context, null, null,
+                            mapWindow, chunkSize), file));
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testOnlyPathsOrCountsAreWrittenInOtherModes() throws Exception {
+        Path found = folder.getRoot().toPath().resolve("found.txt");
+        Files.write(found, "hello\nпривет, hello\nbye".getBytes(Charset.forName("KOI8-R")));
+        Path notFound = folder.getRoot().toPath().resolve("not-found.txt");
+        Files.write(notFound, "hell\nпри".getBytes(Charset.forName("UTF-8")));
+        Path gzip = folder.getRoot().toPath().resolve("found.txt.gz");
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(gzip))) {
+            out.write("hello, hello".getBytes(Charset.forName("UTF-8")));
+        }
+        Path zip = folder.getRoot().toPath().resolve("bundle.zip");
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip))) {
+            out.putNextEntry(new ZipEntry("found.txt"));
+            out.write("привет".getBytes(Charset.forName("CP866")));
+            out.putNextEntry(new ZipEntry("not-found.txt"));
+            out.write("bye".getBytes(Charset.forName("CP866")));
+        }
+
+        String n = System.lineSeparator();
+        Assert.assertEquals(found + ":3" + n + notFound + ":0" + n + gzip + "!/found.txt:2" + n
+                        + zip + "!/found.txt:1" + n + zip + "!/not-found.txt:0" + n,
+                scan(GrepOptions.OutputMode.COUNT, found, notFound, gzip, zip));
+        Assert.assertEquals(found + n + gzip + "!/found.txt" + n + zip + "!/found.txt" + n,
+                scan(GrepOptions.OutputMode.FILES_WITH_MATCHES, found, notFound, gzip, zip));
+        Assert.assertEquals(notFound + n + zip + "!/not-found.txt" + n,
+                scan(GrepOptions.OutputMode.FILES_WITHOUT_MATCHES, found, notFound, gzip, zip));
+    }
+
+    @Test
+    public void testBigFileIsCountedWholeAndIsNotScannedAfterFirstFound() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            text.append(i % 10 == 0 ? "hello world\n" : "other words\n");
+        }
+        Path file = folder.getRoot().toPath().resolve("big.txt");
+        Files.write(file, text.toString().getBytes(Charset.forName("UTF-8")));
+        Assert.assertTrue(Files.size(file) > FileScanner.BUFFER_SIZE);
+
+        String n = System.lineSeparator();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (ForkJoinPool scanners : Lists.newArrayList(null, pool)) {
+                Assert.assertEquals(file + ":10000" + n, scan(new FileScanner(new MultiEncodingSearch(PATTERNS,
+                        ENCODINGS), scanners, GrepOptions.OutputMode.COUNT, 0, 0, null, null, 4096, 65536), file));
+            }
+        } finally {
+            pool.shutdown();
+        }
+        for (GrepOptions.OutputMode mode : Lists.newArrayList(GrepOptions.OutputMode.FILES_WITH_MATCHES,
+                GrepOptions.OutputMode.FILES_WITHOUT_MATCHES)) {
+            ScanStatistics statistics = new ScanStatistics();
+            String output = scan(new FileScanner(new MultiEncodingSearch(PATTERNS, ENCODINGS), null, mode, 0, 0,
+                    statistics, null, 4096, 65536), file);
+            Assert.assertEquals(mode == GrepOptions.OutputMode.FILES_WITH_MATCHES ? file + n : "", output);
+            Assert.assertEquals(4096, statistics.getBytesScanned());
+        }
+    }
+
+    @Test
+    public void testStatisticsCountScannedFiles() throws Exception {
+        Path first = folder.getRoot().toPath().resolve("first.txt");
+        Files.write(first, "hello\nпривет, hello".getBytes(Charset.forName("KOI8-R")));
+        Path second = folder.getRoot().toPath().resolve("second.txt.gz");
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(second))) {
+            out.write("привет\nпока".getBytes(Charset.forName("UTF-8")));
+        }
+        ScanStatistics statistics = new ScanStatistics();
+        FileScanner scanner = new FileScanner(new MultiEncodingSearch(PATTERNS, ENCODINGS), null,
+                GrepOptions.OutputMode.LINES, statistics);
+        scanner.scan(first, new StringWriter());
+        scanner.scan(second, new StringWriter());
+
+        Assert.assertEquals(2, statistics.getFilesScanned());
+        Assert.assertEquals(Files.size(first) + "привет\nпока".getBytes(Charset.forName("UTF-8")).length,
+                statistics.getBytesScanned());
+        Assert.assertEquals(2, statistics.getSlowestFiles().size());
+        long matches = 0;
+        for (long count : statistics.getMatchesByEncoding().values()) {
+            matches += count;
+        }
+        Assert.assertEquals(4, matches);
+        Assert.assertTrue(statistics.getMatchesByEncoding().containsKey("UTF-8"));
+
+        statistics.register();
+        Assert.assertEquals(2L, ManagementFactory.getPlatformMBeanServer().getAttribute(
+                new ObjectName(ScanStatistics.OBJECT_NAME), "FilesScanned"));
+    }
+
+    @Test
+    public void testContextLinesAreWrittenAroundFoundLines() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("context.txt");
+        Files.write(file, "a\nb\nhello\nc\nd\ne\nf\r\nhello, hello\nпривет\ng\nh".getBytes(Charset.forName("UTF-8")));
+        StringWriter out = new StringWriter();
+        new FileScanner(new MultiEncodingSearch(PATTERNS, ENCODINGS), null, GrepOptions.OutputMode.LINES, 1, 1, null)
+                .scan(file, out);
+
+        String n = System.lineSeparator();
+        Assert.assertEquals(
+                file + "(2)- b" + n +
+                file + "(3): hello" + n +
+                file + "(4)- c" + n +
+                ContextLines.GROUPS_SEPARATOR + n +
+                file + "(7)- f" + n +
+                file + "(8): hello..." + n +
+                file + "(8): hello, hello" + n +
+                file + "(9): привет" + n +
+                file + "(10)- g" + n, out.toString());
+    }
+
+    @Test
+    public void testSameContentsAreScannedOnce() throws Exception {
+        Path original = folder.getRoot().toPath().resolve("original.txt");
+        Files.write(original, randomText(239, 100000));
+        Files.setLastModifiedTime(original, FileTime.fromMillis(System.currentTimeMillis() - 60000));
+        Path copy = Files.copy(original, folder.getRoot().toPath().resolve("copy.txt"));
+        Path link = Files.createLink(folder.getRoot().toPath().resolve("link.txt"), original);
+        Path other = folder.getRoot().toPath().resolve("other.txt");
+        Files.write(other, randomText(240, 1000));
+
+        ScanStatistics statistics = new ScanStatistics();
+        FileScanner scanner = new FileScanner(new MultiEncodingSearch(PATTERNS, ENCODINGS), null,
+                GrepOptions.OutputMode.LINES, 0, 0, statistics, new DuplicateContents());
+        for (Path file : Lists.newArrayList(original, copy, link, other)) {
+            StringWriter out = new StringWriter();
+            scanner.scan(file, out);
+            Assert.assertEquals(file.toString(), scan(file), out.toString());
+        }
+        Assert.assertEquals(4, statistics.getFilesScanned());
+        Assert.assertEquals(Files.size(original) + Files.size(other), statistics.getBytesScanned());
+    }
+
+    @Test
+    public void testResultsWithTooManyFoundLinesAreNotKept() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i <= DuplicateContents.MAX_LINES_PER_RESULT; i++) {
+            text.append("hello\n");
+        }
+        Path original = folder.getRoot().toPath().resolve("original.txt");
+        Files.write(original, text.toString().getBytes(Charset.forName("UTF-8")));
+        Path copy = Files.copy(original, folder.getRoot().toPath().resolve("copy.txt"));
+
+        ScanStatistics statistics = new ScanStatistics();
+        FileScanner scanner = new FileScanner(new MultiEncodingSearch(PATTERNS, ENCODINGS), null,
+                GrepOptions.OutputMode.LINES, 0, 0, statistics, new DuplicateContents());
+        for (Path file : Lists.newArrayList(original, copy)) {
+            StringWriter out = new StringWriter();
+            scanner.scan(file, out);
+            Assert.assertEquals(file.toString(), scan(file), out.toString());
+        }
+        Assert.assertEquals(2 * Files.size(original), statistics.getBytesScanned());
+    }
+
+    private String scan(Path file) throws Exception {
+        return scan(new FileScanner(new MultiEncodingSearch(PATTERNS, ENCODINGS)), file);
+    }
+
+    private static String scan(GrepOptions.OutputMode mode, Path... files) throws Exception {
+        FileScanner scanner = new FileScanner(new MultiEncodingSearch(PATTERNS, ENCODINGS), null, mode);
+        StringWriter out = new StringWriter();
+        for (Path file : files) {
+            scanner.scan(file, out);
+        }
+        return out.toString();
+    }
+
+    private static String scan(FileScanner scanner, Path file) throws Exception {
+        StringWriter out = new StringWriter();
+        scanner.scan(file, out);
+        return out.toString();
+    }
+
+    private static byte[] randomText(long seed, int length) {
+        Random random = new Random(seed);
+        String[] words = {"hello", "привет", "hell", "при", "word", "\n", "\r\n", " "};
+        StringBuilder text = new StringBuilder();
+        while (text.length() < length) {
+            text.append(words[random.nextInt(words.length)]);
+            if (random.nextInt(100) == 0) {
+                for (int i = 0; i < 300; i++) {
+                    text.append('x');
+                }
+            }
+        }
+        return text.toString().getBytes(Charset.forName(ENCODINGS.get(random.nextInt(ENCODINGS.size()))));
+    }
+
+}
@@ -0,0 +1,151 @@
+package ru.ifmo.ctddev.polyarnyi.task1.grep;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @author Nickolay Polyarniy aka PolarNick
+ */
+public class GrepServerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testAnswersAreSameAsOfGrep() throws Exception {
+        Path root = folder.getRoot().toPath();
+        Files.createDirectories(root.resolve("dir"));
+        Files.write(root.resolve("first.txt"), "hello\nпривет, мир\n".getBytes(Charset.forName("KOI8-R")));
+        Files.write(root.resolve("dir/second.txt"), "мир\nhello, world".getBytes(Charset.forName("UTF-8")));
+
+        String answers = serve(
+                "1\t" + root + "\tпривет\thello",
+                "2\t" + root + "\t-c\tмир",
+                "3\t" + root,
+                "4\t" + root.resolve("missing") + "\thello",
+                "5\t" + root + "\tпривет\thello");
+
+        List<String> lines = Lists.newArrayList(answers.split(System.lineSeparator()));
+        Assert.assertEquals(lines(grep(root, "привет", "hello"), "1"), linesOf(lines, "1"));
+        Assert.assertEquals(lines(grep(root, "-c", "мир"), "2"), linesOf(lines, "2"));
+        Assert.assertEquals(lines(grep(root, "привет", "hello"), "5"), linesOf(lines, "5"));
+        Assert.assertTrue(lines.contains("1 OK"));
+        Assert.assertTrue(lines.get(0).startsWith("3 ERROR "));
+        Assert.assertTrue(lines.contains("5 OK"));
+        boolean failed = false;
+        for (String line : lines) {
+            failed |= line.startsWith("4 ERROR ");
+        }
+        Assert.assertTrue(failed);
+    }
+
+    @Test
+    public void testSortedAnswerIsInOrderOfPaths() throws Exception {
+        Path root = folder.getRoot().toPath();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Path file = root.resolve("dir" + i % 3).resolve("file" + (char) ('a' + i % 26) + i + ".txt");
+            Files.createDirectories(file.getParent());
+            Files.write(file, "hello".getBytes(Charset.forName("UTF-8")));
+            expected.add("1\t" + file);
+        }
+        Collections.sort(expected);
+        expected.add("1 OK");
+
+        String answers = serve("1\t" + root + "\t-j\t4\t--sorted\t-l\thello");
+        Assert.assertEquals(expected, Lists.newArrayList(answers.split(System.lineSeparator())));
+    }
+
+    @Test
+    public void testSortedAnswerOfFilesWithLongResultsIsInOrderOfPaths() throws Exception {
+        Path root = folder.getRoot().toPath();
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            content.append("hello, ").append(i).append('\n');
+        }
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            Path file = root.resolve("file" + (char) ('a' + i * 7 % 12) + ".txt");
+            Files.write(file, content.toString().getBytes(Charset.forName("UTF-8")));
+            files.add(file);
+        }
+        Collections.sort(files);
+        List<String> expected = new ArrayList<>();
+        for (Path file : files) {
+            StringWriter out = new StringWriter();
+            new FileScanner(new MultiEncodingSearch(Lists.newArrayList("hello"), Grep.getEncodings())).scan(file, out);
+            for (String line : out.toString().split(System.lineSeparator())) {
+                expected.add("1\t" + line);
+            }
+        }
+        expected.add("1 OK");
+
+        String answers = serve("1\t" + root + "\t-j\t4\t--sorted\thello");
+        Assert.assertEquals(expected, Lists.newArrayList(answers.split(System.lineSeparator())));
+    }
+
+    @Test
+    public void testUnsupportedOptionsAreRejected() throws Exception {
+        Path root = folder.getRoot().toPath();
+        String answers = serve(
+                "1\t" + root + "\t--watch\thello",
+                "2\t" + root + "\t--stats\thello",
+                "3\t" + root + "\t--read-ahead\t4\thello");
+
+        List<String> lines = Lists.newArrayList(answers.split(System.lineSeparator()));
+        Assert.assertEquals(3, lines.size());
+        for (int i = 0; i < lines.size(); i++) {
+            Assert.assertTrue(lines.get(i), lines.get(i).startsWith((i + 1) + " ERROR "));
+        }
+    }
+
+    private static String serve(String... queries) throws Exception {
+        StringWriter out = new StringWriter();
+        new GrepServer(new BufferedReader(new StringReader(Joiner.on('\n').join(queries))), out).run();
+        return out.toString();
+    }
+
+    private static String grep(Path root, String... args) throws Exception {
+        GrepOptions options = GrepOptions.parse(args);
+        StringWriter out = new StringWriter();
+        Grep grep = new Grep(new MultiEncodingSearch(options.getPatterns(), Grep.getEncodings()), out, options, null);
+        Files.walkFileTree(root, grep);
+        grep.finish();
+        return out.toString();
+    }
+
+    private static List<String> lines(String output, String id) {
+        List<String> result = new ArrayList<>();
+        for (String line : output.split(System.lineSeparator())) {
+            result.add(id + "\t" + line);
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    private static List<String> linesOf(List<String> lines, String id) {
+        List<String> result = new ArrayList<>();
+        for (String line : lines) {
+            if (line.startsWith(id + "\t")) {
+                result.add(line);
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+}
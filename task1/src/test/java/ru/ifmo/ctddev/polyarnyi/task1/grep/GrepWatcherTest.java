@@ -0,0 +1,172 @@
+package ru.ifmo.ctddev.polyarnyi.task1.grep;
+
+import com.google.common.collect.Lists;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+
+/**
+ * @author Nickolay Polyarniy aka PolarNick
+ */
+public class GrepWatcherTest {
+
+    private static final List<String> ENCODINGS = Lists.newArrayList("CP866", "KOI8-R", "UTF-8", "CP1251");
+    private static final List<String> PATTERNS = Lists.newArrayList("привет", "hello");
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testChangesOfResultsAreWritten() throws Exception {
+        Path root = folder.getRoot().toPath();
+        Path first = root.resolve("first.txt");
+        Files.write(first, "hello\nworld".getBytes("UTF-8"));
+        Path second = root.resolve("second.txt");
+        Files.write(second, "nothing".getBytes("UTF-8"));
+
+        final StringWriter out = new StringWriter();
+        final GrepWatcher watcher = new GrepWatcher(scanner(null), out, results(null));
+        watcher.walk(root);
+        String n = System.lineSeparator();
+        Assert.assertEquals(first + "(1): hello" + n, out.toString());
+
+        Thread watching = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    watcher.watch();
+                } catch (Exception e) {
+                    out.write(e.toString());
+                }
+            }
+        });
+        watching.start();
+        try {
+            String expected = out.toString();
+            Files.write(second, "привет".getBytes(Charset.forName("KOI8-R")));
+            expected += "+" + second + "(1): привет" + n;
+            awaitOutput(out, expected);
+
+            Files.delete(first);
+            expected += "-" + first + "(1): hello" + n;
+            awaitOutput(out, expected);
+
+            Path directory = Files.createDirectory(root.resolve("dir"));
+            Path third = directory.resolve("third.txt");
+            Files.write(third, "world\nhello".getBytes("UTF-8"));
+            expected += "+" + third + "(2): hello" + n;
+            awaitOutput(out, expected);
+        } finally {
+            watcher.close();
+            watching.join();
+        }
+    }
+
+    @Test
+    public void testSavedResultsOfUnchangedFilesAreReused() throws Exception {
+        Path root = folder.newFolder("root").toPath();
+        Path cacheFile = folder.getRoot().toPath().resolve("results");
+        FileTime old = FileTime.fromMillis(System.currentTimeMillis() - 60000);
+        for (int i = 0; i < 3; i++) {
+            Path file = root.resolve(i + ".txt");
+            Files.write(file, ("привет " + i + "\nhello").getBytes("CP1251"));
+            Files.setLastModifiedTime(file, old);
+        }
+
+        StringWriter expected = new StringWriter();
+        ResultCache results = results(cacheFile);
+        try (GrepWatcher watcher = new GrepWatcher(scanner(null), expected, results)) {
+            watcher.walk(root);
+        }
+        results.save();
+
+        Path changed = root.resolve("1.txt");
+        Files.write(changed, "привет 1\nhello".getBytes("UTF-8"));
+        Files.setLastModifiedTime(changed, old);
+        ScanStatistics statistics = new ScanStatistics();
+        StringWriter out = new StringWriter();
+        try (GrepWatcher watcher = new GrepWatcher(scanner(statistics), out, results(cacheFile))) {
+            watcher.walk(root);
+        }
+        Assert.assertEquals(1, statistics.getFilesScanned());
+        Assert.assertEquals(expected.toString(), out.toString());
+    }
+
+    @Test
+    public void testChangesOfLongResultsAreWrittenWhole() throws Exception {
+        Path root = folder.getRoot().toPath();
+        Path file = root.resolve("long.txt");
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i <= DuplicateContents.MAX_LINES_PER_RESULT; i++) {
+            text.append("hello\n");
+        }
+        Files.write(file, text.toString().getBytes("UTF-8"));
+
+        final StringWriter out = new StringWriter();
+        final GrepWatcher watcher = new GrepWatcher(scanner(null), out, results(null));
+        watcher.walk(root);
+        String n = System.lineSeparator();
+        Thread watching = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    watcher.watch();
+                } catch (Exception e) {
+                    out.write(e.toString());
+                }
+            }
+        });
+        watching.start();
+        try {
+            // the same result is not written again, though it was not kept
+            String expected = out.toString();
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 60000));
+            Path other = root.resolve("other.txt");
+            Files.write(other, "hello".getBytes("UTF-8"));
+            expected += "+" + other + "(1): hello" + n;
+            awaitOutput(out, expected);
+
+            Files.write(file, text.append("hello\n").toString().getBytes("UTF-8"));
+            StringBuilder changes = new StringBuilder(expected).append("-").append(file).append(n);
+            for (int i = 1; i <= DuplicateContents.MAX_LINES_PER_RESULT + 2; i++) {
+                changes.append("+").append(file).append("(").append(i).append("): hello").append(n);
+            }
+            expected = changes.toString();
+            awaitOutput(out, expected);
+
+            Files.delete(file);
+            expected += "-" + file + n;
+            awaitOutput(out, expected);
+        } finally {
+            watcher.close();
+            watching.join();
+        }
+    }
+
+    private static FileScanner scanner(ScanStatistics statistics) {
+        return new FileScanner(new MultiEncodingSearch(PATTERNS, ENCODINGS), null, GrepOptions.OutputMode.LINES,
+                statistics);
+    }
+
+    private static ResultCache results(Path cacheFile) throws Exception {
+        return ResultCache.open(cacheFile, PATTERNS, GrepOptions.parse(PATTERNS.toArray(new String[0])));
+    }
+
+    private static void awaitOutput(StringWriter out, String expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!out.toString().equals(expected) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(expected, out.toString());
+    }
+
+}
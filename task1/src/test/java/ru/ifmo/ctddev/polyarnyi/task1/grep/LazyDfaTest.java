@@ -0,0 +1,181 @@
+package ru.ifmo.ctddev.polyarnyi.task1.grep;
+
+import com.google.common.collect.Lists;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * @author Nickolay Polyarniy aka PolarNick
+ */
+public class LazyDfaTest {
+
+    private static final List<String> ENCODINGS = Lists.newArrayList("CP866", "KOI8-R", "UTF-8", "CP1251");
+    private static final String[] ATOMS = {"a", "b", "я", "Ж", ".", "[aя]", "[^b ]", "\\w", "\\d", "[а-я]", "\\s"};
+    private static final String TEXT_CHARACTERS = "abAяЯжЖ1 ";
+
+    @Test
+    public void testFindsSameLinesAsJavaRegex() throws Exception {
+        Random random = new Random(239);
+        for (int iteration = 0; iteration < 500; iteration++) {
+            boolean ignoreCase = random.nextBoolean();
+            String regex = randomRegex(random, 3);
+            if (random.nextInt(4) == 0) {
+                regex = "^" + regex;
+            }
+            if (random.nextInt(4) == 0) {
+                regex = regex + "$";
+            }
+            int flags = Pattern.UNICODE_CHARACTER_CLASS | (ignoreCase ? Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE : 0);
+            Pattern expected = Pattern.compile(regex, flags);
+            Regex actual;
+            try {
+                actual = Regex.parse(regex, ignoreCase);
+            } catch (IllegalArgumentException e) {
+                Assert.assertTrue("Rejected " + regex, expected.matcher("").find());
+                continue;
+            }
+            List<String> lines = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                StringBuilder line = new StringBuilder();
+                for (int k = random.nextInt(12); k > 0; k--) {
+                    line.append(TEXT_CHARACTERS.charAt(random.nextInt(TEXT_CHARACTERS.length())));
+                }
+                lines.add(line.toString());
+            }
+            String encoding = ENCODINGS.get(random.nextInt(ENCODINGS.size()));
+            LazyDfa<String> dfa = new LazyDfa<>(ByteNfa.compile(Collections.singletonList(actual),
+                    Collections.singletonList(encoding)), Collections.singletonList(encoding));
+            TreeSet<Integer> expectedLines = new TreeSet<>();
+            for (int i = 0; i < lines.size(); i++) {
+                if (expected.matcher(lines.get(i)).find()) {
+                    expectedLines.add(i);
+                }
+            }
+            boolean lineFeedAtEnd = random.nextBoolean();
+            Assert.assertEquals("Iteration " + iteration + ", " + regex + " in " + encoding + ", " + lines,
+                    expectedLines, foundLines(dfa, lines, encoding, lineFeedAtEnd, random));
+        }
+    }
+
+    @Test
+    public void testPrefixesAreSearchedByAhoCorasick() throws Exception {
+        List<Regex> patterns = Lists.newArrayList(Regex.parse("hello,? (world|мир)", false),
+                Regex.parse("exception: \\w+", true));
+        LazyDfa<String> dfa = new LazyDfa<>(ByteNfa.compile(patterns, ENCODINGS), patternEncodings(2));
+        Assert.assertTrue(dfa.isSearchingPrefixes());
+        List<String> lines = Lists.newArrayList("hello world", "hello, мир!", "hello,world", "Exception: Мир",
+                "exception:", "say hellohello, world", "hehello мир");
+        for (String encoding : ENCODINGS) {
+            Assert.assertEquals(encoding, new TreeSet<>(Lists.newArrayList(0, 1, 3, 5, 6)),
+                    foundLines(dfa, lines, encoding, true, new Random(239)));
+        }
+
+        LazyDfa<String> withoutPrefixes = new LazyDfa<>(ByteNfa.compile(
+                Collections.singletonList(Regex.parse("\\d+ apples", false)), ENCODINGS), patternEncodings(1));
+        Assert.assertFalse(withoutPrefixes.isSearchingPrefixes());
+    }
+
+    @Test
+    public void testStatesAreBoundedByCache() throws Exception {
+        // automaton of (a|b)*a(a|b){12} has 2^13 states
+        LazyDfa<String> dfa = new LazyDfa<>(ByteNfa.compile(Collections.singletonList(Regex.parse(
+                "[ab]*a[ab]{12}", false)), Collections.singletonList("UTF-8")), Collections.singletonList("UTF-8"));
+        Random random = new Random(239);
+        List<String> lines = new ArrayList<>();
+        TreeSet<Integer> expectedLines = new TreeSet<>();
+        for (int i = 0; i < 20; i++) {
+            StringBuilder line = new StringBuilder();
+            for (int k = 0; k < 1000; k++) {
+                line.append(random.nextBoolean() ? 'a' : 'b');
+            }
+            line.append(i % 2 == 0 ? "c" : "abbbbbbbbbbbb");
+            lines.add(line.toString());
+            expectedLines.add(i);
+        }
+        Assert.assertEquals(expectedLines, foundLines(dfa, lines, "UTF-8", true, random));
+    }
+
+    @Test
+    public void testWrongExpressionsAreRejected() throws Exception {
+        for (String regex : new String[]{"a(b", "a)b", "[ab", "*a", "a{2,1}", "a|", "x*", "^$", "\\q"}) {
+            try {
+                Regex.parse(regex, false);
+                Assert.fail(regex);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    private static List<String> patternEncodings(int patternsCount) {
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < patternsCount; i++) {
+            result.addAll(ENCODINGS);
+        }
+        return result;
+    }
+
+    /**
+     * @param lineFeedAtEnd false, if the last line ends without line break
+     * @return numbers of lines, where patterns were found, if text is scanned by random pieces
+     */
+    private static TreeSet<Integer> foundLines(LazyDfa<String> dfa, List<String> lines, String encoding,
+                                               boolean lineFeedAtEnd, Random random) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final List<Integer> lineStarts = new ArrayList<>();
+        for (int i = 0; i < lines.size(); i++) {
+            lineStarts.add(bytes.size());
+            bytes.write(lines.get(i).getBytes(Charset.forName(encoding)));
+            if (lineFeedAtEnd || i + 1 < lines.size()) {
+                bytes.write('\n');
+            }
+        }
+        byte[] text = bytes.toByteArray();
+        final TreeSet<Integer> found = new TreeSet<>();
+        final List<Long> offsets = new ArrayList<>();
+        SearchEngine.OutputListener listener = new SearchEngine.OutputListener() {
+            @Override
+            public boolean onOutput(long offset, int patternIndex) {
+                if (!offsets.contains(offset)) {
+                    offsets.add(offset);
+                    int line = -Collections.binarySearch(lineStarts, (int) offset + 1) - 2;
+                    Assert.assertTrue("Line " + line + " is found twice", found.add(line));
+                }
+                return true;
+            }
+        };
+        LazyDfa<String>.Matcher matcher = dfa.matcher();
+        for (int offset = 0; offset < text.length; ) {
+            int length = Math.min(text.length - offset, 1 + random.nextInt(20));
+            matcher.scan(ByteBuffer.wrap(text), offset, length, listener);
+            offset += length;
+        }
+        matcher.finish(listener);
+        return found;
+    }
+
+    private static String randomRegex(Random random, int depth) {
+        int kind = depth == 0 ? 0 : random.nextInt(5);
+        switch (kind) {
+            case 1:
+                return randomRegex(random, depth - 1) + randomRegex(random, depth - 1);
+            case 2:
+                return "(" + randomRegex(random, depth - 1) + "|" + randomRegex(random, depth - 1) + ")";
+            case 3:
+                String[] repetitions = {"*", "+", "?", "{1,2}", "{2}", "{0,3}"};
+                return "(" + randomRegex(random, depth - 1) + ")" + repetitions[random.nextInt(repetitions.length)];
+            default:
+                return ATOMS[random.nextInt(ATOMS.length)];
+        }
+    }
+
+}
@@ -0,0 +1,232 @@
+package ru.ifmo.ctddev.polyarnyi.task1.grep;
+
+import com.google.common.collect.Lists;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * @author Nickolay Polyarniy aka PolarNick
+ */
+public class MultiEncodingSearchTest {
+
+    private static final List<String> ENCODINGS = Lists.newArrayList("CP866", "KOI8-R", "UTF-8", "CP1251");
+    private static final List<String> PATTERNS = Lists.newArrayList("привет", "мир", "hello");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testScanFindsPatternInEachEncoding() throws Exception {
+        MultiEncodingSearch searcher = new MultiEncodingSearch(PATTERNS, ENCODINGS);
+        for (String encoding : ENCODINGS) {
+            byte[] text = "и снова привет, мир".getBytes(Charset.forName(encoding));
+            int firstEnd = "и снова привет".getBytes(Charset.forName(encoding)).length - 1;
+            List<String> found = scan(searcher.matcher(), text, 0, text.length);
+            Assert.assertEquals(encoding, Lists.newArrayList(
+                    firstEnd + ":0:" + encoding,
+                    (text.length - 1) + ":1:" + encoding), found);
+        }
+    }
+
+    @Test
+    public void testScanByBlocksIsSameAsScanAtOnce() throws Exception {
+        MultiEncodingSearch searcher = new MultiEncodingSearch(PATTERNS, ENCODINGS);
+        byte[] text = "hello, мир! hellhello приве привет".getBytes(Charset.forName("UTF-8"));
+        List<String> expected = scan(searcher.matcher(), text, 0, text.length);
+        for (int blockSize = 1; blockSize < text.length; blockSize++) {
+            MultiEncodingSearch.Matcher matcher = searcher.matcher();
+            List<String> found = new ArrayList<>();
+            for (int offset = 0; offset < text.length; offset += blockSize) {
+                found.addAll(scan(matcher, text, offset, Math.min(blockSize, text.length - offset)));
+            }
+            Assert.assertEquals("Block size = " + blockSize, expected, found);
+        }
+    }
+
+    @Test
+    public void testScanStoppedByListener() throws Exception {
+        MultiEncodingSearch searcher = new MultiEncodingSearch(PATTERNS, Lists.newArrayList("UTF-8"));
+        byte[] text = "hello hello hello".getBytes(Charset.forName("UTF-8"));
+        final List<Long> offsets = new ArrayList<>();
+        boolean finished = searcher.matcher().scan(text, 0, text.length, new MatchListener() {
+            @Override
+            public boolean onMatch(long offset, int patternId, String encoding) {
+                offsets.add(offset);
+                return offsets.size() < 2;
+            }
+        });
+        Assert.assertFalse(finished);
+        Assert.assertEquals(Lists.newArrayList(4L, 10L), offsets);
+    }
+
+    @Test
+    public void testFindAllOverlappingPatterns() throws Exception {
+        MultiEncodingSearch searcher = new MultiEncodingSearch(Lists.newArrayList("hers", "he", "she", "his"),
+                Lists.newArrayList("UTF-8"));
+        byte[] text = "ushers".getBytes(Charset.forName("UTF-8"));
+        Assert.assertEquals(Lists.newArrayList(
+                new Match(3, 2, "UTF-8"),
+                new Match(3, 1, "UTF-8"),
+                new Match(5, 0, "UTF-8")), searcher.findAll(text));
+    }
+
+    @Test
+    public void testIgnoreCaseFindsSameAsLowerCase() throws Exception {
+        List<String> patterns = Lists.newArrayList("Привет", "МИР", "Hello", "ёж");
+        MultiEncodingSearch ignoringCase = new MultiEncodingSearch(patterns, ENCODINGS, true);
+        List<String> lowerCasePatterns = new ArrayList<>();
+        for (String pattern : patterns) {
+            lowerCasePatterns.add(pattern.toLowerCase());
+        }
+        MultiEncodingSearch lowerCase = new MultiEncodingSearch(lowerCasePatterns, ENCODINGS);
+        String text = "И снова ПРИВЕТ, Мир! HeLLo, привеТ, ЁЖ, Ёж и мИр";
+        for (String encoding : ENCODINGS) {
+            List<Match> expected = lowerCase.findAll(text.toLowerCase().getBytes(Charset.forName(encoding)));
+            Assert.assertFalse(encoding, expected.isEmpty());
+            List<Match> found = ignoringCase.findAll(text.getBytes(Charset.forName(encoding)));
+            Assert.assertEquals(encoding, expected.size(), found.size());
+            for (int i = 0; i < expected.size(); i++) {
+                Assert.assertEquals(encoding, expected.get(i).getEndOffset(), found.get(i).getEndOffset());
+                Assert.assertEquals(encoding, expected.get(i).getPatternId(), found.get(i).getPatternId());
+            }
+        }
+    }
+
+    @Test
+    public void testIgnoreCaseDoesNotMatchOtherLetters() throws Exception {
+        MultiEncodingSearch searcher = new MultiEncodingSearch(Lists.newArrayList("р", "Ц"),
+                Lists.newArrayList("UTF-8"), true);
+        Assert.assertEquals(Lists.newArrayList(new Match(1, 0, "UTF-8"), new Match(5, 1, "UTF-8")),
+                searcher.findAll("РЀцІ".getBytes(Charset.forName("UTF-8"))));
+    }
+
+    @Test
+    public void testIgnoreCaseScanByBlocksIsSameAsScanAtOnce() throws Exception {
+        MultiEncodingSearch searcher = new MultiEncodingSearch(PATTERNS, ENCODINGS, true);
+        byte[] text = "HELLO, мИр! hellhello ПРИВЕ Привет".getBytes(Charset.forName("UTF-8"));
+        List<String> expected = scan(searcher.matcher(), text, 0, text.length);
+        Assert.assertFalse(expected.isEmpty());
+        for (int blockSize = 1; blockSize < text.length; blockSize++) {
+            MultiEncodingSearch.Matcher matcher = searcher.matcher();
+            List<String> found = new ArrayList<>();
+            for (int offset = 0; offset < text.length; offset += blockSize) {
+                found.addAll(scan(matcher, text, offset, Math.min(blockSize, text.length - offset)));
+            }
+            Assert.assertEquals("Block size = " + blockSize, expected, found);
+        }
+    }
+
+    @Test
+    public void testIgnoreCaseFindsSameAsAutomatonOfEachEncoding() throws Exception {
+        List<String> patterns = Lists.newArrayList("Привет", "мИр", "hello", "ёж", "ЦАРЬ", "Ӂ");
+        MultiEncodingSearch searcher = new MultiEncodingSearch(patterns, ENCODINGS, true, true);
+        Random random = new Random(239);
+        String[] words = {"привет", "мир", "hello", "ёж", "царь", "ӂ", "при", "ми", " ", "\n", "Ѐ", "ц"};
+        for (int test = 0; test < 100; test++) {
+            ByteBuffer text = ByteBuffer.allocate(1 << 12);
+            while (text.remaining() > 20) {
+                String word = words[random.nextInt(words.length)];
+                word = random.nextBoolean() ? word.toUpperCase() : word;
+                text.put(word.getBytes(Charset.forName(ENCODINGS.get(random.nextInt(ENCODINGS.size())))));
+                if (random.nextInt(10) == 0) {
+                    text.put((byte) random.nextInt());
+                }
+            }
+            byte[] bytes = Arrays.copyOf(text.array(), text.position());
+            List<String> expected = new ArrayList<>();
+            for (String encoding : ENCODINGS) {
+                expected.addAll(scan(searcher.matcher(encoding), bytes, 0, bytes.length));
+            }
+            Collections.sort(expected);
+            MultiEncodingSearch.Matcher matcher = searcher.matcher();
+            List<String> found = new ArrayList<>();
+            for (int offset = 0; offset < bytes.length; ) {
+                int length = Math.min(1 + random.nextInt(20), bytes.length - offset);
+                found.addAll(scan(matcher, bytes, offset, length));
+                offset += length;
+            }
+            Collections.sort(found);
+            Assert.assertEquals(expected, found);
+        }
+    }
+
+    @Test
+    public void testCompiledCacheIsSameAsBuiltSearch() throws Exception {
+        Path cacheFile = folder.getRoot().toPath().resolve("patterns.cache");
+        byte[] text = "hello, мир! привет, hellhello".getBytes(Charset.forName("KOI8-R"));
+        List<Match> expected = new MultiEncodingSearch(PATTERNS, ENCODINGS).findAll(text);
+        Assert.assertEquals("Built", expected, MultiEncodingSearch.compile(PATTERNS, ENCODINGS, cacheFile).findAll(text));
+        Assert.assertEquals("Loaded", expected, MultiEncodingSearch.compile(PATTERNS, ENCODINGS, cacheFile).findAll(text));
+
+        List<String> otherPatterns = Lists.newArrayList("hell", "мир");
+        Assert.assertEquals("Rebuilt", new MultiEncodingSearch(otherPatterns, ENCODINGS).findAll(text),
+                MultiEncodingSearch.compile(otherPatterns, ENCODINGS, cacheFile).findAll(text));
+
+        Assert.assertEquals("Ignoring case", new MultiEncodingSearch(PATTERNS, ENCODINGS, true).findAll(text),
+                MultiEncodingSearch.compile(PATTERNS, ENCODINGS, true, false, cacheFile).findAll(text));
+        Assert.assertEquals("Ignoring case loaded", new MultiEncodingSearch(PATTERNS, ENCODINGS, true).findAll(text),
+                MultiEncodingSearch.compile(PATTERNS, ENCODINGS, true, false, cacheFile).findAll(text));
+    }
+
+    @Test
+    public void testRegularExpressionsAreFoundOncePerLine() throws Exception {
+        List<String> patterns = Lists.newArrayList("при?вет,? (мир|world)", "^\\d+$");
+        byte[] text = "Привет мир, привет мир\nпрвет world\n12 34\n1234\nпривет,мир\n".getBytes(Charset.forName("CP866"));
+        MultiEncodingSearch searcher = new MultiEncodingSearch(patterns, ENCODINGS, true, false, true);
+        List<String> expected = Lists.newArrayList("9:0:CP866", "33:0:CP866", "44:1:CP866");
+        List<String> expectedInAllEncodings = Lists.newArrayList("9:0:CP866", "33:0:CP866", "44:1:CP1251",
+                "44:1:UTF-8", "44:1:KOI8-R", "44:1:CP866");
+        Assert.assertEquals(expectedInAllEncodings, scan(searcher.matcher(), text, 0, text.length));
+        Assert.assertEquals(Integer.MAX_VALUE, searcher.getMaxPatternLength());
+
+        Path cacheFile = folder.getRoot().toPath().resolve("patterns.cache");
+        MultiEncodingSearch.compile(patterns, ENCODINGS, true, true, true, cacheFile);
+        MultiEncodingSearch loaded = MultiEncodingSearch.compile(patterns, ENCODINGS, true, true, true, cacheFile);
+        Assert.assertTrue(loaded.isRegex());
+        Assert.assertEquals(expectedInAllEncodings, scan(loaded.matcher(), text, 0, text.length));
+        Assert.assertEquals(expected, scan(loaded.matcher("CP866"), text, 0, text.length));
+    }
+
+    @Test
+    public void testMatcherOfEncodingFindsPatternsOnlyInIt() throws Exception {
+        MultiEncodingSearch searcher = new MultiEncodingSearch(PATTERNS, ENCODINGS, false, true);
+        byte[] prefix = "привет, hello ".getBytes(Charset.forName("UTF-8"));
+        byte[] suffix = "мир".getBytes(Charset.forName("CP1251"));
+        byte[] text = Arrays.copyOf(prefix, prefix.length + suffix.length);
+        System.arraycopy(suffix, 0, text, prefix.length, suffix.length);
+        List<String> found = scan(searcher.matcher("UTF-8"), text, 0, text.length);
+        Assert.assertEquals(Lists.newArrayList("11:0:UTF-8", (prefix.length - 2) + ":2:UTF-8"), found);
+        Assert.assertTrue(scan(searcher.matcher(null), text, 0, text.length).contains((text.length - 1) + ":1:CP1251"));
+        Assert.assertEquals("UTF-8", searcher.detectEncoding(ByteBuffer.wrap(prefix), 0, prefix.length, true));
+
+        Path cacheFile = folder.getRoot().toPath().resolve("patterns.cache");
+        MultiEncodingSearch.compile(PATTERNS, ENCODINGS, false, true, cacheFile);
+        MultiEncodingSearch loaded = MultiEncodingSearch.compile(PATTERNS, ENCODINGS, false, true, cacheFile);
+        Assert.assertTrue(loaded.isDetectingEncoding());
+        Assert.assertEquals(found, scan(loaded.matcher("UTF-8"), text, 0, text.length));
+    }
+
+    private static List<String> scan(MultiEncodingSearch.Matcher matcher, byte[] text, int offset, int length) {
+        final List<String> found = new ArrayList<>();
+        matcher.scan(text, offset, length, new MatchListener() {
+            @Override
+            public boolean onMatch(long offset, int patternId, String encoding) {
+                found.add(offset + ":" + patternId + ":" + encoding);
+                return true;
+            }
+        });
+        return found;
+    }
+
+}
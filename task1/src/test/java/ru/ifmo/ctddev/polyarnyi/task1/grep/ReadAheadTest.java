@@ -0,0 +1,95 @@
+package ru.ifmo.ctddev.polyarnyi.task1.grep;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Nickolay Polyarniy aka PolarNick
+ */
+public class ReadAheadTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 100;
+    private static final int DEPTH = 3;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testFilesArePassedWithContentInReusedBuffers() throws Exception {
+        final Map<String, String> contents = new ConcurrentHashMap<>();
+        final Set<ByteBuffer> buffers = Collections.synchronizedSet(
+                Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>()));
+        ExecutorService scanners = Executors.newFixedThreadPool(4);
+        ReadAhead readAhead = new ReadAhead(DEPTH, BUFFER_SIZE, scanners);
+        for (int i = 0; i < 200; i++) {
+            final Path file = folder.getRoot().toPath().resolve("file" + i);
+            StringBuilder content = new StringBuilder();
+            for (int k = 0; k < i; k++) {
+                content.append((char) ('a' + k % 26));
+            }
+            Files.write(file, content.toString().getBytes(UTF_8));
+            readAhead.read(file, new ReadAhead.Consumer() {
+                @Override
+                public void accept(ByteBuffer content) {
+                    if (content == null) {
+                        contents.put(file.getFileName().toString(), "-");
+                        return;
+                    }
+                    buffers.add(content);
+                    byte[] bytes = new byte[content.limit()];
+                    for (int k = 0; k < bytes.length; k++) {
+                        bytes[k] = content.get(k);
+                    }
+                    contents.put(file.getFileName().toString(), new String(bytes, UTF_8));
+                }
+            });
+        }
+        readAhead.close();
+        scanners.shutdown();
+        Assert.assertTrue(scanners.awaitTermination(10, TimeUnit.SECONDS));
+
+        Assert.assertEquals(200, contents.size());
+        for (int i = 0; i < 200; i++) {
+            String expected = "-";
+            if (i <= BUFFER_SIZE) {
+                expected = new String(Files.readAllBytes(folder.getRoot().toPath().resolve("file" + i)), UTF_8);
+            }
+            Assert.assertEquals("file" + i, expected, contents.get("file" + i));
+        }
+        Assert.assertTrue(buffers.size() <= DEPTH);
+    }
+
+    @Test
+    public void testMissingFileIsPassedWithoutContent() throws Exception {
+        ExecutorService scanners = Executors.newSingleThreadExecutor();
+        final Map<String, Boolean> read = new ConcurrentHashMap<>();
+        try (ReadAhead readAhead = new ReadAhead(1, BUFFER_SIZE, scanners)) {
+            readAhead.read(folder.getRoot().toPath().resolve("missing"), new ReadAhead.Consumer() {
+                @Override
+                public void accept(ByteBuffer content) {
+                    read.put("missing", content != null);
+                }
+            });
+        }
+        scanners.shutdown();
+        Assert.assertTrue(scanners.awaitTermination(10, TimeUnit.SECONDS));
+        Assert.assertEquals(Collections.singletonMap("missing", false), read);
+    }
+
+}
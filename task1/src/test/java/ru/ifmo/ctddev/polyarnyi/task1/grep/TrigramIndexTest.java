@@ -0,0 +1,102 @@
+package ru.ifmo.ctddev.polyarnyi.task1.grep;
+
+import com.google.common.collect.Lists;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * @author Nickolay Polyarniy aka PolarNick
+ */
+public class TrigramIndexTest {
+
+    private static final List<String> ENCODINGS = Lists.newArrayList("UTF-8", "CP1251");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSavedIndexSkipsFilesWithoutPatternTrigrams() throws Exception {
+        Path indexFile = folder.getRoot().toPath().resolve("index");
+        Path file = folder.newFile("text.txt").toPath();
+        Files.write(file, "hello, привет".getBytes(Charset.forName("CP1251")));
+
+        TrigramIndex index = TrigramIndex.open(indexFile, Lists.newArrayList("привет"), ENCODINGS);
+        Assert.assertTrue(index.isCandidate(file, attributes(file)));
+        index.update(file, attributes(file));
+        index.save();
+
+        Assert.assertTrue(TrigramIndex.open(indexFile, Lists.newArrayList("привет"), ENCODINGS)
+                .isCandidate(file, attributes(file)));
+        Assert.assertTrue(TrigramIndex.open(indexFile, Lists.newArrayList("nothing", "hell"), ENCODINGS)
+                .isCandidate(file, attributes(file)));
+        Assert.assertFalse(TrigramIndex.open(indexFile, Lists.newArrayList("пока", "help"), ENCODINGS)
+                .isCandidate(file, attributes(file)));
+        Assert.assertTrue("Short patterns have no trigrams",
+                TrigramIndex.open(indexFile, Lists.newArrayList("пока", "hi"), ENCODINGS)
+                        .isCandidate(file, attributes(file)));
+    }
+
+    @Test
+    public void testChangedFileIsCandidate() throws Exception {
+        Path indexFile = folder.getRoot().toPath().resolve("index");
+        Path file = folder.newFile("text.txt").toPath();
+        Files.write(file, "hello".getBytes(Charset.forName("UTF-8")));
+
+        TrigramIndex index = TrigramIndex.open(indexFile, Lists.newArrayList("world"), ENCODINGS);
+        index.update(file, attributes(file));
+        Assert.assertFalse(index.isCandidate(file, attributes(file)));
+
+        Files.write(file, "hello world".getBytes(Charset.forName("UTF-8")));
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 1000));
+        Assert.assertTrue(index.isCandidate(file, attributes(file)));
+        index.update(file, attributes(file));
+        Assert.assertTrue(index.isCandidate(file, attributes(file)));
+    }
+
+    @Test
+    public void testFilesAreIndexedByBytesReadByScanner() throws Exception {
+        Path indexFile = folder.getRoot().toPath().resolve("index");
+        Path small = folder.newFile("small.txt").toPath();
+        Files.write(small, "hello world".getBytes(Charset.forName("UTF-8")));
+        Path big = folder.newFile("big.txt").toPath();
+        StringBuilder text = new StringBuilder("hello\n");
+        while (text.length() <= FileScanner.BUFFER_SIZE) {
+            text.append("some text\n");
+        }
+        Files.write(big, text.append("world").toString().getBytes(Charset.forName("UTF-8")));
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            FileScanner scanner = new FileScanner(new MultiEncodingSearch(Lists.newArrayList("hello"), ENCODINGS),
+                    pool, GrepOptions.OutputMode.FILES_WITH_MATCHES, 0, 0, null, null, 4096, 65536);
+            TrigramIndex index = TrigramIndex.open(indexFile, Lists.newArrayList("world"), ENCODINGS);
+            for (Path file : Lists.newArrayList(small, big)) {
+                BasicFileAttributes attr = attributes(file);
+                TrigramIndex.Trigrams trigrams = index.newTrigrams(file, attr);
+                scanner.scan(file, null, new StringWriter(), trigrams);
+                // file is not read again by the index, and its last window was read after the found line
+                Files.delete(file);
+                index.update(file, attr, trigrams);
+                Assert.assertTrue(file.toString(), index.isCandidate(file, attr));
+                Assert.assertNull(index.newTrigrams(file, attr));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static BasicFileAttributes attributes(Path file) throws Exception {
+        return Files.readAttributes(file, BasicFileAttributes.class);
+    }
+
+}
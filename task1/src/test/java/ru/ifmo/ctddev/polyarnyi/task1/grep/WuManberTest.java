@@ -0,0 +1,129 @@
+package ru.ifmo.ctddev.polyarnyi.task1.grep;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * @author Nickolay Polyarniy aka PolarNick
+ */
+public class WuManberTest {
+
+    @Test
+    public void testFindsSamePatternsAsAhoCorasick() throws Exception {
+        Random random = new Random(239);
+        for (int iteration = 0; iteration < 300; iteration++) {
+            int alphabet = 2 + random.nextInt(3);
+            List<int[]> patterns = new ArrayList<>();
+            List<Integer> data = new ArrayList<>();
+            for (int i = 0; i < 1 + random.nextInt(10); i++) {
+                patterns.add(randomBytes(random, 2 + random.nextInt(6), alphabet));
+                data.add(i);
+            }
+            if (random.nextBoolean()) {
+                // equal patterns are reported from the last one
+                patterns.add(patterns.get(0));
+                data.add(patterns.size() - 1);
+            }
+            int[] folding = null;
+            if (random.nextBoolean()) {
+                folding = new int[256];
+                for (int b = 0; b < 256; b++) {
+                    folding[b] = b >= 'A' && b < 'A' + alphabet ? b - 'A' + 'a' : b;
+                }
+            }
+            byte[] text = new byte[random.nextInt(300)];
+            for (int i = 0; i < text.length; i++) {
+                text[i] = (byte) ((random.nextBoolean() ? 'a' : 'A') + random.nextInt(alphabet));
+            }
+            int[] pieces = randomPieces(random, text.length);
+            Assert.assertEquals("Iteration " + iteration,
+                    scan(new AhoCorasick<>(patterns, data, 0, 255, folding, AhoCorasick.MAX_DENSE_CELLS), text, pieces),
+                    scan(new WuManber<>(patterns, data, folding), text, pieces));
+        }
+    }
+
+    @Test
+    public void testProcessTextReturnsLongestPattern() throws Exception {
+        List<int[]> patterns = new ArrayList<>();
+        List<String> data = new ArrayList<>();
+        for (String pattern : new String[]{"hers", "ers", "his", "she", "ushers"}) {
+            patterns.add(toBytes(pattern));
+            data.add(pattern);
+        }
+        SearchEngine.Matcher<String> expected = new AhoCorasick<>(patterns, data, 0, 255).matcher();
+        SearchEngine.Matcher<String> actual = new WuManber<>(patterns, data, null).matcher();
+        for (int b : toBytes("ushers his hers shers")) {
+            Assert.assertEquals(expected.processText(b), actual.processText(b));
+        }
+    }
+
+    @Test
+    public void testPlannerChoosesWuManberForLongPatterns() throws Exception {
+        List<int[]> longPatterns = new ArrayList<>();
+        List<int[]> shortPatterns = new ArrayList<>();
+        for (String pattern : new String[]{"interruption", "synchronization", "hello world", "привет, мир"}) {
+            longPatterns.add(toBytes(pattern));
+            shortPatterns.add(toBytes(pattern.substring(0, 3)));
+        }
+        Assert.assertEquals(SearchEngines.Kind.WU_MANBER, SearchEngines.plan(longPatterns));
+        Assert.assertEquals(SearchEngines.Kind.AHO_CORASICK, SearchEngines.plan(shortPatterns));
+    }
+
+    /**
+     * @return found patterns as {@code "offset:patternIndex"}, if text is scanned by pieces of given lengths
+     */
+    private static List<String> scan(SearchEngine<Integer> engine, byte[] text, int[] pieces) {
+        final List<String> found = new ArrayList<>();
+        SearchEngine.Matcher<Integer> matcher = engine.matcher();
+        int offset = 0;
+        for (int piece : pieces) {
+            matcher.scan(ByteBuffer.wrap(text), offset, piece, new SearchEngine.OutputListener() {
+                @Override
+                public boolean onOutput(long offset, int patternIndex) {
+                    found.add(offset + ":" + patternIndex);
+                    return true;
+                }
+            });
+            offset += piece;
+        }
+        return found;
+    }
+
+    private static int[] randomPieces(Random random, int length) {
+        List<Integer> pieces = new ArrayList<>();
+        while (length > 0) {
+            int piece = Math.min(length, random.nextInt(3) == 0 ? 1 + random.nextInt(3) : 1 + random.nextInt(100));
+            pieces.add(piece);
+            length -= piece;
+        }
+        int[] result = new int[pieces.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = pieces.get(i);
+        }
+        return result;
+    }
+
+    private static int[] randomBytes(Random random, int length, int alphabet) {
+        int[] bytes = new int[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = 'a' + random.nextInt(alphabet);
+        }
+        return bytes;
+    }
+
+    private static int[] toBytes(String s) {
+        byte[] bytes = s.getBytes(Charset.forName("UTF-8"));
+        int[] result = new int[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            result[i] = bytes[i] & 0xFF;
+        }
+        return result;
+    }
+
+}